@@ -0,0 +1,34 @@
+package niossltest;
+
+import java.util.List;
+import javax.net.ssl.SSLContext;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * ProtocolPrinter が表示するプロトコルと暗号スイートの組のうち、
+ * ハンドシェイクが成立するものすべてについてベンチマークを実行する。
+ * 残りの引数は JMH にそのまま渡す。
+ *
+ * Usage: sbt "bench/jmh:runMain niossltest.BenchmarkRunner [JMH options]"
+ */
+public class BenchmarkRunner {
+  public static void main(String[] args) throws Exception {
+    SSLContext serverContext = SSLContext.getInstance("TLS");
+    serverContext.init(HandshakeLogging.createKeyManagers(), HandshakeLogging.createTrustManagers(), null);
+    SSLContext clientContext = SSLContext.getInstance("TLS");
+    clientContext.init(null, HandshakeLogging.createTrustManagers(), null);
+    List<String> suites = EnginePair.negotiableSuites(serverContext, clientContext);
+    System.out.println("Suites: " + suites);
+
+    Options options = new OptionsBuilder()
+        .parent(new CommandLineOptions(args))
+        .include(HandshakeBenchmark.class.getSimpleName())
+        .include(RecordBenchmark.class.getSimpleName())
+        .param("suite", suites.toArray(new String[0]))
+        .build();
+    new Runner(options).run();
+  }
+}
@@ -0,0 +1,45 @@
+package niossltest;
+
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * メモリ上の EnginePair で、フルハンドシェイクを 1 秒に何回できるか。
+ * 毎回新しい SSLEngine を作り、ホストとポートを渡さないのでセッションは再開されない。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class HandshakeBenchmark {
+  /**
+   * "プロトコル/暗号スイート"。BenchmarkRunner は EnginePair#negotiableSuites のすべてを渡す。
+   */
+  @Param({"TLSv1.2/TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256", "TLSv1.3/TLS_AES_128_GCM_SHA256"})
+  public String suite;
+
+  private SSLContext serverContext;
+  private SSLContext clientContext;
+
+  @Setup
+  public void setUp() throws Exception {
+    serverContext = SSLContext.getInstance("TLS");
+    serverContext.init(HandshakeLogging.createKeyManagers(), HandshakeLogging.createTrustManagers(), null);
+    clientContext = SSLContext.getInstance("TLS");
+    clientContext.init(null, HandshakeLogging.createTrustManagers(), null);
+  }
+
+  @Benchmark
+  public EnginePair handshake() throws Exception {
+    EnginePair pair = EnginePair.create(serverContext, clientContext, suite);
+    pair.handshake();
+    return pair;
+  }
+}
@@ -0,0 +1,53 @@
+package niossltest;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * ハンドシェイク済みの EnginePair で、payloadSize バイトを wrap して unwrap する速さ。
+ * 1 MiB は最大長のレコードに分割される。
+ * スループット（bytes/s）は ops/s に payloadSize を掛けて求める。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class RecordBenchmark {
+  /**
+   * "プロトコル/暗号スイート"。BenchmarkRunner は EnginePair#negotiableSuites のすべてを渡す。
+   */
+  @Param({"TLSv1.2/TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256", "TLSv1.3/TLS_AES_128_GCM_SHA256"})
+  public String suite;
+
+  @Param({"64", "1024", "16384", "1048576"})
+  public int payloadSize;
+
+  private EnginePair pair;
+  private ByteBuffer payload;
+
+  @Setup
+  public void setUp() throws Exception {
+    SSLContext serverContext = SSLContext.getInstance("TLS");
+    serverContext.init(HandshakeLogging.createKeyManagers(), HandshakeLogging.createTrustManagers(), null);
+    SSLContext clientContext = SSLContext.getInstance("TLS");
+    clientContext.init(null, HandshakeLogging.createTrustManagers(), null);
+
+    pair = EnginePair.create(serverContext, clientContext, suite);
+    pair.handshake();
+    payload = ByteBuffer.allocate(payloadSize);
+  }
+
+  @Benchmark
+  public long wrapAndUnwrap() throws Exception {
+    payload.clear();
+    return pair.transfer(payload);
+  }
+}
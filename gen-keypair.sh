@@ -20,51 +20,66 @@ keytool -export -v \
   -keystore src/main/resources/nio-ssl-test-ca.jks \
   -rfc
 
-keytool -genkeypair -v \
-  -alias nio-ssl-test-server \
-  -dname "CN=nio-ssl-test-server, OU=Example Org, O=Example Company, L=San Francisco, ST=California, C=US" \
-  -keystore src/main/resources/nio-ssl-test-server.jks \
-  -keypass 12345678 \
-  -storepass 12345678 \
-  -keyalg RSA \
-  -keysize 2048 \
-  -validity 385
+# CA で署名したサーバ証明書と、CA の証明書を入れた鍵ストアを作る
+# $1: ファイル名の接尾辞 $2: 鍵のアルゴリズム $3: 鍵の大きさ（EC なら曲線のビット数） $4: KeyUsage
+generate_server_keystore() {
+  local name=nio-ssl-test-server$1
 
-keytool -certreq -v \
-  -alias nio-ssl-test-server \
-  -keypass 12345678 \
-  -storepass 12345678 \
-  -keystore src/main/resources/nio-ssl-test-server.jks \
-  -file src/main/resources/nio-ssl-test-server.csr
+  keytool -genkeypair -v \
+    -alias nio-ssl-test-server \
+    -dname "CN=nio-ssl-test-server, OU=Example Org, O=Example Company, L=San Francisco, ST=California, C=US" \
+    -keystore src/main/resources/$name.jks \
+    -keypass 12345678 \
+    -storepass 12345678 \
+    -keyalg $2 \
+    -keysize $3 \
+    -validity 385
 
-keytool -gencert -v \
-  -alias nio-ssl-test-ca \
-  -keypass 12345678 \
-  -storepass 12345678 \
-  -keystore src/main/resources/nio-ssl-test-ca.jks \
-  -infile src/main/resources/nio-ssl-test-server.csr \
-  -outfile src/main/resources/nio-ssl-test-server.crt \
-  -ext KeyUsage:critical="digitalSignature,keyEncipherment" \
-  -ext EKU="serverAuth" \
-  -ext SAN="DNS:example.com" \
-  -rfc
+  keytool -certreq -v \
+    -alias nio-ssl-test-server \
+    -keypass 12345678 \
+    -storepass 12345678 \
+    -keystore src/main/resources/$name.jks \
+    -file src/main/resources/$name.csr
 
-keytool -import -v \
-  -alias nio-ssl-test-ca \
-  -file src/main/resources/nio-ssl-test-ca.crt \
-  -keystore src/main/resources/nio-ssl-test-server.jks \
-  -storetype JKS \
-  -storepass 12345678 << EOF
+  keytool -gencert -v \
+    -alias nio-ssl-test-ca \
+    -keypass 12345678 \
+    -storepass 12345678 \
+    -keystore src/main/resources/nio-ssl-test-ca.jks \
+    -infile src/main/resources/$name.csr \
+    -outfile src/main/resources/$name.crt \
+    -ext KeyUsage:critical="$4" \
+    -ext EKU="serverAuth" \
+    -ext SAN="DNS:example.com" \
+    -rfc
+
+  keytool -import -v \
+    -alias nio-ssl-test-ca \
+    -file src/main/resources/nio-ssl-test-ca.crt \
+    -keystore src/main/resources/$name.jks \
+    -storetype JKS \
+    -storepass 12345678 << EOF
 y
 EOF
 
-keytool -import -v \
-  -alias nio-ssl-test-server \
-  -file src/main/resources/nio-ssl-test-server.crt \
-  -keystore src/main/resources/nio-ssl-test-server.jks \
-  -storetype JKS \
-  -storepass 12345678
+  keytool -import -v \
+    -alias nio-ssl-test-server \
+    -file src/main/resources/$name.crt \
+    -keystore src/main/resources/$name.jks \
+    -storetype JKS \
+    -storepass 12345678
+
+  keytool -list -v \
+    -keystore src/main/resources/$name.jks \
+    -storepass 12345678
+}
+
+# HandshakeLogging などが読み込むデフォルトの鍵ストア
+generate_server_keystore "" RSA 2048 "digitalSignature,keyEncipherment"
 
-keytool -list -v \
-  -keystore src/main/resources/nio-ssl-test-server.jks \
-  -storepass 12345678
+# KeyTypeBenchmark で比べる鍵ストア。ECDSA の鍵は署名にしか使えない
+generate_server_keystore -rsa2048 RSA 2048 "digitalSignature,keyEncipherment"
+generate_server_keystore -rsa4096 RSA 4096 "digitalSignature,keyEncipherment"
+generate_server_keystore -ec256 EC 256 "digitalSignature"
+generate_server_keystore -ec384 EC 384 "digitalSignature"
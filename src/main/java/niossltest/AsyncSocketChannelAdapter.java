@@ -0,0 +1,205 @@
+package niossltest;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.CompletionHandler;
+
+/**
+ * AsynchronousSocketChannel を、non-blocking な SocketChannel と同じように読み書きできる ByteChannel に見せる。
+ * TlsConnection の状態機械を、Selector の代わりに CompletionHandler で動かすために使う。
+ *
+ * - read: 受信済みのデータがあればコピーして返す。なければ 0 を返し、裏で read を発行しておく
+ * - write: 送信中でなければ source を writeBuffer にコピーして write を発行する。送信中なら 0 を返す
+ * read / write が完了するたびに onReady を呼ぶので、そこで TlsConnection#onReadable を呼び直すこと。
+ * onReady は AsynchronousChannelGroup のスレッドから、read と write で並行に呼ばれうる。
+ *
+ * write が length を返した時点では、データはまだ writeBuffer にある。
+ * そのため close は発行中の write が終わるまで遅らせ、close_notify などの最後のパケットを捨てない。
+ *
+ * 発行中の read / write の buffer は OS が読み書きしているので、完了するまで触らない。
+ * そのため readBuffer と writeBuffer はコネクションが閉じるまで持ち続け、
+ * TlsConnection の buffer との間でコピーが 1 回ずつ増える。
+ */
+class AsyncSocketChannelAdapter implements ByteChannel {
+  private final AsynchronousSocketChannel channel;
+  private final Runnable onReady;
+  // 書き込みモード。read の完了後、TlsConnection が読むまでデータが残る
+  private final ByteBuffer readBuffer;
+  // 読み込みモード。発行中の write のデータ
+  private final ByteBuffer writeBuffer;
+  private boolean reading = false;
+  private boolean writing = false;
+  private boolean endOfStream = false;
+  // 発行中の write が終わったら閉じる
+  private boolean closeRequested = false;
+  private Throwable failure = null;
+
+  private final CompletionHandler<Integer, Void> readHandler = new CompletionHandler<Integer, Void>() {
+    @Override
+    public void completed(Integer read, Void attachment) {
+      synchronized (AsyncSocketChannelAdapter.this) {
+        reading = false;
+        if (read < 0) {
+          endOfStream = true;
+        }
+      }
+      onReady.run();
+    }
+
+    @Override
+    public void failed(Throwable e, Void attachment) {
+      synchronized (AsyncSocketChannelAdapter.this) {
+        reading = false;
+        failure = e;
+      }
+      onReady.run();
+    }
+  };
+
+  private final CompletionHandler<Integer, Void> writeHandler = new CompletionHandler<Integer, Void>() {
+    @Override
+    public void completed(Integer written, Void attachment) {
+      synchronized (AsyncSocketChannelAdapter.this) {
+        if (writeBuffer.hasRemaining()) {
+          // 書き切れなかった分を続けて書く
+          channel.write(writeBuffer, null, this);
+          return;
+        }
+        writing = false;
+      }
+      closeIfRequested();
+      onReady.run();
+    }
+
+    @Override
+    public void failed(Throwable e, Void attachment) {
+      synchronized (AsyncSocketChannelAdapter.this) {
+        writing = false;
+        failure = e;
+      }
+      closeIfRequested();
+      onReady.run();
+    }
+  };
+
+  /**
+   * @param bufferSize readBuffer と writeBuffer の大きさ。パケット 1 つ分以上にすること
+   */
+  AsyncSocketChannelAdapter(AsynchronousSocketChannel channel,
+                            BufferType bufferType,
+                            int bufferSize,
+                            Runnable onReady) {
+    this.channel = channel;
+    this.onReady = onReady;
+    this.readBuffer = bufferType.allocate(bufferSize);
+    this.writeBuffer = bufferType.allocate(bufferSize);
+    this.writeBuffer.flip();
+  }
+
+  @Override
+  public synchronized int read(ByteBuffer destination) throws IOException {
+    checkOpen();
+    if (reading) {
+      return 0;
+    }
+    if (readBuffer.position() == 0) {
+      if (endOfStream) {
+        return -1;
+      }
+      startRead();
+      return 0;
+    }
+    readBuffer.flip();
+    int length = Math.min(readBuffer.remaining(), destination.remaining());
+    ByteBuffer slice = readBuffer.duplicate();
+    slice.limit(slice.position() + length);
+    destination.put(slice);
+    readBuffer.position(readBuffer.position() + length);
+    readBuffer.compact();
+    if (readBuffer.position() == 0) {
+      // 次のパケットを先に読んでおく
+      startRead();
+    }
+    return length;
+  }
+
+  /**
+   * @return read の完了後、まだ TlsConnection に渡していないデータがあれば true
+   */
+  synchronized boolean hasBufferedInput() {
+    return !reading && readBuffer.position() > 0;
+  }
+
+  @Override
+  public synchronized int write(ByteBuffer source) throws IOException {
+    checkOpen();
+    if (writing) {
+      return 0;
+    }
+    int length = Math.min(source.remaining(), writeBuffer.capacity());
+    ByteBuffer slice = source.duplicate();
+    slice.limit(slice.position() + length);
+    writeBuffer.clear();
+    writeBuffer.put(slice);
+    writeBuffer.flip();
+    source.position(source.position() + length);
+    writing = true;
+    channel.write(writeBuffer, null, writeHandler);
+    return length;
+  }
+
+  @Override
+  public synchronized boolean isOpen() {
+    return !closeRequested && channel.isOpen();
+  }
+
+  /**
+   * 発行中の write があれば、書き終えるか失敗してから閉じる。
+   * 発行中の read は AsynchronousCloseException で失敗し、onReady が呼ばれる。
+   */
+  @Override
+  public void close() throws IOException {
+    synchronized (this) {
+      closeRequested = true;
+      if (writing) {
+        return;
+      }
+    }
+    channel.close();
+  }
+
+  private void closeIfRequested() {
+    synchronized (this) {
+      if (!closeRequested) {
+        return;
+      }
+    }
+    try {
+      channel.close();
+    } catch (IOException e) {
+      // ignore
+    }
+  }
+
+  private void startRead() {
+    if (!reading && !endOfStream && failure == null) {
+      reading = true;
+      channel.read(readBuffer, null, readHandler);
+    }
+  }
+
+  private void checkOpen() throws IOException {
+    if (closeRequested) {
+      throw new ClosedChannelException();
+    }
+    if (failure instanceof IOException) {
+      throw (IOException) failure;
+    }
+    if (failure != null) {
+      throw new IOException(failure);
+    }
+  }
+}
@@ -0,0 +1,285 @@
+package niossltest;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousServerSocketChannel;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.ShutdownChannelGroupException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+
+/**
+ * AsynchronousServerSocketChannel で accept し、AsynchronousSocketChannel の上で
+ * TlsConnection を進めるサーバ。TlsServer と比べるためのもの。
+ *
+ * OP_READ / OP_WRITE を待つ代わりに、AsyncSocketChannelAdapter の read / write の完了を
+ * AsynchronousChannelGroup の threads 個のスレッドで受け取り、TlsConnection#onReadable を呼ぶ。
+ * 状態機械は TlsServer と同じ。NEED_TASK のタスクも、そのままグループのスレッドで実行する。
+ *
+ * 1 つのコネクションの完了通知は別々のスレッドに届きうるので、AsyncConnection#run で直列化する。
+ * コネクションがどのスレッドで進むかは決まっていないので、BufferPool はコネクションごとに持つ。
+ */
+class AsyncTlsServer implements Server, TlsConnection.Listener {
+  private static final int BACKLOG = 1024;
+  // バルク転送でレコードごとに buffer を確保し直さないよう、1 つだけプールする
+  private static final int MAX_POOLED_BUFFERS = 1;
+  // accept に失敗したら（ファイルディスクリプタが尽きたときなど）この間 accept を止める
+  private static final long ACCEPT_BACKOFF_MILLIS = 100;
+
+  /**
+   * 1 本のコネクション。完了通知が届くたびに run が呼ばれる。
+   * 処理中に届いた通知は数えておき、処理中のスレッドがその分だけ進め直す。
+   * 同時に TlsConnection を触るスレッドは常に 1 つだけになる。
+   */
+  private class AsyncConnection implements Runnable {
+    private final AtomicInteger pendingEvents = new AtomicInteger();
+    private AsyncSocketChannelAdapter channel;
+    private TlsConnection connection;
+
+    void start(AsynchronousSocketChannel socketChannel) {
+      SSLEngine engine = contextFactory.createServerEngine();
+      SSLSession session = engine.getSession();
+      channel = new AsyncSocketChannelAdapter(socketChannel, bufferType, session.getPacketBufferSize(), this);
+      connection = new TlsConnection(channel, engine, AsyncTlsServer.this,
+          BufferPool.forPackets(bufferType, session, MAX_POOLED_BUFFERS),
+          BufferPool.forApplicationData(bufferType, session, MAX_POOLED_BUFFERS),
+          null);
+      openConnections.add(this);
+      try {
+        engine.beginHandshake();
+      } catch (IOException e) {
+        close(e);
+        return;
+      }
+      run();
+    }
+
+    @Override
+    public void run() {
+      if (pendingEvents.getAndIncrement() != 0) {
+        // 別のスレッド（あるいは、このスレッドの呼び出し元）が処理中
+        return;
+      }
+      int events = 1;
+      do {
+        drive();
+        events = pendingEvents.addAndGet(-events);
+      } while (events != 0);
+    }
+
+    private void drive() {
+      if (connection.isClosed()) {
+        close(null);
+        return;
+      }
+      try {
+        long read;
+        do {
+          read = connection.networkBytesRead();
+          connection.onReadable();
+          // TlsConnection の受信用 buffer に入りきらなかった分を続けて渡す
+        } while (!connection.isClosed()
+            && channel.hasBufferedInput()
+            && connection.networkBytesRead() != read);
+      } catch (IOException e) {
+        close(e);
+        return;
+      }
+      if (connection.isClosed()) {
+        close(null);
+      }
+    }
+
+    private void close(IOException cause) {
+      if (!openConnections.remove(this)) {
+        return;
+      }
+      if (cause != null && running) {
+        System.out.println("Closes connection: " + cause);
+      }
+      try {
+        connection.close();
+      } catch (IOException e) {
+        // ignore
+      }
+    }
+
+    void closeChannel() {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        // ignore
+      }
+    }
+  }
+
+  private final TlsContextFactory contextFactory;
+  private final BufferType bufferType;
+  private final AsynchronousChannelGroup group;
+  private final AsynchronousServerSocketChannel serverSocketChannel;
+  private final Set<AsyncConnection> openConnections = ConcurrentHashMap.newKeySet();
+  private final CountDownLatch stopped = new CountDownLatch(1);
+  // グループのスレッドを待たせずに accept をやり直すためのスレッド
+  private final ScheduledExecutorService acceptRetryScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "async-accept-retry");
+    thread.setDaemon(true);
+    return thread;
+  });
+  private volatile boolean running = true;
+
+  private final LongAdder completedHandshakes = new LongAdder();
+  private final LongAdder receivedBytes = new LongAdder();
+
+  private final CompletionHandler<AsynchronousSocketChannel, Void> acceptHandler =
+      new CompletionHandler<AsynchronousSocketChannel, Void>() {
+        @Override
+        public void completed(AsynchronousSocketChannel socketChannel, Void attachment) {
+          serverSocketChannel.accept(null, this);
+          new AsyncConnection().start(socketChannel);
+        }
+
+        /**
+         * shutdown されたか、ServerSocketChannel が閉じていれば止める。
+         * それ以外の失敗では、ACCEPT_BACKOFF_MILLIS だけ待ってから accept をやり直す。
+         */
+        @Override
+        public void failed(Throwable e, Void attachment) {
+          if (!running || e instanceof ClosedChannelException || !serverSocketChannel.isOpen()) {
+            if (running) {
+              System.out.println("Stops accepting: " + e);
+            }
+            stopped.countDown();
+            return;
+          }
+          System.out.println("Pauses accepting: " + e);
+          acceptRetryScheduler.schedule(this::retry, ACCEPT_BACKOFF_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        private void retry() {
+          try {
+            serverSocketChannel.accept(null, this);
+          } catch (ShutdownChannelGroupException e) {
+            // close された
+            stopped.countDown();
+          }
+        }
+      };
+
+  /**
+   * @param threads AsynchronousChannelGroup のスレッド数
+   */
+  AsyncTlsServer(TlsContextFactory contextFactory,
+                 InetSocketAddress address,
+                 BufferType bufferType,
+                 int threads) throws IOException {
+    this.contextFactory = contextFactory;
+    this.bufferType = bufferType;
+    AtomicInteger threadIndex = new AtomicInteger();
+    this.group = AsynchronousChannelGroup.withFixedThreadPool(threads,
+        runnable -> new Thread(runnable, "async-" + threadIndex.getAndIncrement()));
+    this.serverSocketChannel = AsynchronousServerSocketChannel.open(group);
+    this.serverSocketChannel.bind(address, BACKLOG);
+  }
+
+  /**
+   * Usage: AsyncTlsServer [heap|direct] [threads]
+   */
+  public static void main(String[] args) throws Exception {
+    BufferType bufferType = BufferType.parse(args, 0);
+    int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+    InetSocketAddress address = new InetSocketAddress("127.0.0.1", 24224);
+    try (TlsContextFactory contextFactory = TlsContextFactory.forServer();
+         AsyncTlsServer server = new AsyncTlsServer(contextFactory, address, bufferType, threads)) {
+      contextFactory.startReloading();
+      System.out.println("Listening on " + address + " with " + bufferType + " buffers and "
+          + threads + " async threads");
+      server.run();
+    }
+  }
+
+  /**
+   * accept を始め、shutdown されるまで待つ。実際の処理はグループのスレッドで行う。
+   */
+  @Override
+  public void run() throws IOException {
+    serverSocketChannel.accept(null, acceptHandler);
+    try {
+      stopped.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Override
+  public InetSocketAddress localAddress() throws IOException {
+    return (InetSocketAddress) serverSocketChannel.getLocalAddress();
+  }
+
+  int activeConnections() {
+    return openConnections.size();
+  }
+
+  @Override
+  public long completedHandshakes() {
+    return completedHandshakes.sum();
+  }
+
+  @Override
+  public long receivedBytes() {
+    return receivedBytes.sum();
+  }
+
+  /**
+   * accept を止める。処理中のコネクションは close まで続く。
+   */
+  @Override
+  public void shutdown() {
+    running = false;
+    try {
+      serverSocketChannel.close();
+    } catch (IOException e) {
+      // ignore
+    }
+    stopped.countDown();
+  }
+
+  /**
+   * 処理中のコネクションを閉じ、グループのスレッドを止める。
+   */
+  @Override
+  public void close() throws IOException {
+    shutdown();
+    acceptRetryScheduler.shutdownNow();
+    for (AsyncConnection connection : openConnections) {
+      connection.closeChannel();
+    }
+    group.shutdownNow();
+    try {
+      group.awaitTermination(10, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Override
+  public void onHandshakeFinished(TlsConnection connection) {
+    completedHandshakes.increment();
+  }
+
+  @Override
+  public void onApplicationData(TlsConnection connection, ByteBuffer data) {
+    receivedBytes.add(data.remaining());
+  }
+}
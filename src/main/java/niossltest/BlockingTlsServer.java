@@ -0,0 +1,200 @@
+package niossltest;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+
+/**
+ * コネクションごとに virtual thread を 1 つ起こし、blocking な SocketChannel の上で
+ * TlsConnection を進めるサーバ。TlsServer と比べるためのもの。JDK 21 以降でのみ動く。
+ *
+ * SocketChannel が blocking なので、TlsConnection#onReadable はパケットが届くまで、
+ * flush は書き切るまでブロックする。状態機械は TlsServer と同じで、
+ * OP_READ / OP_WRITE を待つ代わりにスレッドがブロックするだけ。
+ * NEED_TASK のタスクもそのスレッドで実行する。
+ *
+ * 各スレッドは自分の BufferPool を持ち、パケット用とアプリケーションデータ用を 1 つずつ取っておいて使い回す。
+ * read ごとに buffer を確保し直さずに済む代わりに、read でブロックしている間も受信用の buffer を借りたままなので、
+ * アイドルなコネクションでも 2〜3 個の buffer とスレッドのスタックを使う。
+ */
+class BlockingTlsServer implements Server, TlsConnection.Listener {
+  private static final int BACKLOG = 1024;
+  // BufferPool はスレッドごとなので、そのコネクションが 1 回の read で使う分だけ取っておけばよい
+  private static final int MAX_POOLED_BUFFERS = 1;
+  // accept に失敗したら（ファイルディスクリプタが尽きたときなど）この間 accept を止める
+  private static final long ACCEPT_BACKOFF_MILLIS = 100;
+
+  private final TlsContextFactory contextFactory;
+  private final ServerSocketChannel serverSocketChannel;
+  private final BufferType bufferType;
+  private final ExecutorService connectionExecutor = DelegatedTaskExecutors.virtualThreads();
+  // close で止めるために、処理中のコネクションの SocketChannel を覚えておく
+  private final Set<SocketChannel> openChannels = ConcurrentHashMap.newKeySet();
+  private volatile boolean running = true;
+
+  private final AtomicInteger activeConnections = new AtomicInteger();
+  private final LongAdder completedHandshakes = new LongAdder();
+  private final LongAdder receivedBytes = new LongAdder();
+
+  BlockingTlsServer(TlsContextFactory contextFactory,
+                    InetSocketAddress address,
+                    BufferType bufferType) throws IOException {
+    this.contextFactory = contextFactory;
+    this.bufferType = bufferType;
+    this.serverSocketChannel = ServerSocketChannel.open();
+    this.serverSocketChannel.bind(address, BACKLOG);
+  }
+
+  /**
+   * Usage: BlockingTlsServer [heap|direct]
+   */
+  public static void main(String[] args) throws Exception {
+    BufferType bufferType = BufferType.parse(args, 0);
+    InetSocketAddress address = new InetSocketAddress("127.0.0.1", 24224);
+    try (TlsContextFactory contextFactory = TlsContextFactory.forServer();
+         BlockingTlsServer server = new BlockingTlsServer(contextFactory, address, bufferType)) {
+      contextFactory.startReloading();
+      System.out.println("Listening on " + address + " with " + bufferType + " buffers and virtual threads");
+      server.run();
+    }
+  }
+
+  /**
+   * shutdown されるまで accept し続ける。
+   * accept に失敗しても止まらず、ACCEPT_BACKOFF_MILLIS だけ待ってから続ける。
+   */
+  @Override
+  public void run() throws IOException {
+    while (running) {
+      SocketChannel channel;
+      try {
+        channel = serverSocketChannel.accept();
+      } catch (ClosedChannelException e) {
+        if (!running) {
+          // shutdown された。running を見てから accept するまでの間に閉じられた場合も含む
+          return;
+        }
+        throw e;
+      } catch (IOException e) {
+        System.out.println("Pauses accepting: " + e);
+        try {
+          Thread.sleep(ACCEPT_BACKOFF_MILLIS);
+        } catch (InterruptedException interrupted) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+        continue;
+      }
+      openChannels.add(channel);
+      activeConnections.incrementAndGet();
+      connectionExecutor.execute(() -> serve(channel));
+    }
+  }
+
+  @Override
+  public InetSocketAddress localAddress() throws IOException {
+    return (InetSocketAddress) serverSocketChannel.getLocalAddress();
+  }
+
+  int activeConnections() {
+    return activeConnections.get();
+  }
+
+  @Override
+  public long completedHandshakes() {
+    return completedHandshakes.sum();
+  }
+
+  @Override
+  public long receivedBytes() {
+    return receivedBytes.sum();
+  }
+
+  /**
+   * accept を止める。処理中のコネクションは close まで続く。
+   */
+  @Override
+  public void shutdown() {
+    running = false;
+    try {
+      serverSocketChannel.close();
+    } catch (IOException e) {
+      // ignore
+    }
+  }
+
+  /**
+   * 処理中のコネクションの SocketChannel を閉じる。
+   * TlsConnection は各スレッドがブロックから抜けた後で閉じる。
+   */
+  @Override
+  public void close() throws IOException {
+    shutdown();
+    for (SocketChannel channel : openChannels) {
+      channel.close();
+    }
+    connectionExecutor.shutdown();
+  }
+
+  @Override
+  public void onHandshakeFinished(TlsConnection connection) {
+    completedHandshakes.increment();
+  }
+
+  @Override
+  public void onApplicationData(TlsConnection connection, ByteBuffer data) {
+    receivedBytes.add(data.remaining());
+  }
+
+  private void serve(SocketChannel channel) {
+    TlsConnection connection = null;
+    try {
+      SSLEngine engine = contextFactory.createServerEngine();
+      engine.beginHandshake();
+      SSLSession session = engine.getSession();
+      connection = new TlsConnection(channel, engine, this,
+          BufferPool.forPackets(bufferType, session, MAX_POOLED_BUFFERS),
+          BufferPool.forApplicationData(bufferType, session, MAX_POOLED_BUFFERS),
+          null);
+
+      connection.process();
+      while (!connection.isClosed()) {
+        connection.onReadable();
+      }
+    } catch (IOException e) {
+      if (running) {
+        System.out.println("Closes " + channel + ": " + e);
+      }
+    } finally {
+      if (connection != null) {
+        closeQuietly(connection);
+      } else {
+        try {
+          channel.close();
+        } catch (IOException e) {
+          // ignore
+        }
+      }
+      openChannels.remove(channel);
+      activeConnections.decrementAndGet();
+    }
+  }
+
+  private static void closeQuietly(TlsConnection connection) {
+    try {
+      connection.close();
+    } catch (IOException e) {
+      // ignore
+    }
+  }
+}
@@ -0,0 +1,113 @@
+package niossltest;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import javax.net.ssl.SSLSession;
+
+/**
+ * 同じ大きさの ByteBuffer を使い回すためのプール。
+ * コネクションは送受信待ちのデータがある間だけ buffer を借り、
+ * アイドルになったら返す。
+ *
+ * スレッドセーフではないので、Selector スレッドごとに作ること。
+ */
+class BufferPool {
+  private final BufferType bufferType;
+  private final int bufferSize;
+  private final int maxPooledBuffers;
+  private final ArrayDeque<ByteBuffer> pooledBuffers = new ArrayDeque<>();
+
+  private long hits = 0;
+  private long misses = 0;
+  private long leasedBuffers = 0;
+
+  BufferPool(BufferType bufferType, int bufferSize, int maxPooledBuffers) {
+    this.bufferType = bufferType;
+    this.bufferSize = bufferSize;
+    this.maxPooledBuffers = maxPooledBuffers;
+  }
+
+  /**
+   * SSLSession#getPacketBufferSize に合わせたプール。
+   */
+  static BufferPool forPackets(BufferType bufferType, SSLSession session, int maxPooledBuffers) {
+    return new BufferPool(bufferType, session.getPacketBufferSize(), maxPooledBuffers);
+  }
+
+  /**
+   * SSLSession#getApplicationBufferSize に合わせたプール。
+   */
+  static BufferPool forApplicationData(BufferType bufferType,
+                                       SSLSession session,
+                                       int maxPooledBuffers) {
+    return new BufferPool(bufferType, session.getApplicationBufferSize(), maxPooledBuffers);
+  }
+
+  int bufferSize() {
+    return bufferSize;
+  }
+
+  BufferType bufferType() {
+    return bufferType;
+  }
+
+  /**
+   * @return clear 済みの buffer
+   */
+  ByteBuffer acquire() {
+    leasedBuffers++;
+    ByteBuffer buffer = pooledBuffers.pollFirst();
+    if (buffer != null) {
+      hits++;
+      return buffer;
+    }
+    misses++;
+    return bufferType.allocate(bufferSize);
+  }
+
+  /**
+   * プールを通さずに、同じ種類の buffer を確保する。
+   * 大きさが bufferSize と異なるので、release しても捨てられる。
+   */
+  ByteBuffer allocate(int capacity) {
+    return bufferType.allocate(capacity);
+  }
+
+  /**
+   * 大きさが合わない buffer（拡張されたものなど）は捨てる。
+   */
+  void release(ByteBuffer buffer) {
+    leasedBuffers--;
+    if (buffer.capacity() != bufferSize || pooledBuffers.size() >= maxPooledBuffers) {
+      return;
+    }
+    buffer.clear();
+    pooledBuffers.offerFirst(buffer);
+  }
+
+  long hits() {
+    return hits;
+  }
+
+  long misses() {
+    return misses;
+  }
+
+  /**
+   * 貸し出し中とプール中の合計バイト数。
+   */
+  long bytesHeld() {
+    return (leasedBuffers + pooledBuffers.size()) * (long) bufferSize;
+  }
+
+  @Override
+  public String toString() {
+    return "BufferPool(type=" + bufferType
+        + " size=" + bufferSize
+        + " hits=" + hits
+        + " misses=" + misses
+        + " leased=" + leasedBuffers
+        + " pooled=" + pooledBuffers.size()
+        + " bytesHeld=" + bytesHeld() + ")";
+  }
+}
@@ -0,0 +1,34 @@
+package niossltest;
+
+import java.nio.ByteBuffer;
+
+/**
+ * ByteBuffer の確保方法。
+ * HEAP の buffer を SocketChannel に渡すと、JDK 内部で一時的な direct buffer へのコピーが発生する。
+ */
+enum BufferType {
+  HEAP {
+    @Override
+    ByteBuffer allocate(int capacity) {
+      return ByteBuffer.allocate(capacity);
+    }
+  },
+  DIRECT {
+    @Override
+    ByteBuffer allocate(int capacity) {
+      return ByteBuffer.allocateDirect(capacity);
+    }
+  };
+
+  abstract ByteBuffer allocate(int capacity);
+
+  /**
+   * コマンドライン引数から選ぶ。指定がなければ HEAP。
+   */
+  static BufferType parse(String[] args, int index) {
+    if (args.length <= index) {
+      return HEAP;
+    }
+    return valueOf(args[index].toUpperCase());
+  }
+}
@@ -0,0 +1,107 @@
+package niossltest;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+
+/**
+ * HEAP と DIRECT の BufferType で、ループバック越しのバルク転送の速さを比べる。
+ * クライアントとサーバの両方が同じ BufferType を使う。
+ *
+ * Usage: BufferTypeBenchmark [MiB per run] [runs]
+ */
+public class BufferTypeBenchmark {
+  private static final int MAX_POOLED_BUFFERS = 4;
+
+  public static void main(String[] args) throws Exception {
+    long bytesPerRun = (args.length > 0 ? Long.parseLong(args[0]) : 256) * 1024 * 1024;
+    int runs = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+    SSLContext serverContext = SSLContext.getInstance("TLS");
+    serverContext.init(HandshakeLogging.createKeyManagers(), HandshakeLogging.createTrustManagers(), null);
+    SSLContext clientContext = SSLContext.getInstance("TLS");
+    clientContext.init(null, HandshakeLogging.createTrustManagers(), null);
+
+    for (int i = 0; i < runs; i++) {
+      for (BufferType bufferType : BufferType.values()) {
+        long elapsedNanos = run(serverContext, clientContext, bufferType, bytesPerRun);
+        double megabytesPerSecond = bytesPerRun / 1e6 / (elapsedNanos / 1e9);
+        System.out.printf("run=%d type=%s bytes=%d elapsed=%dms throughput=%.1fMB/s%n",
+            i, bufferType, bytesPerRun, TimeUnit.NANOSECONDS.toMillis(elapsedNanos), megabytesPerSecond);
+      }
+    }
+  }
+
+  /**
+   * @return ハンドシェイク完了後、bytes を送ってサーバが受け取り終えるまでの時間
+   */
+  private static long run(SSLContext serverContext,
+                          SSLContext clientContext,
+                          BufferType bufferType,
+                          long bytes) throws Exception {
+    TlsServer server = new TlsServer(serverContext, new InetSocketAddress("127.0.0.1", 0), bufferType, null);
+    Thread serverThread = new Thread(() -> {
+      try {
+        server.run();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }, "server");
+    serverThread.start();
+
+    try (Selector selector = Selector.open();
+         SocketChannel channel = SocketChannel.open(server.localAddress())) {
+      channel.configureBlocking(false);
+      SSLEngine engine = clientContext.createSSLEngine();
+      engine.setUseClientMode(true);
+      engine.beginHandshake();
+
+      BufferPool packetBufferPool = BufferPool.forPackets(bufferType, engine.getSession(), MAX_POOLED_BUFFERS);
+      BufferPool applicationBufferPool =
+          BufferPool.forApplicationData(bufferType, engine.getSession(), MAX_POOLED_BUFFERS);
+      TlsConnection connection = new TlsConnection(channel, engine, new TlsConnection.Listener() {
+      }, packetBufferPool, applicationBufferPool, null);
+      SelectionKey key = channel.register(selector, connection.interestOps(), connection);
+
+      ByteBuffer payload = applicationBufferPool.allocate(applicationBufferPool.bufferSize());
+      long sentBytes = 0;
+      long start = 0;
+      connection.process();
+      while (server.receivedBytes() < bytes) {
+        if (connection.isHandshakeFinished()
+            && sentBytes < bytes
+            && connection.interestOps() == SelectionKey.OP_READ) {
+          if (start == 0) {
+            start = System.nanoTime();
+          }
+          payload.clear();
+          payload.limit((int) Math.min(payload.capacity(), bytes - sentBytes));
+          sentBytes += connection.write(payload);
+          connection.process();
+          continue;
+        }
+
+        key.interestOps(connection.interestOps());
+        selector.select(1);
+        if (key.isValid() && key.isReadable()) {
+          connection.onReadable();
+        } else if (key.isValid() && key.isWritable()) {
+          connection.onWritable();
+        }
+        selector.selectedKeys().clear();
+      }
+      return System.nanoTime() - start;
+    } finally {
+      server.shutdown();
+      serverThread.join();
+      server.close();
+    }
+  }
+}
@@ -0,0 +1,137 @@
+package niossltest;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SSLEngine#getDelegatedTask のタスクを実行する Executor。
+ */
+final class DelegatedTaskExecutors {
+  private DelegatedTaskExecutors() {
+  }
+
+  /**
+   * 別の ExecutorService の上で、同時に実行するタスクを permits 個までに抑える。
+   * 許可は実行する側のスレッドで待つので、execute を呼んだ Selector スレッドはブロックしない。
+   */
+  private static class BoundedExecutorService extends AbstractExecutorService {
+    private final ExecutorService delegate;
+    private final Semaphore permits;
+
+    BoundedExecutorService(ExecutorService delegate, int permits) {
+      this.delegate = delegate;
+      this.permits = new Semaphore(permits);
+    }
+
+    @Override
+    public void execute(Runnable task) {
+      delegate.execute(() -> {
+        permits.acquireUninterruptibly();
+        try {
+          task.run();
+        } finally {
+          permits.release();
+        }
+      });
+    }
+
+    @Override
+    public void shutdown() {
+      delegate.shutdown();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+      return delegate.shutdownNow();
+    }
+
+    @Override
+    public boolean isShutdown() {
+      return delegate.isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated() {
+      return delegate.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+      return delegate.awaitTermination(timeout, unit);
+    }
+  }
+
+  /**
+   * コア数のスレッドを持つ ForkJoinPool。
+   */
+  static ExecutorService forkJoin() {
+    return forkJoin(Runtime.getRuntime().availableProcessors());
+  }
+
+  static ExecutorService forkJoin(int parallelism) {
+    return new ForkJoinPool(parallelism);
+  }
+
+  /**
+   * @return virtualThreads を使えるなら（JDK 21 以降なら）true
+   */
+  static boolean virtualThreadsAvailable() {
+    try {
+      Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return true;
+    } catch (NoSuchMethodException e) {
+      return false;
+    }
+  }
+
+  /**
+   * タスクごとに virtual thread を起こす Executor。同時に動くスレッドの数に上限はない。
+   * JDK 21 以降でのみ使える。このプロジェクトは JDK 8 でもビルドするのでリフレクションで呼ぶ。
+   */
+  static ExecutorService virtualThreads() {
+    try {
+      Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService) method.invoke(null);
+    } catch (ReflectiveOperationException e) {
+      throw new UnsupportedOperationException("Virtual threads require JDK 21 or later", e);
+    }
+  }
+
+  /**
+   * タスクごとに virtual thread を起こすが、同時に実行するのはコア数までに抑える。
+   * 再接続が集中しても、委譲タスクの暗号処理がコア数を超えて並ばない。
+   * 待っている間の virtual thread は park しているだけなので、キャリアスレッドは使わない。
+   */
+  static ExecutorService boundedVirtualThreads() {
+    return boundedVirtualThreads(Runtime.getRuntime().availableProcessors());
+  }
+
+  static ExecutorService boundedVirtualThreads(int parallelism) {
+    return new BoundedExecutorService(virtualThreads(), parallelism);
+  }
+
+  /**
+   * コマンドライン引数から選ぶ。
+   *
+   * @return inline もしくは指定がなければ null（Selector スレッドで実行する）
+   */
+  static ExecutorService parse(String[] args, int index) {
+    String name = args.length > index ? args[index] : "inline";
+    switch (name) {
+      case "inline":
+        return null;
+      case "forkjoin":
+        return forkJoin();
+      case "virtual":
+        return boundedVirtualThreads();
+      default:
+        throw new IllegalArgumentException("Unknown delegated task executor: " + name);
+    }
+  }
+}
@@ -0,0 +1,220 @@
+package niossltest;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+
+/**
+ * Socket を介さず、メモリ上で直接パケットを受け渡すクライアントとサーバの SSLEngine。
+ * 暗号処理と SSLEngine 自体のコストだけを測るために使う。
+ *
+ * clientToServer / serverToClient は書き込みモードのまま保持し、
+ * 送り手は wrap で追記、受け手は flip して unwrap した後 compact する。
+ */
+class EnginePair {
+  private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+  private static final String SIGNALING_CIPHER_SUITE = "TLS_EMPTY_RENEGOTIATION_INFO_SCSV";
+
+  private final SSLEngine client;
+  private final SSLEngine server;
+  private final ByteBuffer clientToServer;
+  private final ByteBuffer serverToClient;
+  private final ByteBuffer clientApplicationBuffer;
+  private final ByteBuffer serverApplicationBuffer;
+
+  private EnginePair(SSLEngine client, SSLEngine server) {
+    this.client = client;
+    this.server = server;
+    // 1 回の wrap で複数レコードを出すことがあるので余裕を持たせる
+    int packetBufferSize = client.getSession().getPacketBufferSize() * 4;
+    int applicationBufferSize = client.getSession().getApplicationBufferSize();
+    this.clientToServer = ByteBuffer.allocate(packetBufferSize);
+    this.serverToClient = ByteBuffer.allocate(packetBufferSize);
+    this.clientApplicationBuffer = ByteBuffer.allocate(applicationBufferSize);
+    this.serverApplicationBuffer = ByteBuffer.allocate(applicationBufferSize);
+  }
+
+  /**
+   * @param protocol    null ならデフォルトのプロトコル
+   * @param cipherSuite null ならデフォルトの暗号スイート
+   */
+  static EnginePair create(SSLContext serverContext,
+                           SSLContext clientContext,
+                           String protocol,
+                           String cipherSuite) throws SSLException {
+    SSLEngine client = clientContext.createSSLEngine();
+    client.setUseClientMode(true);
+    SSLEngine server = serverContext.createSSLEngine();
+    server.setUseClientMode(false);
+    server.setNeedClientAuth(false);
+    for (SSLEngine engine : new SSLEngine[] {client, server}) {
+      if (protocol != null) {
+        engine.setEnabledProtocols(new String[] {protocol});
+      }
+      if (cipherSuite != null) {
+        engine.setEnabledCipherSuites(new String[] {cipherSuite});
+      }
+    }
+    client.beginHandshake();
+    server.beginHandshake();
+    return new EnginePair(client, server);
+  }
+
+  /**
+   * クライアントの SSLEngine で有効なプロトコルと暗号スイートの組のうち、
+   * 実際にハンドシェイクが成立するもの。
+   * ProtocolPrinter が表示するものと同じ一覧から、使える鍵のないものを除いている。
+   *
+   * @return "プロトコル/暗号スイート" 形式の文字列
+   */
+  static List<String> negotiableSuites(SSLContext serverContext, SSLContext clientContext) {
+    return negotiableSuites(serverContext, clientContext, false);
+  }
+
+  /**
+   * @param includeDisabled true なら、有効なものだけでなくサポートしているすべての組を試す。
+   *                        jdk.tls.disabledAlgorithms で禁止されているものは、それでもハンドシェイクが成立しない
+   */
+  static List<String> negotiableSuites(SSLContext serverContext,
+                                       SSLContext clientContext,
+                                       boolean includeDisabled) {
+    SSLEngine engine = clientContext.createSSLEngine();
+    String[] protocols = includeDisabled ? engine.getSupportedProtocols() : engine.getEnabledProtocols();
+    String[] cipherSuites = includeDisabled ? engine.getSupportedCipherSuites() : engine.getEnabledCipherSuites();
+    List<String> suites = new ArrayList<>();
+    for (String protocol : protocols) {
+      for (String cipherSuite : cipherSuites) {
+        if (cipherSuite.equals(SIGNALING_CIPHER_SUITE)) {
+          continue;
+        }
+        try {
+          EnginePair pair = create(serverContext, clientContext, protocol, cipherSuite);
+          pair.handshake();
+          if (protocol.equals(pair.client.getSession().getProtocol())) {
+            suites.add(protocol + "/" + cipherSuite);
+          }
+        } catch (SSLException | IllegalArgumentException e) {
+          // このプロトコルでは使えない暗号スイート
+        }
+      }
+    }
+    return suites;
+  }
+
+  /**
+   * "プロトコル/暗号スイート" 形式の文字列から作る。
+   */
+  static EnginePair create(SSLContext serverContext,
+                           SSLContext clientContext,
+                           String suite) throws SSLException {
+    String[] protocolAndCipherSuite = suite.split("/", 2);
+    return create(serverContext, clientContext, protocolAndCipherSuite[0], protocolAndCipherSuite[1]);
+  }
+
+  SSLEngine client() {
+    return client;
+  }
+
+  SSLEngine server() {
+    return server;
+  }
+
+  /**
+   * 両方の SSLEngine がハンドシェイクを終えるまで、交互に進める。
+   * TLS 1.3 の NewSessionTicket のような、ハンドシェイク後のメッセージも読み切る。
+   */
+  void handshake() throws SSLException {
+    while (true) {
+      boolean progressed = false;
+      while (step(client, serverToClient, clientToServer, clientApplicationBuffer)) {
+        progressed = true;
+      }
+      while (step(server, clientToServer, serverToClient, serverApplicationBuffer)) {
+        progressed = true;
+      }
+      if (!progressed) {
+        break;
+      }
+    }
+    if (isHandshaking(client) || isHandshaking(server)) {
+      throw new SSLException("Handshake stalled: client=" + client.getHandshakeStatus()
+          + " server=" + server.getHandshakeStatus());
+    }
+  }
+
+  /**
+   * クライアントで source を暗号化し、サーバで復号する。
+   * 復号されたデータは読み捨てる。
+   *
+   * @return サーバが受け取ったバイト数
+   */
+  long transfer(ByteBuffer source) throws SSLException {
+    long received = 0;
+    while (source.hasRemaining()) {
+      SSLEngineResult wrapResult = client.wrap(source, clientToServer);
+      if (wrapResult.getStatus() != SSLEngineResult.Status.OK) {
+        throw new SSLException("Unexpected wrap result: " + wrapResult);
+      }
+      clientToServer.flip();
+      while (clientToServer.hasRemaining()) {
+        SSLEngineResult unwrapResult = server.unwrap(clientToServer, serverApplicationBuffer);
+        if (unwrapResult.getStatus() != SSLEngineResult.Status.OK) {
+          throw new SSLException("Unexpected unwrap result: " + unwrapResult);
+        }
+        received += serverApplicationBuffer.position();
+        serverApplicationBuffer.clear();
+      }
+      clientToServer.clear();
+    }
+    return received;
+  }
+
+  /**
+   * @return 何らかの進展があれば true
+   */
+  private static boolean step(SSLEngine engine,
+                              ByteBuffer inbound,
+                              ByteBuffer outbound,
+                              ByteBuffer applicationBuffer) throws SSLException {
+    switch (engine.getHandshakeStatus()) {
+      case NEED_WRAP:
+        return engine.wrap(EMPTY, outbound).getStatus() == SSLEngineResult.Status.OK;
+      case NEED_TASK:
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+          task.run();
+        }
+        return true;
+      case NOT_HANDSHAKING:
+        if (inbound.position() == 0) {
+          return false;
+        }
+        return unwrap(engine, inbound, applicationBuffer);
+      default:
+        // NEED_UNWRAP (及び JDK 9 以降の NEED_UNWRAP_AGAIN)
+        return unwrap(engine, inbound, applicationBuffer);
+    }
+  }
+
+  private static boolean unwrap(SSLEngine engine,
+                                ByteBuffer inbound,
+                                ByteBuffer applicationBuffer) throws SSLException {
+    inbound.flip();
+    SSLEngineResult result;
+    try {
+      result = engine.unwrap(inbound, applicationBuffer);
+    } finally {
+      inbound.compact();
+    }
+    applicationBuffer.clear();
+    return result.getStatus() == SSLEngineResult.Status.OK;
+  }
+
+  private static boolean isHandshaking(SSLEngine engine) {
+    return engine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING;
+  }
+}
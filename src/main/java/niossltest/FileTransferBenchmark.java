@@ -0,0 +1,120 @@
+package niossltest;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import javax.net.ssl.SSLContext;
+
+/**
+ * バッファリングしたログのチャンクファイルを送る場合を模して、ファイルを TLS で送り、受け手でファイルに書き出す。
+ * - stream: InputStream から読んで TlsConnection#send で送り、OutputStream に書き出す。buffer はヒープ
+ * - mmap: TlsConnection#sendFile で MappedByteBuffer から直接 wrap し、
+ *         DIRECT の applicationBuffer から FileChannel に書き出す。ファイルの中身はヒープを通らない。
+ *         パケットの buffer は HEAP のまま。DIRECT にすると、SSLEngine が暗号化のたびに
+ *         一時的な byte[] にコピーするので、かえってヒープの確保が増える（JDK 21 では転送量の 2 倍以上）
+ * それぞれのスループットと、ヒープの最大使用量、転送中にヒープに確保したバイト数を表示する。
+ * LoopbackPair は 1 スレッドで両端を動かすので、確保したバイト数はこのスレッドの分だけ数えればよい。
+ * MEMORY の Transport は MemoryChannel がヒープにコピーするので、SOCKET で比べること。
+ *
+ * Usage: FileTransferBenchmark [MiB] [socket|memory] [runs]
+ */
+public class FileTransferBenchmark {
+  private static final int MAX_POOLED_BUFFERS = 4;
+  private static final int CHUNK_SIZE = 1024 * 1024;
+
+  public static void main(String[] args) throws Exception {
+    long bytes = (args.length > 0 ? Long.parseLong(args[0]) : 1024) * 1024 * 1024;
+    Transport transport = Transport.parse(args, 1);
+    int runs = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+
+    SSLContext serverContext = TlsContextFactory.forServer().context();
+    SSLContext clientContext = TlsContextFactory.forClient().context();
+
+    Path source = Files.createTempFile("nio-ssl-test-source", ".log");
+    Path destination = Files.createTempFile("nio-ssl-test-destination", ".log");
+    try {
+      writeRandomFile(source, bytes);
+      for (int i = 0; i < runs; i++) {
+        for (String mode : new String[] {"stream", "mmap"}) {
+          BufferType applicationBufferType = mode.equals("mmap") ? BufferType.DIRECT : BufferType.HEAP;
+          BufferPool packetBufferPool = BufferPool.forPackets(BufferType.HEAP,
+              serverContext.createSSLEngine().getSession(), MAX_POOLED_BUFFERS);
+          BufferPool applicationBufferPool = BufferPool.forApplicationData(applicationBufferType,
+              serverContext.createSSLEngine().getSession(), MAX_POOLED_BUFFERS);
+
+          long received;
+          long elapsedNanos;
+          long allocated;
+          try (LoopbackPair pair = LoopbackPair.open(transport, serverContext, clientContext,
+              packetBufferPool, applicationBufferPool)) {
+            pair.handshake();
+            System.gc();
+            StreamingBenchmark.resetPeakHeapUsage();
+            long initialAllocatedBytes = allocatedBytes();
+            long start = System.nanoTime();
+            if (mode.equals("mmap")) {
+              try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+                   FileChannel out = FileChannel.open(destination,
+                       StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                pair.receiveTo(out);
+                received = pair.sendFile(in);
+              }
+            } else {
+              try (InputStream in = Files.newInputStream(source);
+                   OutputStream out = Files.newOutputStream(destination)) {
+                pair.receiveTo(Channels.newChannel(out));
+                received = pair.send(Channels.newChannel(in));
+              }
+            }
+            elapsedNanos = System.nanoTime() - start;
+            allocated = allocatedBytes() - initialAllocatedBytes;
+          }
+
+          if (Files.size(destination) != bytes) {
+            throw new IllegalStateException("Destination has " + Files.size(destination) + " bytes");
+          }
+          System.out.printf("run=%d mode=%s transport=%s bytes=%d received=%d throughput=%.1fMB/s"
+                  + " peakHeap=%dKiB allocated=%dKiB%n",
+              i,
+              mode,
+              transport,
+              bytes,
+              received,
+              received / 1e6 / (elapsedNanos / 1e9),
+              StreamingBenchmark.peakHeapUsage() / 1024,
+              allocated / 1024);
+        }
+      }
+    } finally {
+      Files.delete(source);
+      Files.delete(destination);
+    }
+  }
+
+  private static long allocatedBytes() {
+    com.sun.management.ThreadMXBean threadMXBean =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    return threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  private static void writeRandomFile(Path path, long bytes) throws Exception {
+    Random random = new Random();
+    byte[] chunk = new byte[CHUNK_SIZE];
+    try (FileChannel out = FileChannel.open(path, StandardOpenOption.WRITE)) {
+      for (long written = 0; written < bytes; written += chunk.length) {
+        random.nextBytes(chunk);
+        ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, (int) Math.min(chunk.length, bytes - written));
+        while (buffer.hasRemaining()) {
+          out.write(buffer);
+        }
+      }
+    }
+  }
+}
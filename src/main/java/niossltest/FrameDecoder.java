@@ -0,0 +1,130 @@
+package niossltest;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 長さ付きフレーム（4 バイトのビッグエンディアンの長さ + 本体）を、
+ * TlsConnection#onApplicationData に届いた順に少しずつ切り出す。
+ *
+ * レコードの中に収まっているフレームは、受け取った buffer の slice をそのまま Handler に渡すのでコピーしない。
+ * レコードの境界をまたいだフレームだけ、assemblyBuffer に集めてから渡す。
+ * 1 つのコネクションにつき 1 つ使う。スレッドセーフではない。
+ */
+class FrameDecoder {
+  static final int HEADER_SIZE = 4;
+
+  interface Handler {
+    /**
+     * @param frame フレームの本体。呼び出し後に再利用されるので、必要なら中身をコピーすること
+     */
+    void onFrame(ByteBuffer frame) throws IOException;
+  }
+
+  private final int maxFrameSize;
+  // 書き込みモード。境界をまたいだヘッダ
+  private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+  // 書き込みモード。境界をまたいだフレームの本体。大きなフレームが来たら確保し直す
+  private ByteBuffer assemblyBuffer = ByteBuffer.allocate(0);
+  private boolean assembling = false;
+  private long decodedFrames = 0;
+  private long assembledFrames = 0;
+
+  /**
+   * @param maxFrameSize これより長いフレームは壊れたデータとみなす
+   */
+  FrameDecoder(int maxFrameSize) {
+    this.maxFrameSize = maxFrameSize;
+  }
+
+  /**
+   * data を最後まで読み、揃ったフレームを順に handler に渡す。
+   * 最後の中途半端なフレームは次の呼び出しまで持ち越す。
+   *
+   * @throws IOException フレームの長さが負か maxFrameSize を超えている
+   */
+  void decode(ByteBuffer data, Handler handler) throws IOException {
+    while (data.hasRemaining()) {
+      if (assembling) {
+        assemble(data, handler);
+      } else if (header.position() == 0 && data.remaining() >= HEADER_SIZE) {
+        int length = checkLength(data.getInt(data.position()));
+        int start = data.position() + HEADER_SIZE;
+        if (data.limit() - start >= length) {
+          // レコードの中に収まっている
+          ByteBuffer frame = data.duplicate();
+          frame.position(start);
+          frame.limit(start + length);
+          data.position(start + length);
+          deliver(frame, handler);
+        } else {
+          data.position(start);
+          startAssembling(length, handler);
+        }
+      } else {
+        // ヘッダが境界をまたいでいる
+        while (header.hasRemaining() && data.hasRemaining()) {
+          header.put(data.get());
+        }
+        if (!header.hasRemaining()) {
+          int length = checkLength(header.getInt(0));
+          header.clear();
+          startAssembling(length, handler);
+        }
+      }
+    }
+  }
+
+  long decodedFrames() {
+    return decodedFrames;
+  }
+
+  /**
+   * @return レコードの境界をまたぎ、コピーして組み立てたフレームの数
+   */
+  long assembledFrames() {
+    return assembledFrames;
+  }
+
+  private void startAssembling(int length, Handler handler) throws IOException {
+    if (assemblyBuffer.capacity() < length) {
+      assemblyBuffer = ByteBuffer.allocate(length);
+    }
+    assemblyBuffer.clear();
+    assemblyBuffer.limit(length);
+    assembling = true;
+    if (length == 0) {
+      finishAssembling(handler);
+    }
+  }
+
+  private void assemble(ByteBuffer data, Handler handler) throws IOException {
+    int length = Math.min(data.remaining(), assemblyBuffer.remaining());
+    ByteBuffer slice = data.duplicate();
+    slice.limit(slice.position() + length);
+    assemblyBuffer.put(slice);
+    data.position(data.position() + length);
+    if (!assemblyBuffer.hasRemaining()) {
+      finishAssembling(handler);
+    }
+  }
+
+  private void finishAssembling(Handler handler) throws IOException {
+    assembling = false;
+    assembledFrames++;
+    assemblyBuffer.flip();
+    deliver(assemblyBuffer, handler);
+  }
+
+  private void deliver(ByteBuffer frame, Handler handler) throws IOException {
+    decodedFrames++;
+    handler.onFrame(frame);
+  }
+
+  private int checkLength(int length) throws IOException {
+    if (length < 0 || length > maxFrameSize) {
+      throw new IOException("Invalid frame length: " + length);
+    }
+    return length;
+  }
+}
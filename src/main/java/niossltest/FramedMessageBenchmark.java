@@ -0,0 +1,90 @@
+package niossltest;
+
+import java.nio.ByteBuffer;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+
+/**
+ * ハンドシェイク済みの TLS コネクションの上で、長さ付きのメッセージを MessageSender で送り、
+ * MessageReceiver がまとめて ack を返す。Fluentd の forward プロトコルのように、小さなメッセージを大量に送る場合を模す。
+ * window（ack を待たずに送れるメッセージの数）を変えて、メッセージ数 / 秒と MB/s を比べる。
+ * window=1 は 1 つずつ ack を待つ場合。
+ *
+ * acks はサーバが返した ack の数、assembled はレコードの境界をまたいでコピーして組み立てたメッセージの割合。
+ *
+ * Usage: FramedMessageBenchmark [messages] [message size] [socket|memory] [window,...]
+ */
+public class FramedMessageBenchmark {
+  private static final int MAX_POOLED_BUFFERS = 4;
+  private static final int WARMUP_MESSAGES = 100_000;
+
+  public static void main(String[] args) throws Exception {
+    int messages = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+    int messageSize = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+    Transport transport = Transport.parse(args, 2);
+    String[] windows = (args.length > 3 ? args[3] : "1,16,256,4096").split(",");
+
+    SSLContext serverContext = TlsContextFactory.forServer().context();
+    SSLContext clientContext = TlsContextFactory.forClient().context();
+    SSLSession session = serverContext.createSSLEngine().getSession();
+    BufferPool packetBufferPool = BufferPool.forPackets(BufferType.HEAP, session, MAX_POOLED_BUFFERS);
+    BufferPool applicationBufferPool = BufferPool.forApplicationData(BufferType.HEAP, session, MAX_POOLED_BUFFERS);
+
+    ByteBuffer message = ByteBuffer.allocate(messageSize);
+    for (int i = 0; i < messageSize; i++) {
+      message.put(i, (byte) ('a' + i % 26));
+    }
+
+    for (String windowArg : windows) {
+      int window = Integer.parseInt(windowArg);
+      try (LoopbackPair pair = LoopbackPair.open(transport, serverContext, clientContext,
+          packetBufferPool, applicationBufferPool)) {
+        MessageSender sender = new MessageSender(window);
+        MessageReceiver receiver = new MessageReceiver(messageSize);
+        pair.attach(sender, receiver);
+        pair.handshake();
+
+        run(pair, sender, window, message, Math.min(WARMUP_MESSAGES, messages));
+        long initialMessages = receiver.receivedMessages();
+        long initialBytes = receiver.receivedBytes();
+        long initialAcks = receiver.sentAcks();
+        long initialAssembled = receiver.decoder().assembledFrames();
+        long start = System.nanoTime();
+        run(pair, sender, window, message, messages);
+        long elapsedNanos = System.nanoTime() - start;
+
+        long received = receiver.receivedMessages() - initialMessages;
+        long acks = receiver.sentAcks() - initialAcks;
+        System.out.printf("window=%d transport=%s messages=%d size=%d messagesPerSecond=%.0f throughput=%.1fMB/s"
+                + " acks=%d messagesPerAck=%.1f assembled=%.1f%%%n",
+            window,
+            transport,
+            received,
+            messageSize,
+            received / (elapsedNanos / 1e9),
+            (receiver.receivedBytes() - initialBytes) / 1e6 / (elapsedNanos / 1e9),
+            acks,
+            (double) received / acks,
+            100.0 * (receiver.decoder().assembledFrames() - initialAssembled) / received);
+      }
+    }
+  }
+
+  /**
+   * messages 個のメッセージを送り、すべての ack が届くまで進める。
+   * 送信待ちは window 個分だけ積んでおき、送れた分を継ぎ足す。
+   */
+  private static void run(LoopbackPair pair, MessageSender sender, int window, ByteBuffer message, int messages)
+      throws Exception {
+    long target = sender.acknowledgedMessages() + messages;
+    int enqueued = 0;
+    while (sender.acknowledgedMessages() < target) {
+      while (enqueued < messages && sender.queuedMessages() < window) {
+        sender.enqueue(message.duplicate());
+        enqueued++;
+      }
+      sender.flush(pair.client());
+      pair.pump();
+    }
+  }
+}
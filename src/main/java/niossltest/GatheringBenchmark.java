@@ -0,0 +1,77 @@
+package niossltest;
+
+import java.nio.ByteBuffer;
+import javax.net.ssl.SSLContext;
+
+/**
+ * 小さなイベントをまとめて送るときの、レコード数と write の回数を比べる。
+ * - single: イベントごとに write(ByteBuffer) する（1 イベント 1 レコード）
+ * - gather: batch 個のイベントを write(ByteBuffer[]) でまとめて wrap する
+ * 1 回の書き出しあたりのレコード数と、1 回の write あたりのバイト数を表示する。
+ *
+ * Usage: GatheringBenchmark [events] [event size] [batch size] [socket|memory] [heap|direct]
+ */
+public class GatheringBenchmark {
+  private static final int MAX_POOLED_BUFFERS = 32;
+
+  public static void main(String[] args) throws Exception {
+    int events = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+    int eventSize = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+    int batchSize = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+    Transport transport = Transport.parse(args, 3);
+    BufferType bufferType = BufferType.parse(args, 4);
+
+    SSLContext serverContext = SSLContext.getInstance("TLS");
+    serverContext.init(HandshakeLogging.createKeyManagers(), HandshakeLogging.createTrustManagers(), null);
+    SSLContext clientContext = SSLContext.getInstance("TLS");
+    clientContext.init(null, HandshakeLogging.createTrustManagers(), null);
+    BufferPool packetBufferPool = BufferPool.forPackets(bufferType,
+        serverContext.createSSLEngine().getSession(), MAX_POOLED_BUFFERS);
+    BufferPool applicationBufferPool = BufferPool.forApplicationData(bufferType,
+        serverContext.createSSLEngine().getSession(), MAX_POOLED_BUFFERS);
+
+    ByteBuffer[] batch = new ByteBuffer[batchSize];
+    for (int i = 0; i < batchSize; i++) {
+      batch[i] = bufferType.allocate(eventSize);
+    }
+
+    for (boolean gathering : new boolean[] {false, true}) {
+      try (LoopbackPair pair = LoopbackPair.open(transport, serverContext, clientContext,
+          packetBufferPool, applicationBufferPool)) {
+        pair.handshake();
+        TlsConnection client = pair.client();
+        long records = client.recordsWrapped();
+        long flushes = client.flushes();
+        long writeCalls = client.writeCalls();
+        long bytesWritten = client.networkBytesWritten();
+
+        long start = System.nanoTime();
+        for (int sent = 0; sent < events; sent += batchSize) {
+          for (ByteBuffer event : batch) {
+            event.clear();
+          }
+          pair.transfer(batch, gathering);
+        }
+        long elapsedNanos = System.nanoTime() - start;
+
+        records = client.recordsWrapped() - records;
+        flushes = client.flushes() - flushes;
+        writeCalls = client.writeCalls() - writeCalls;
+        bytesWritten = client.networkBytesWritten() - bytesWritten;
+        System.out.printf("mode=%s transport=%s type=%s events=%d eventSize=%d batch=%d"
+                + " eventsPerSecond=%.0f records=%d recordsPerFlush=%.1f writeCalls=%d bytesPerWrite=%.0f%n",
+            gathering ? "gather" : "single",
+            transport,
+            bufferType,
+            events,
+            eventSize,
+            batchSize,
+            events / (elapsedNanos / 1e9),
+            records,
+            (double) records / flushes,
+            writeCalls,
+            (double) bytesWritten / writeCalls);
+      }
+    }
+  }
+}
@@ -0,0 +1,87 @@
+package niossltest;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+
+/**
+ * LoopbackPair で何度もハンドシェイクし、フェーズごとのレイテンシ分布を JSON で表示する。
+ * HandshakeLogging と違って sleep を挟まないので、実際の所要時間が分かる。
+ * 計測なしでも同じ回数ハンドシェイクし、計測自体のオーバーヘッドも表示する。
+ *
+ * 出力
+ * - {"client":{...},"server":{...},"lastClientTrace":{...},"lastServerTrace":{...}}
+ *   各フェーズの分布と、最後のコネクションで起きた状態遷移の一覧
+ * - 計測あり / なしの 1 秒あたりのハンドシェイク数
+ *
+ * Usage: HandshakeLatency [handshakes] [socket|memory] [TLSv1.2|TLSv1.3]
+ */
+public class HandshakeLatency {
+  private static final int MAX_POOLED_BUFFERS = 4;
+
+  public static void main(String[] args) throws Exception {
+    int handshakes = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+    Transport transport = Transport.parse(args, 1);
+    String protocol = args.length > 2 ? args[2] : "TLSv1.2";
+
+    SSLContext serverContext = SSLContext.getInstance("TLS");
+    serverContext.init(HandshakeLogging.createKeyManagers(), HandshakeLogging.createTrustManagers(), null);
+    SSLContext clientContext = SSLContext.getInstance("TLS");
+    clientContext.init(null, HandshakeLogging.createTrustManagers(), null);
+    BufferPool packetBufferPool = BufferPool.forPackets(BufferType.HEAP,
+        serverContext.createSSLEngine().getSession(), MAX_POOLED_BUFFERS);
+    BufferPool applicationBufferPool = BufferPool.forApplicationData(BufferType.HEAP,
+        serverContext.createSSLEngine().getSession(), MAX_POOLED_BUFFERS);
+
+    // JIT のウォームアップ。計測には含めない
+    run(handshakes, transport, protocol, serverContext, clientContext,
+        packetBufferPool, applicationBufferPool, null, null);
+
+    long start = System.nanoTime();
+    run(handshakes, transport, protocol, serverContext, clientContext,
+        packetBufferPool, applicationBufferPool, null, null);
+    long untracedNanos = System.nanoTime() - start;
+
+    HandshakeMetrics clientMetrics = new HandshakeMetrics();
+    HandshakeMetrics serverMetrics = new HandshakeMetrics();
+    start = System.nanoTime();
+    LoopbackPair last = run(handshakes, transport, protocol, serverContext, clientContext,
+        packetBufferPool, applicationBufferPool, clientMetrics, serverMetrics);
+    long tracedNanos = System.nanoTime() - start;
+
+    System.out.println("{\"client\":" + clientMetrics.toJson()
+        + ",\"server\":" + serverMetrics.toJson()
+        + ",\"lastClientTrace\":" + last.client().handshakeTrace().toJson()
+        + ",\"lastServerTrace\":" + last.server().handshakeTrace().toJson() + "}");
+    System.out.printf("protocol=%s transport=%s handshakes=%d untracedPerSecond=%.1f tracedPerSecond=%.1f%n",
+        protocol,
+        transport,
+        handshakes,
+        handshakes / (untracedNanos / 1e9),
+        handshakes / (tracedNanos / 1e9));
+  }
+
+  /**
+   * @return 最後にハンドシェイクした LoopbackPair（close 済み）
+   */
+  private static LoopbackPair run(int handshakes,
+                                  Transport transport,
+                                  String protocol,
+                                  SSLContext serverContext,
+                                  SSLContext clientContext,
+                                  BufferPool packetBufferPool,
+                                  BufferPool applicationBufferPool,
+                                  HandshakeMetrics clientMetrics,
+                                  HandshakeMetrics serverMetrics) throws Exception {
+    LoopbackPair last = null;
+    for (int i = 0; i < handshakes; i++) {
+      SSLEngine clientEngine = clientContext.createSSLEngine();
+      clientEngine.setEnabledProtocols(new String[] {protocol});
+      try (LoopbackPair pair = LoopbackPair.open(transport, serverContext, clientEngine,
+          packetBufferPool, applicationBufferPool, clientMetrics, serverMetrics)) {
+        pair.handshake();
+        last = pair;
+      }
+    }
+    return last;
+  }
+}
@@ -1,354 +1,628 @@
 package niossltest;
 
-import java.io.FileInputStream;
-import java.io.InputStream;
+import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.security.KeyStore;
+import java.util.concurrent.TimeUnit;
 import javax.net.ssl.KeyManager;
-import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLSession;
 import javax.net.ssl.TrustManager;
-import javax.net.ssl.TrustManagerFactory;
 
+/**
+ * 2 本の SocketChannel の上で、クライアントとサーバの SSLEngine のハンドシェイクを 1 ステップずつ進め、
+ * 各ステップの HandshakeStatus と SSLEngineResult を表示する。
+ * drive はどちらかがパケットを待つようになるたびにもう一方へ切り替え、両方が終わるまで繰り返すので、
+ * TLS 1.2 でも TLS 1.3 でも、セッションを再開する場合でも同じコードで動く。
+ * ハンドシェイクごとに、往復の回数と wrap / unwrap の呼び出し回数を数える。
+ *
+ * compare を指定すると、TLS 1.2 / 1.3 それぞれについて、フルハンドシェイクとセッションを再開した場合の
+ * 数を表にし、rtt ミリ秒の経路での所要時間（往復の回数 × rtt + 手元で測った処理時間）を見積もる。
+ * 手元の処理時間には、パケットが届くのを待っていた時間を含めない。往復の分は rtt で足しているため。
+ * JDK の SSLEngine は 0-RTT（early data）に対応していないので、TLS 1.3 の再開でも 1 往復かかる。
+ *
+ * どちらの場合も、チャネルを閉じる前に closeGracefully で close_notify を送り合う。
+ *
+ * Usage: HandshakeLogging [heap|direct] [TLSv1.2|TLSv1.3|compare] [rtt millis]
+ */
 public class HandshakeLogging {
-  private static String PASSWORD = "12345678";
+  private static final int MAX_POOLED_BUFFERS = 4;
+  private static final int COMPARED_HANDSHAKES = 20;
+  private static final String[] COMPARED_PROTOCOLS = {"TLSv1.2", "TLSv1.3"};
+  private static final long TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10);
+  // セッションキャッシュのキーにするだけ
+  private static final String PEER_HOST = "127.0.0.1";
+  private static final int PEER_PORT = 24224;
+
+  // SSLSession の大きさに合わせたバッファ。main で初期化する
+  private static BufferPool packetBufferPool;
+  private static BufferPool applicationBufferPool;
 
   private static class Buffers {
-    ByteBuffer inboundNetworkBuffer = ByteBuffer.allocate(1024 * 1024);
-    ByteBuffer outboundNetworkBuffer = ByteBuffer.allocate(1024 * 1024);
+    // 書き込みモード。読み切れなかったパケットは compact して次の step に残す
+    ByteBuffer inboundNetworkBuffer = packetBufferPool.acquire();
+    ByteBuffer outboundNetworkBuffer = packetBufferPool.acquire();
+
+    void release() {
+      packetBufferPool.release(inboundNetworkBuffer);
+      packetBufferPool.release(outboundNetworkBuffer);
+    }
+  }
+
+  /**
+   * ハンドシェイクの一方の端。SSLEngine の呼び出し回数と、送受信したバイト数を数える。
+   */
+  private static class Peer {
+    final String name;
+    final SocketChannel channel;
+    final SSLEngine engine;
+    final Buffers buffers = new Buffers();
+    int wraps = 0;
+    int unwraps = 0;
+    int tasks = 0;
+    long bytesWritten = 0;
+    long bytesRead = 0;
+    // 最後にパケットを待ち始めてから、何か送ったか
+    boolean sentSinceWait = false;
+    // awaitPackets で相手のパケットを待っていた時間
+    long waitNanos = 0;
+
+    Peer(String name, SocketChannel channel, SSLEngine engine, boolean clientMode) {
+      this.name = name;
+      this.channel = channel;
+      this.engine = engine;
+      engine.setUseClientMode(clientMode);
+      engine.setNeedClientAuth(false);
+      engine.setWantClientAuth(false);
+    }
+
+    void close() throws IOException {
+      buffers.release();
+      channel.close();
+    }
+
+    @Override
+    public String toString() {
+      return "wraps=" + wraps + " unwraps=" + unwraps + " tasks=" + tasks + " bytesWritten=" + bytesWritten;
+    }
+  }
+
+  /**
+   * 1 回のハンドシェイクの結果。
+   * 後の close_notify の分を含めないよう、作ったときの Peer の数を写しておく。
+   */
+  private static class HandshakeResult {
+    final int clientWraps;
+    final int clientUnwraps;
+    final int serverWraps;
+    final int serverUnwraps;
+    final int tasks;
+    final long bytes;
+    final int roundTrips;
+    final boolean resumed;
+    final long elapsedNanos;
+    // 次のハンドシェイクで再開したかを判定するための、クライアントのセッション
+    final SSLSession clientSession;
+
+    HandshakeResult(Peer client, Peer server, int roundTrips, boolean resumed, long elapsedNanos) {
+      this.clientWraps = client.wraps;
+      this.clientUnwraps = client.unwraps;
+      this.serverWraps = server.wraps;
+      this.serverUnwraps = server.unwraps;
+      this.tasks = client.tasks + server.tasks;
+      this.bytes = client.bytesWritten + server.bytesWritten;
+      this.roundTrips = roundTrips;
+      this.resumed = resumed;
+      this.elapsedNanos = elapsedNanos;
+      this.clientSession = client.engine.getSession();
+    }
   }
 
   public static void main(String[] args) throws Exception {
+    BufferType bufferType = BufferType.parse(args, 0);
+    String protocol = args.length > 1 ? args[1] : "TLSv1.2";
+    int rttMillis = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+
+    SSLContext serverContext = SSLContext.getInstance("TLS");
+    serverContext.init(createKeyManagers(), createTrustManagers(), null);
+    packetBufferPool = BufferPool.forPackets(bufferType, serverContext.createSSLEngine().getSession(),
+        MAX_POOLED_BUFFERS);
+    applicationBufferPool = BufferPool.forApplicationData(bufferType, serverContext.createSSLEngine().getSession(),
+        MAX_POOLED_BUFFERS);
+
     InetSocketAddress serverAddress = new InetSocketAddress("127.0.0.1", 24224);
-    ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
-    serverSocketChannel.configureBlocking(false);
-    serverSocketChannel.bind(serverAddress);
+    try (ServerSocketChannel serverSocketChannel = ServerSocketChannel.open()) {
+      serverSocketChannel.configureBlocking(false);
+      serverSocketChannel.bind(serverAddress);
+      if (protocol.equals("compare")) {
+        compare(serverSocketChannel, serverContext, rttMillis);
+      } else {
+        log(serverSocketChannel, serverContext, protocol);
+      }
+    }
+    System.out.println("Packet: " + packetBufferPool);
+    System.out.println("Application: " + applicationBufferPool);
+  }
+
+  /**
+   * 1 回ハンドシェイクして各ステップを表示し、"hello" を送る。
+   */
+  private static void log(ServerSocketChannel serverSocketChannel,
+                          SSLContext serverContext,
+                          String protocol) throws Exception {
+    SSLContext clientContext = SSLContext.getInstance("TLS");
+    clientContext.init(null, createTrustManagers(), null);
+    SSLEngine clientEngine = clientContext.createSSLEngine();
+    clientEngine.setEnabledProtocols(new String[] {protocol});
+
+    SocketChannel[] channels = connect(serverSocketChannel);
+    Peer client = new Peer("client", channels[0], clientEngine, true);
+    Peer server = new Peer("server", channels[1], serverContext.createSSLEngine(), false);
+    try {
+      int roundTrips = drive(client, server, true);
+      System.out.println("protocol=" + clientEngine.getSession().getProtocol()
+          + " cipherSuite=" + clientEngine.getSession().getCipherSuite()
+          + " roundTrips=" + roundTrips);
+      System.out.println("client: " + client);
+      System.out.println("server: " + server);
+      System.out.println();
+
+      // Exchanges application data
+      System.out.println("Exchanges application data");
+      // データ送信。
+      // ----------------------------------------------------
+      // ApplicationBuffer: java.nio.HeapByteBuffer[pos=0 lim=5 cap=1048576]
+      // NetworkBuffer: java.nio.HeapByteBuffer[pos=85 lim=1048576 cap=1048576]
+      // EngineResult: Status = OK HandshakeStatus = NOT_HANDSHAKING
+      // bytesConsumed = 5 bytesProduced = 85
+      write(client.channel, client.engine);
+      // データ受信
+      // ----------------------------------------------------
+      // ApplicationBuffer: java.nio.HeapByteBuffer[pos=5 lim=1048576 cap=1048576]
+      // EngineResult: Status = OK HandshakeStatus = NOT_HANDSHAKING
+      // bytesConsumed = 85 bytesProduced = 5
+      // Received: hello
+      read(server.channel, server.engine);
+
+      System.out.println("Closes the connection with close_notify");
+      closeGracefully(client, server, true);
+    } finally {
+      client.close();
+      server.close();
+    }
+  }
 
-    Buffers clientBuffers = new Buffers();
+  /**
+   * TLS 1.2 / 1.3 それぞれで、フルハンドシェイクとセッションを再開したハンドシェイクを
+   * COMPARED_HANDSHAKES 回ずつ行い、1 回あたりの数と所要時間の平均を表示する。
+   * フルハンドシェイクはクライアントの SSLContext を毎回作り直す。
+   * 再開する方は 1 つの SSLContext を使い回す。
+   */
+  private static void compare(ServerSocketChannel serverSocketChannel,
+                              SSLContext serverContext,
+                              int rttMillis) throws Exception {
+    System.out.printf("%-8s %-8s %8s %10s %8s %10s %8s %10s %6s %7s %9s %11s%n",
+        "protocol", "mode", "resumed", "roundTrips", "c.wraps", "c.unwraps", "s.wraps", "s.unwraps", "tasks",
+        "bytes", "local(ms)", "latency(ms)");
+    for (String protocol : COMPARED_PROTOCOLS) {
+      SSLContext sharedClientContext = SSLContext.getInstance("TLS");
+      sharedClientContext.init(null, createTrustManagers(), null);
+      // 再開する方のセッションを作っておく。JIT のウォームアップも兼ねる
+      HandshakeResult warmup = handshake(serverSocketChannel, serverContext, sharedClientContext, protocol, null);
+      SSLSession sharedSession = warmup.clientSession;
+
+      for (String mode : new String[] {"full", "resumed"}) {
+        int resumed = 0;
+        long roundTrips = 0;
+        long clientWraps = 0;
+        long clientUnwraps = 0;
+        long serverWraps = 0;
+        long serverUnwraps = 0;
+        long tasks = 0;
+        long bytes = 0;
+        long elapsedNanos = 0;
+        for (int i = 0; i < COMPARED_HANDSHAKES; i++) {
+          SSLContext clientContext = sharedClientContext;
+          SSLSession previousSession = sharedSession;
+          if (mode.equals("full")) {
+            clientContext = SSLContext.getInstance("TLS");
+            clientContext.init(null, createTrustManagers(), null);
+            // 作り直した SSLContext には、再開できる前回のセッションがない
+            previousSession = null;
+          }
+          HandshakeResult result = handshake(serverSocketChannel, serverContext, clientContext, protocol,
+              previousSession);
+          if (clientContext == sharedClientContext) {
+            sharedSession = result.clientSession;
+          }
+          resumed += result.resumed ? 1 : 0;
+          roundTrips += result.roundTrips;
+          clientWraps += result.clientWraps;
+          clientUnwraps += result.clientUnwraps;
+          serverWraps += result.serverWraps;
+          serverUnwraps += result.serverUnwraps;
+          tasks += result.tasks;
+          bytes += result.bytes;
+          elapsedNanos += result.elapsedNanos;
+        }
+
+        double n = COMPARED_HANDSHAKES;
+        double localMillis = elapsedNanos / n / 1e6;
+        System.out.printf("%-8s %-8s %8d %10.1f %8.1f %10.1f %8.1f %10.1f %6.1f %7.0f %9.2f %11.1f%n",
+            protocol, mode, resumed, roundTrips / n, clientWraps / n, clientUnwraps / n, serverWraps / n,
+            serverUnwraps / n, tasks / n, bytes / n, localMillis, roundTrips / n * rttMillis + localMillis);
+      }
+    }
+  }
+
+  /**
+   * ログを出さずに 1 回ハンドシェイクし、閉じる。
+   * 時間には TCP の接続と、パケットが届くのを待っていた時間は含まない。
+   *
+   * @param previousSession clientContext での前回のクライアントのセッション。これを再開したかを数える
+   */
+  private static HandshakeResult handshake(ServerSocketChannel serverSocketChannel,
+                                           SSLContext serverContext,
+                                           SSLContext clientContext,
+                                           String protocol,
+                                           SSLSession previousSession) throws Exception {
+    SSLEngine clientEngine = clientContext.createSSLEngine(PEER_HOST, PEER_PORT);
+    clientEngine.setEnabledProtocols(new String[] {protocol});
+    SocketChannel[] channels = connect(serverSocketChannel);
+    Peer client = new Peer("client", channels[0], clientEngine, true);
+    Peer server = new Peer("server", channels[1], serverContext.createSSLEngine(), false);
+    try {
+      long start = System.nanoTime();
+      int roundTrips = drive(client, server, false);
+      // sleep の粒度ではなく SSLEngine の処理時間を比べるため、待っていた時間は除く
+      long elapsedNanos = System.nanoTime() - start - client.waitNanos;
+      boolean resumed = SessionResumption.isResumed(client.engine.getSession(), previousSession);
+      HandshakeResult result = new HandshakeResult(client, server, roundTrips, resumed, elapsedNanos);
+      closeGracefully(client, server, false);
+      return result;
+    } finally {
+      client.close();
+      server.close();
+    }
+  }
+
+  /**
+   * @return {クライアント側, サーバ側}。どちらも non-blocking
+   */
+  private static SocketChannel[] connect(ServerSocketChannel serverSocketChannel) throws Exception {
     SocketChannel clientChannel = SocketChannel.open();
     clientChannel.configureBlocking(false);
-    clientChannel.connect(serverAddress);
+    clientChannel.connect(serverSocketChannel.getLocalAddress());
 
     // TCP Handshake
-    Buffers serverBuffers = new Buffers();
-    SocketChannel serverChannel = serverSocketChannel.accept();
+    SocketChannel serverChannel;
+    while ((serverChannel = serverSocketChannel.accept()) == null) {
+      // Wait until the connection arrives
+      // This code should not be executed in production!
+    }
     serverChannel.configureBlocking(false);
-    System.out.println("Accept from " + serverChannel.getRemoteAddress());
     while (!clientChannel.finishConnect()) {
       // Wait until handshake finishes
       // This code should not be executed in production!
       // If production, let Selector notify that the connection becomes established
     }
+    // ハンドシェイクの小さなレコードが Nagle アルゴリズムで遅延しないように
+    clientChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+    serverChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+    return new SocketChannel[] {clientChannel, serverChannel};
+  }
 
-    SSLContext clientContext = SSLContext.getInstance("TLS");
-    clientContext.init(null, createTrustManagers(), null);
-    SSLEngine clientEngine = clientContext.createSSLEngine();
-    clientEngine.setUseClientMode(true);
-    clientEngine.setNeedClientAuth(false);
-    clientEngine.setWantClientAuth(false);
-    clientEngine.beginHandshake();
+  /**
+   * 両方の SSLEngine のハンドシェイクが終わるまで step を呼び続ける。
+   * step が進めなくなったら（パケット待ち、または先に終わった）もう一方に切り替える。
+   * 両方とも進めないのは、送ったパケットがまだ届いていないときだけなので、少し待ってやり直す。
+   * ハンドシェイク後に届くメッセージ（TLS 1.3 の NewSessionTicket など）も、最後に読み切る。
+   * 読まないとクライアントは次の接続でセッションを再開できない。
+   *
+   * 往復の回数は、クライアントが何か送った後にサーバからのパケットを待ち始めた回数。
+   * フライトの順序や数はプロトコルとセッションの再開の有無で変わるので、決め打ちしない。
+   * 以前は main で、TLS 1.2 のフルハンドシェイクの順序どおりに handshake を 22 回呼んでいた。
+   * そのときのログを、この後に step の呼び出し順で残しておく。
+   *
+   * @return 往復の回数
+   */
+  private static int drive(Peer client, Peer server, boolean verbose) throws Exception {
+    client.engine.beginHandshake();
+    server.engine.beginHandshake();
+    int roundTrips = 0;
+    Peer current = client;
+    // 続けて進めなかった step の数。2 なら両方とも相手を待っている
+    int idleSteps = 0;
+    long deadline = System.nanoTime() + TIMEOUT_NANOS;
+    if (verbose) {
+      System.out.println("[" + current.name + "]");
+    }
+    while (isHandshaking(client.engine) || isHandshaking(server.engine)) {
+      if (step(current, verbose)) {
+        idleSteps = 0;
+        deadline = System.nanoTime() + TIMEOUT_NANOS;
+        continue;
+      }
+      if (current == client && isHandshaking(client.engine) && client.sentSinceWait) {
+        roundTrips++;
+      }
+      current.sentSinceWait = false;
+      if (++idleSteps >= 2) {
+        awaitPackets(deadline, client, server);
+      }
+      current = current == client ? server : client;
+      if (verbose) {
+        System.out.println("[" + current.name + "]");
+      }
+    }
 
-    SSLContext serverContext = SSLContext.getInstance("TLS");
-    serverContext.init(createKeyManagers(), createTrustManagers(), null);
-    SSLEngine serverEngine = serverContext.createSSLEngine();
-    serverEngine.setUseClientMode(false);
-    serverEngine.setNeedClientAuth(false);
-    clientEngine.setWantClientAuth(false);
-    serverEngine.beginHandshake();
-
-    // Sends ClientHello
-    System.out.println("Sends ClientHello");
-    // ClientHello 送信。
-    // ----------------------------------------------------
-    // HandshakeStatus(start): NEED_WRAP
-    // EngineResult: Status = OK HandshakeStatus = NEED_UNWRAP
-    // bytesConsumed = 0 bytesProduced = 200
-    // ApplicationBuffer: java.nio.HeapByteBuffer[pos=0 lim=1048576 cap=1048576]
-    // NetworkBuffer: java.nio.HeapByteBuffer[pos=200 lim=1048576 cap=1048576]
-    // HandshakeStatus(end): NEED_UNWRAP
-    handshake(clientChannel, clientEngine, clientBuffers);
-    // ClientHello を送信し終えたので、レスポンスを待つモードに。
-    // ただしまだサーバからレスポンスを送っていないので、
-    // 読み取るパケットが存在せず SocketChannel#read が即座に0を返す。
-    // レスポンスを読まずにすぐ呼び出しが終了するのは、
-    // configureBlocking(false) を設定し O_NONBLOCKING となっているから。
-    // ----------------------------------------------------
-    // HandshakeStatus(start): NEED_UNWRAP
-    // ReceivedNetworkBuffer: java.nio.HeapByteBuffer[pos=0 lim=1048576 cap=1048576]
-    // EngineResult: Status = BUFFER_UNDERFLOW HandshakeStatus = NEED_UNWRAP
-    // bytesConsumed = 0 bytesProduced = 0
-    // NetworkBuffer: java.nio.HeapByteBuffer[pos=0 lim=0 cap=1048576]
-    // ApplicationBuffer: java.nio.HeapByteBuffer[pos=0 lim=1048576 cap=1048576]
-    // HandshakeStatus(end): NEED_UNWRAP
-    handshake(clientChannel, clientEngine, clientBuffers);
-
-    // Receives ClientHello and sends responses
-    System.out.println("Receives ClientHello");
-    // 多分 ClientHello を受け取っている。
-    // ----------------------------------------------------
-    // HandshakeStatus(start): NEED_UNWRAP
-    // ReceivedNetworkBuffer: java.nio.HeapByteBuffer[pos=200 lim=1048576 cap=1048576]
-    // EngineResult: Status = OK HandshakeStatus = NEED_TASK
-    // bytesConsumed = 200 bytesProduced = 0
-    // NetworkBuffer: java.nio.HeapByteBuffer[pos=200 lim=200 cap=1048576]
-    // ApplicationBuffer: java.nio.HeapByteBuffer[pos=0 lim=1048576 cap=1048576]
-    // HandshakeStatus(end): NEED_TASK
-    handshake(serverChannel, serverEngine, serverBuffers);
-    // なんらかの TASK を実行。
-    // ----------------------------------------------------
-    // HandshakeStatus(start): NEED_TASK
-    // HandshakeStatus(end): NEED_WRAP
-    handshake(serverChannel, serverEngine, serverBuffers);
-    // ServerHello, ServerCertificate, ServerKeyExchange, CertificateRequest, ServerHelloDone 送信
-    // ----------------------------------------------------
-    // HandshakeStatus(start): NEED_WRAP
-    // EngineResult: Status = OK HandshakeStatus = NEED_UNWRAP
-    // bytesConsumed = 0 bytesProduced = 3217
-    // ApplicationBuffer: java.nio.HeapByteBuffer[pos=0 lim=1048576 cap=1048576]
-    // NetworkBuffer: java.nio.HeapByteBuffer[pos=3217 lim=1048576 cap=1048576]
-    // HandshakeStatus(end): NEED_UNWRAP
-    handshake(serverChannel, serverEngine, serverBuffers);
-    // レスポンスをすべて返したので、クライアントからの送信待ち。
-    // まだクライアントが返信してないので何もしない。
-    // ----------------------------------------------------
-    // HandshakeStatus(start): NEED_UNWRAP
-    // ReceivedNetworkBuffer: java.nio.HeapByteBuffer[pos=0 lim=1048576 cap=1048576]
-    // EngineResult: Status = BUFFER_UNDERFLOW HandshakeStatus = NEED_UNWRAP
-    // bytesConsumed = 0 bytesProduced = 0
-    // NetworkBuffer: java.nio.HeapByteBuffer[pos=0 lim=0 cap=1048576]
-    // ApplicationBuffer: java.nio.HeapByteBuffer[pos=0 lim=1048576 cap=1048576]
-    // HandshakeStatus(end): NEED_UNWRAP
-    handshake(serverChannel, serverEngine, serverBuffers);
-
-    // Receives server's responses and sends client's responses
-    System.out.println("Receives ServerHelloDone");
-    // サーバからのレスポンスを読み込む。
-    // ----------------------------------------------------
-    // HandshakeStatus(start): NEED_UNWRAP
-    // ReceivedNetworkBuffer: java.nio.HeapByteBuffer[pos=3217 lim=1048576 cap=1048576]
-    // EngineResult: Status = OK HandshakeStatus = NEED_TASK
-    // bytesConsumed = 3217 bytesProduced = 0
-    // NetworkBuffer: java.nio.HeapByteBuffer[pos=3217 lim=3217 cap=1048576]
-    // ApplicationBuffer: java.nio.HeapByteBuffer[pos=0 lim=1048576 cap=1048576]
-    // HandshakeStatus(end): NEED_TASK
-    handshake(clientChannel, clientEngine, clientBuffers);
-    // 何らかのタスクを実行。
-    // ----------------------------------------------------
-    // HandshakeStatus(start): NEED_TASK
-    // HandshakeStatus(end): NEED_WRAP
-    handshake(clientChannel, clientEngine, clientBuffers);
-    // 何かを送信
-    // ----------------------------------------------------
-    // HandshakeStatus(start): NEED_WRAP
-    // EngineResult: Status = OK HandshakeStatus = NEED_WRAP
-    // bytesConsumed = 0 bytesProduced = 75
-    // ApplicationBuffer: java.nio.HeapByteBuffer[pos=0 lim=1048576 cap=1048576]
-    // NetworkBuffer: java.nio.HeapByteBuffer[pos=75 lim=1048576 cap=1048576]
-    // HandshakeStatus(end): NEED_WRAP
-    handshake(clientChannel, clientEngine, clientBuffers);
-    // さらに何かを送信
-    // ----------------------------------------------------
-    // HandshakeStatus(start): NEED_WRAP
-    // EngineResult: Status = OK HandshakeStatus = NEED_WRAP
-    // bytesConsumed = 0 bytesProduced = 6
-    // ApplicationBuffer: java.nio.HeapByteBuffer[pos=0 lim=1048576 cap=1048576]
-    // NetworkBuffer: java.nio.HeapByteBuffer[pos=6 lim=1048576 cap=1048576]
-    // HandshakeStatus(end): NEED_WRAP
-    handshake(clientChannel, clientEngine, clientBuffers);
-    // さらに何かを送信
-    // ----------------------------------------------------
-    // HandshakeStatus(start): NEED_WRAP
-    // EngineResult: Status = OK HandshakeStatus = NEED_UNWRAP
-    // bytesConsumed = 0 bytesProduced = 101
-    // ApplicationBuffer: java.nio.HeapByteBuffer[pos=0 lim=1048576 cap=1048576]
-    // NetworkBuffer: java.nio.HeapByteBuffer[pos=101 lim=1048576 cap=1048576]
-    // HandshakeStatus(end): NEED_UNWRAP
-    handshake(clientChannel, clientEngine, clientBuffers);
-    // クライアントからの仕事はすべて終えたのでサーバを待つモードに。
-    // ----------------------------------------------------
-    // HandshakeStatus(start): NEED_UNWRAP
-    // ReceivedNetworkBuffer: java.nio.HeapByteBuffer[pos=0 lim=1048576 cap=1048576]
-    // EngineResult: Status = BUFFER_UNDERFLOW HandshakeStatus = NEED_UNWRAP
-    // bytesConsumed = 0 bytesProduced = 0
-    // NetworkBuffer: java.nio.HeapByteBuffer[pos=0 lim=0 cap=1048576]
-    // ApplicationBuffer: java.nio.HeapByteBuffer[pos=0 lim=1048576 cap=1048576]
-    // HandshakeStatus(end): NEED_UNWRAP
-    handshake(clientChannel, clientEngine, clientBuffers);
-
-    // Completes a handshake
-    System.out.println("Completes handshake on server-side");
-    // クライアントからのレスポンスを受信。
-    // ----------------------------------------------------
-    // HandshakeStatus(start): NEED_UNWRAP
-    // ReceivedNetworkBuffer: java.nio.HeapByteBuffer[pos=182 lim=1048576 cap=1048576]
-    // EngineResult: Status = OK HandshakeStatus = NEED_TASK
-    // bytesConsumed = 75 bytesProduced = 0
-    // NetworkBuffer: java.nio.HeapByteBuffer[pos=75 lim=182 cap=1048576]
-    // ApplicationBuffer: java.nio.HeapByteBuffer[pos=0 lim=1048576 cap=1048576]
-    // HandshakeStatus(end): NEED_TASK
-    handshake(serverChannel, serverEngine, serverBuffers);
-    // 何らかのタスクを実行
-    // ----------------------------------------------------
-    // HandshakeStatus(start): NEED_TASK
-    // HandshakeStatus(end): NEED_UNWRAP
-    handshake(serverChannel, serverEngine, serverBuffers);
-    // 何かを読み込む。
-    // ----------------------------------------------------
-    // HandshakeStatus(start): NEED_UNWRAP
-    // ReceivedNetworkBuffer: java.nio.HeapByteBuffer[pos=75 lim=182 cap=1048576]
-    // EngineResult: Status = OK HandshakeStatus = NEED_UNWRAP
-    // bytesConsumed = 6 bytesProduced = 0
-    // NetworkBuffer: java.nio.HeapByteBuffer[pos=81 lim=182 cap=1048576]
-    // ApplicationBuffer: java.nio.HeapByteBuffer[pos=0 lim=1048576 cap=1048576]
-    // HandshakeStatus(end): NEED_UNWRAP
-    handshake(serverChannel, serverEngine, serverBuffers);
-    // さらに何かを読み込む。
-    // ----------------------------------------------------
-    // HandshakeStatus(start): NEED_UNWRAP
-    // ReceivedNetworkBuffer: java.nio.HeapByteBuffer[pos=81 lim=182 cap=1048576]
-    // EngineResult: Status = OK HandshakeStatus = NEED_WRAP
-    // bytesConsumed = 101 bytesProduced = 0
-    // NetworkBuffer: java.nio.HeapByteBuffer[pos=182 lim=182 cap=1048576]
-    // ApplicationBuffer: java.nio.HeapByteBuffer[pos=0 lim=1048576 cap=1048576]
-    // HandshakeStatus(end): NEED_WRAP
-    handshake(serverChannel, serverEngine, serverBuffers);
-    // 何かを送る。
-    // ----------------------------------------------------
-    // HandshakeStatus(start): NEED_WRAP
-    // EngineResult: Status = OK HandshakeStatus = NEED_WRAP
-    // bytesConsumed = 0 bytesProduced = 6
-    // ApplicationBuffer: java.nio.HeapByteBuffer[pos=0 lim=1048576 cap=1048576]
-    // NetworkBuffer: java.nio.HeapByteBuffer[pos=6 lim=1048576 cap=1048576]
-    // HandshakeStatus(end): NEED_WRAP
-    handshake(serverChannel, serverEngine, serverBuffers);
-    // さらに何かを送り、ハンドシェイク完了。
-    // ----------------------------------------------------
-    // HandshakeStatus(start): NEED_WRAP
-    // EngineResult: Status = OK HandshakeStatus = FINISHED
-    // bytesConsumed = 0 bytesProduced = 101
-    // ApplicationBuffer: java.nio.HeapByteBuffer[pos=0 lim=1048576 cap=1048576]
-    // NetworkBuffer: java.nio.HeapByteBuffer[pos=101 lim=1048576 cap=1048576]
-    // HandshakeStatus(end): NOT_HANDSHAKING
-    handshake(serverChannel, serverEngine, serverBuffers);
-
-    System.out.println("Completes handshake on client-side");
-    // 何かを読み込む。
-    // ----------------------------------------------------
-    // HandshakeStatus(start): NEED_UNWRAP
-    // ReceivedNetworkBuffer: java.nio.HeapByteBuffer[pos=107 lim=1048576 cap=1048576]
-    // EngineResult: Status = OK HandshakeStatus = NEED_UNWRAP
-    // bytesConsumed = 6 bytesProduced = 0
-    // NetworkBuffer: java.nio.HeapByteBuffer[pos=6 lim=107 cap=1048576]
-    // ApplicationBuffer: java.nio.HeapByteBuffer[pos=0 lim=1048576 cap=1048576]
-    // HandshakeStatus(end): NEED_UNWRAP
-    handshake(clientChannel, clientEngine, clientBuffers);
-    // さらに何かを読み込んでハンドシェイク完了。
-    // ----------------------------------------------------
-    // HandshakeStatus(start): NEED_UNWRAP
-    // ReceivedNetworkBuffer: java.nio.HeapByteBuffer[pos=6 lim=107 cap=1048576]
-    // EngineResult: Status = OK HandshakeStatus = FINISHED
-    // bytesConsumed = 101 bytesProduced = 0
-    // NetworkBuffer: java.nio.HeapByteBuffer[pos=107 lim=107 cap=1048576]
-    // ApplicationBuffer: java.nio.HeapByteBuffer[pos=0 lim=1048576 cap=1048576]
-    // HandshakeStatus(end): NOT_HANDSHAKING
-    handshake(clientChannel, clientEngine, clientBuffers);
-
-    System.out.println("After handshake");
-    // ハンドシェイク終了したので、何も起きない。
-    // ----------------------------------------------------
-    // HandshakeStatus(start): NOT_HANDSHAKING
-    // HandshakeStatus(end): NOT_HANDSHAKING
-    handshake(clientChannel, clientEngine, clientBuffers);
-    // サーバ側も同じ。
-    // ----------------------------------------------------
-    // HandshakeStatus(start): NOT_HANDSHAKING
-    // HandshakeStatus(end): NOT_HANDSHAKING
-    handshake(serverChannel, serverEngine, serverBuffers);
-
-    // Exchanges application data
-    System.out.println("Exchanges application data");
-    // データ送信。
-    // ----------------------------------------------------
-    // ApplicationBuffer: java.nio.HeapByteBuffer[pos=0 lim=5 cap=1048576]
-    // NetworkBuffer: java.nio.HeapByteBuffer[pos=85 lim=1048576 cap=1048576]
-    // EngineResult: Status = OK HandshakeStatus = NOT_HANDSHAKING
-    // bytesConsumed = 5 bytesProduced = 85
-    write(clientChannel, clientEngine);
-    // データ受信
-    // ----------------------------------------------------
-    // ApplicationBuffer: java.nio.HeapByteBuffer[pos=5 lim=1048576 cap=1048576]
-    // EngineResult: Status = OK HandshakeStatus = NOT_HANDSHAKING
-    // bytesConsumed = 85 bytesProduced = 5
-    // Received: hello
-    read(serverChannel, serverEngine);
-
-    clientChannel.close();
-    serverChannel.close();
-    serverSocketChannel.close();
+    while (client.bytesRead < server.bytesWritten || server.bytesRead < client.bytesWritten) {
+      boolean progressed = false;
+      if (client.bytesRead < server.bytesWritten) {
+        progressed |= unwrapPostHandshake(client, verbose);
+      }
+      if (server.bytesRead < client.bytesWritten) {
+        progressed |= unwrapPostHandshake(server, verbose);
+      }
+      if (!progressed) {
+        awaitPackets(deadline, client, server);
+      }
+    }
+    return roundTrips;
   }
 
-  private static void handshake(SocketChannel socketChannel,
-                                SSLEngine engine,
-                                Buffers buffers) throws Exception {
-    // 転送中のパケットが送受信し終えるのに十分な時間待つ
-    Thread.sleep(500);
-    SSLEngineResult.HandshakeStatus handshakeStatus = engine.getHandshakeStatus();
-    System.out.println("HandshakeStatus(start): " + handshakeStatus);
+  // TLSv1.2 のフルハンドシェイクで、各バッファを 1 MiB 固定で確保していた頃に採ったログ。
+  // 今は SSLSession#getPacketBufferSize / getApplicationBufferSize の大きさになる。
+  // また、読むパケットがないときは unwrap を呼ばずに相手に切り替えるので、BUFFER_UNDERFLOW のログは出ない。
+  //
+  // Sends ClientHello
+  // ClientHello 送信。
+  // ----------------------------------------------------
+  // HandshakeStatus(start): NEED_WRAP
+  // EngineResult: Status = OK HandshakeStatus = NEED_UNWRAP
+  // bytesConsumed = 0 bytesProduced = 200
+  // ApplicationBuffer: java.nio.HeapByteBuffer[pos=0 lim=1048576 cap=1048576]
+  // NetworkBuffer: java.nio.HeapByteBuffer[pos=200 lim=1048576 cap=1048576]
+  // HandshakeStatus(end): NEED_UNWRAP
+  //   -> step(client)
+  // ClientHello を送信し終えたので、レスポンスを待つモードに。
+  // ただしまだサーバからレスポンスを送っていないので、
+  // 読み取るパケットが存在せず SocketChannel#read が即座に0を返す。
+  // レスポンスを読まずにすぐ呼び出しが終了するのは、
+  // configureBlocking(false) を設定し O_NONBLOCKING となっているから。
+  // ----------------------------------------------------
+  // HandshakeStatus(start): NEED_UNWRAP
+  // ReceivedNetworkBuffer: java.nio.HeapByteBuffer[pos=0 lim=1048576 cap=1048576]
+  // EngineResult: Status = BUFFER_UNDERFLOW HandshakeStatus = NEED_UNWRAP
+  // bytesConsumed = 0 bytesProduced = 0
+  // NetworkBuffer: java.nio.HeapByteBuffer[pos=0 lim=0 cap=1048576]
+  // ApplicationBuffer: java.nio.HeapByteBuffer[pos=0 lim=1048576 cap=1048576]
+  // HandshakeStatus(end): NEED_UNWRAP
+  //   -> step(client)
+  //
+  // Receives ClientHello and sends responses
+  // 多分 ClientHello を受け取っている。
+  // ----------------------------------------------------
+  // HandshakeStatus(start): NEED_UNWRAP
+  // ReceivedNetworkBuffer: java.nio.HeapByteBuffer[pos=200 lim=1048576 cap=1048576]
+  // EngineResult: Status = OK HandshakeStatus = NEED_TASK
+  // bytesConsumed = 200 bytesProduced = 0
+  // NetworkBuffer: java.nio.HeapByteBuffer[pos=200 lim=200 cap=1048576]
+  // ApplicationBuffer: java.nio.HeapByteBuffer[pos=0 lim=1048576 cap=1048576]
+  // HandshakeStatus(end): NEED_TASK
+  //   -> step(server)
+  // なんらかの TASK を実行。
+  // ----------------------------------------------------
+  // HandshakeStatus(start): NEED_TASK
+  // HandshakeStatus(end): NEED_WRAP
+  //   -> step(server)
+  // ServerHello, ServerCertificate, ServerKeyExchange, CertificateRequest, ServerHelloDone 送信
+  // ----------------------------------------------------
+  // HandshakeStatus(start): NEED_WRAP
+  // EngineResult: Status = OK HandshakeStatus = NEED_UNWRAP
+  // bytesConsumed = 0 bytesProduced = 3217
+  // ApplicationBuffer: java.nio.HeapByteBuffer[pos=0 lim=1048576 cap=1048576]
+  // NetworkBuffer: java.nio.HeapByteBuffer[pos=3217 lim=1048576 cap=1048576]
+  // HandshakeStatus(end): NEED_UNWRAP
+  //   -> step(server)
+  // レスポンスをすべて返したので、クライアントからの送信待ち。
+  // まだクライアントが返信してないので何もしない。
+  // ----------------------------------------------------
+  // HandshakeStatus(start): NEED_UNWRAP
+  // ReceivedNetworkBuffer: java.nio.HeapByteBuffer[pos=0 lim=1048576 cap=1048576]
+  // EngineResult: Status = BUFFER_UNDERFLOW HandshakeStatus = NEED_UNWRAP
+  // bytesConsumed = 0 bytesProduced = 0
+  // NetworkBuffer: java.nio.HeapByteBuffer[pos=0 lim=0 cap=1048576]
+  // ApplicationBuffer: java.nio.HeapByteBuffer[pos=0 lim=1048576 cap=1048576]
+  // HandshakeStatus(end): NEED_UNWRAP
+  //   -> step(server)
+  //
+  // Receives server's responses and sends client's responses
+  // サーバからのレスポンスを読み込む。
+  // ----------------------------------------------------
+  // HandshakeStatus(start): NEED_UNWRAP
+  // ReceivedNetworkBuffer: java.nio.HeapByteBuffer[pos=3217 lim=1048576 cap=1048576]
+  // EngineResult: Status = OK HandshakeStatus = NEED_TASK
+  // bytesConsumed = 3217 bytesProduced = 0
+  // NetworkBuffer: java.nio.HeapByteBuffer[pos=3217 lim=3217 cap=1048576]
+  // ApplicationBuffer: java.nio.HeapByteBuffer[pos=0 lim=1048576 cap=1048576]
+  // HandshakeStatus(end): NEED_TASK
+  //   -> step(client)
+  // 何らかのタスクを実行。
+  // ----------------------------------------------------
+  // HandshakeStatus(start): NEED_TASK
+  // HandshakeStatus(end): NEED_WRAP
+  //   -> step(client)
+  // 何かを送信
+  // ----------------------------------------------------
+  // HandshakeStatus(start): NEED_WRAP
+  // EngineResult: Status = OK HandshakeStatus = NEED_WRAP
+  // bytesConsumed = 0 bytesProduced = 75
+  // ApplicationBuffer: java.nio.HeapByteBuffer[pos=0 lim=1048576 cap=1048576]
+  // NetworkBuffer: java.nio.HeapByteBuffer[pos=75 lim=1048576 cap=1048576]
+  // HandshakeStatus(end): NEED_WRAP
+  //   -> step(client)
+  // さらに何かを送信
+  // ----------------------------------------------------
+  // HandshakeStatus(start): NEED_WRAP
+  // EngineResult: Status = OK HandshakeStatus = NEED_WRAP
+  // bytesConsumed = 0 bytesProduced = 6
+  // ApplicationBuffer: java.nio.HeapByteBuffer[pos=0 lim=1048576 cap=1048576]
+  // NetworkBuffer: java.nio.HeapByteBuffer[pos=6 lim=1048576 cap=1048576]
+  // HandshakeStatus(end): NEED_WRAP
+  //   -> step(client)
+  // さらに何かを送信
+  // ----------------------------------------------------
+  // HandshakeStatus(start): NEED_WRAP
+  // EngineResult: Status = OK HandshakeStatus = NEED_UNWRAP
+  // bytesConsumed = 0 bytesProduced = 101
+  // ApplicationBuffer: java.nio.HeapByteBuffer[pos=0 lim=1048576 cap=1048576]
+  // NetworkBuffer: java.nio.HeapByteBuffer[pos=101 lim=1048576 cap=1048576]
+  // HandshakeStatus(end): NEED_UNWRAP
+  //   -> step(client)
+  // クライアントからの仕事はすべて終えたのでサーバを待つモードに。
+  // ----------------------------------------------------
+  // HandshakeStatus(start): NEED_UNWRAP
+  // ReceivedNetworkBuffer: java.nio.HeapByteBuffer[pos=0 lim=1048576 cap=1048576]
+  // EngineResult: Status = BUFFER_UNDERFLOW HandshakeStatus = NEED_UNWRAP
+  // bytesConsumed = 0 bytesProduced = 0
+  // NetworkBuffer: java.nio.HeapByteBuffer[pos=0 lim=0 cap=1048576]
+  // ApplicationBuffer: java.nio.HeapByteBuffer[pos=0 lim=1048576 cap=1048576]
+  // HandshakeStatus(end): NEED_UNWRAP
+  //   -> step(client)
+  //
+  // Completes a handshake
+  // クライアントからのレスポンスを受信。
+  // ----------------------------------------------------
+  // HandshakeStatus(start): NEED_UNWRAP
+  // ReceivedNetworkBuffer: java.nio.HeapByteBuffer[pos=182 lim=1048576 cap=1048576]
+  // EngineResult: Status = OK HandshakeStatus = NEED_TASK
+  // bytesConsumed = 75 bytesProduced = 0
+  // NetworkBuffer: java.nio.HeapByteBuffer[pos=75 lim=182 cap=1048576]
+  // ApplicationBuffer: java.nio.HeapByteBuffer[pos=0 lim=1048576 cap=1048576]
+  // HandshakeStatus(end): NEED_TASK
+  //   -> step(server)
+  // 何らかのタスクを実行
+  // ----------------------------------------------------
+  // HandshakeStatus(start): NEED_TASK
+  // HandshakeStatus(end): NEED_UNWRAP
+  //   -> step(server)
+  // 何かを読み込む。
+  // ----------------------------------------------------
+  // HandshakeStatus(start): NEED_UNWRAP
+  // ReceivedNetworkBuffer: java.nio.HeapByteBuffer[pos=75 lim=182 cap=1048576]
+  // EngineResult: Status = OK HandshakeStatus = NEED_UNWRAP
+  // bytesConsumed = 6 bytesProduced = 0
+  // NetworkBuffer: java.nio.HeapByteBuffer[pos=81 lim=182 cap=1048576]
+  // ApplicationBuffer: java.nio.HeapByteBuffer[pos=0 lim=1048576 cap=1048576]
+  // HandshakeStatus(end): NEED_UNWRAP
+  //   -> step(server)
+  // さらに何かを読み込む。
+  // ----------------------------------------------------
+  // HandshakeStatus(start): NEED_UNWRAP
+  // ReceivedNetworkBuffer: java.nio.HeapByteBuffer[pos=81 lim=182 cap=1048576]
+  // EngineResult: Status = OK HandshakeStatus = NEED_WRAP
+  // bytesConsumed = 101 bytesProduced = 0
+  // NetworkBuffer: java.nio.HeapByteBuffer[pos=182 lim=182 cap=1048576]
+  // ApplicationBuffer: java.nio.HeapByteBuffer[pos=0 lim=1048576 cap=1048576]
+  // HandshakeStatus(end): NEED_WRAP
+  //   -> step(server)
+  // 何かを送る。
+  // ----------------------------------------------------
+  // HandshakeStatus(start): NEED_WRAP
+  // EngineResult: Status = OK HandshakeStatus = NEED_WRAP
+  // bytesConsumed = 0 bytesProduced = 6
+  // ApplicationBuffer: java.nio.HeapByteBuffer[pos=0 lim=1048576 cap=1048576]
+  // NetworkBuffer: java.nio.HeapByteBuffer[pos=6 lim=1048576 cap=1048576]
+  // HandshakeStatus(end): NEED_WRAP
+  //   -> step(server)
+  // さらに何かを送り、ハンドシェイク完了。
+  // ----------------------------------------------------
+  // HandshakeStatus(start): NEED_WRAP
+  // EngineResult: Status = OK HandshakeStatus = FINISHED
+  // bytesConsumed = 0 bytesProduced = 101
+  // ApplicationBuffer: java.nio.HeapByteBuffer[pos=0 lim=1048576 cap=1048576]
+  // NetworkBuffer: java.nio.HeapByteBuffer[pos=101 lim=1048576 cap=1048576]
+  // HandshakeStatus(end): NOT_HANDSHAKING
+  //   -> step(server)
+  //
+  // Completes handshake on client-side
+  // 何かを読み込む。
+  // ----------------------------------------------------
+  // HandshakeStatus(start): NEED_UNWRAP
+  // ReceivedNetworkBuffer: java.nio.HeapByteBuffer[pos=107 lim=1048576 cap=1048576]
+  // EngineResult: Status = OK HandshakeStatus = NEED_UNWRAP
+  // bytesConsumed = 6 bytesProduced = 0
+  // NetworkBuffer: java.nio.HeapByteBuffer[pos=6 lim=107 cap=1048576]
+  // ApplicationBuffer: java.nio.HeapByteBuffer[pos=0 lim=1048576 cap=1048576]
+  // HandshakeStatus(end): NEED_UNWRAP
+  //   -> step(client)
+  // さらに何かを読み込んでハンドシェイク完了。
+  // ----------------------------------------------------
+  // HandshakeStatus(start): NEED_UNWRAP
+  // ReceivedNetworkBuffer: java.nio.HeapByteBuffer[pos=6 lim=107 cap=1048576]
+  // EngineResult: Status = OK HandshakeStatus = FINISHED
+  // bytesConsumed = 101 bytesProduced = 0
+  // NetworkBuffer: java.nio.HeapByteBuffer[pos=107 lim=107 cap=1048576]
+  // ApplicationBuffer: java.nio.HeapByteBuffer[pos=0 lim=1048576 cap=1048576]
+  // HandshakeStatus(end): NOT_HANDSHAKING
+  //   -> step(client)
+  //
+  // After handshake
+  // ハンドシェイク終了したので、何も起きない。
+  // ----------------------------------------------------
+  // HandshakeStatus(start): NOT_HANDSHAKING
+  // HandshakeStatus(end): NOT_HANDSHAKING
+  //   -> step(client)
+  // サーバ側も同じ。
+  // ----------------------------------------------------
+  // HandshakeStatus(start): NOT_HANDSHAKING
+  // HandshakeStatus(end): NOT_HANDSHAKING
+  //   -> step(server)
+
+  /**
+   * ハンドシェイクを 1 ステップ進める。
+   *
+   * @return 進んだら true。パケットを待っているか、ハンドシェイクを終えていたら false
+   */
+  private static boolean step(Peer peer, boolean verbose) throws Exception {
+    if (verbose) {
+      // 転送中のパケットが届くのを待ち、ログが毎回同じになるようにする
+      Thread.sleep(100);
+    }
+    SSLEngineResult.HandshakeStatus handshakeStatus = peer.engine.getHandshakeStatus();
+    if (verbose) {
+      System.out.println("HandshakeStatus(start): " + handshakeStatus);
+    }
 
     // never used at handshake phase
-    ByteBuffer applicationBuffer = ByteBuffer.allocate(1024 * 1024);
+    ByteBuffer applicationBuffer = applicationBufferPool.acquire();
 
+    boolean progressed;
     switch (handshakeStatus) {
       case NEED_WRAP:
-        buffers.outboundNetworkBuffer.clear();
-        SSLEngineResult wrapEngineResult = engine.wrap(applicationBuffer,
-            buffers.outboundNetworkBuffer);
-        System.out.println("EngineResult: " + wrapEngineResult);
-        System.out.println("ApplicationBuffer: " + applicationBuffer);
-        System.out.println("NetworkBuffer: " + buffers.outboundNetworkBuffer);
-
-        buffers.outboundNetworkBuffer.flip();
-        while (buffers.outboundNetworkBuffer.hasRemaining()) {
-          // Write all the network data
-          // This code should not be executed in production!
-          // If production, let Selector notify that the socketChannel becomes writable
-          socketChannel.write(buffers.outboundNetworkBuffer);
-        }
+        progressed = wrap(peer, applicationBuffer, verbose);
         break;
-      case NEED_UNWRAP:
-        if (buffers.inboundNetworkBuffer.position() != 0
-            && buffers.inboundNetworkBuffer.hasRemaining()) {
-          // 前回の NEED_UNWRAP で全メッセージを消化しきれなかったケース
-          // ちょっと雑
-          System.out.println("ReceivedNetworkBuffer: " + buffers.inboundNetworkBuffer);
-          SSLEngineResult unwrapEngineResult = engine.unwrap(buffers.inboundNetworkBuffer,
-              applicationBuffer);
-          System.out.println("EngineResult: " + unwrapEngineResult);
-          System.out.println("NetworkBuffer: " + buffers.inboundNetworkBuffer);
-          System.out.println("ApplicationBuffer: " + applicationBuffer);
-        } else {
-          buffers.inboundNetworkBuffer.clear();
-          while (socketChannel.read(buffers.inboundNetworkBuffer) > 0) {
-            // Read all the data that the other peer has sent
-            // If production, let Selector notify that the socketChannel becomes readable
-          }
-          System.out.println("ReceivedNetworkBuffer: " + buffers.inboundNetworkBuffer);
-          buffers.inboundNetworkBuffer.flip();
-          SSLEngineResult unwrapEngineResult = engine.unwrap(buffers.inboundNetworkBuffer,
-              applicationBuffer);
-          System.out.println("EngineResult: " + unwrapEngineResult);
-          System.out.println("NetworkBuffer: " + buffers.inboundNetworkBuffer);
-          System.out.println("ApplicationBuffer: " + applicationBuffer);
+      case NEED_TASK:
+        Runnable task;
+        while ((task = peer.engine.getDelegatedTask()) != null) {
+          task.run();
+          peer.tasks++;
         }
+        progressed = true;
         break;
-      case NEED_TASK:
-        Runnable task = engine.getDelegatedTask();
-        task.run();
+      case NOT_HANDSHAKING:
+        // 先にハンドシェイクを終えたので、相手を待つ
+        progressed = false;
+        break;
+      default:
+        // NEED_UNWRAP (及び JDK 9 以降の NEED_UNWRAP_AGAIN)
+        progressed = unwrap(peer, applicationBuffer, verbose);
         break;
     }
 
@@ -356,15 +630,169 @@ public class HandshakeLogging {
     if (applicationBuffer.position() != 0) {
       throw new AssertionError();
     }
+    applicationBufferPool.release(applicationBuffer);
 
-    System.out.println("HandshakeStatus(end): " + engine.getHandshakeStatus());
-    System.out.println();
+    if (verbose) {
+      System.out.println("HandshakeStatus(end): " + peer.engine.getHandshakeStatus());
+      System.out.println();
+    }
+    return progressed;
+  }
+
+  private static boolean wrap(Peer peer, ByteBuffer applicationBuffer, boolean verbose) throws Exception {
+    ByteBuffer outboundNetworkBuffer = peer.buffers.outboundNetworkBuffer;
+    outboundNetworkBuffer.clear();
+    SSLEngineResult result = peer.engine.wrap(applicationBuffer, outboundNetworkBuffer);
+    peer.wraps++;
+    if (verbose) {
+      System.out.println("EngineResult: " + result);
+      System.out.println("ApplicationBuffer: " + applicationBuffer);
+      System.out.println("NetworkBuffer: " + outboundNetworkBuffer);
+    }
+
+    outboundNetworkBuffer.flip();
+    while (outboundNetworkBuffer.hasRemaining()) {
+      // Write all the network data
+      // This code should not be executed in production!
+      // If production, let Selector notify that the socketChannel becomes writable
+      peer.bytesWritten += peer.channel.write(outboundNetworkBuffer);
+    }
+    if (result.bytesProduced() > 0) {
+      peer.sentSinceWait = true;
+    }
+    return result.getStatus() == SSLEngineResult.Status.OK;
+  }
+
+  /**
+   * 届いているパケットを読んで unwrap する。読むものがなければ unwrap を呼ばない。
+   */
+  private static boolean unwrap(Peer peer, ByteBuffer applicationBuffer, boolean verbose) throws Exception {
+    ByteBuffer inboundNetworkBuffer = peer.buffers.inboundNetworkBuffer;
+    int read;
+    while ((read = peer.channel.read(inboundNetworkBuffer)) > 0) {
+      // Read all the data that the other peer has sent
+      // If production, let Selector notify that the socketChannel becomes readable
+      peer.bytesRead += read;
+    }
+    if (read < 0) {
+      throw new IOException("Connection closed during handshake");
+    }
+    if (verbose) {
+      System.out.println("ReceivedNetworkBuffer: " + inboundNetworkBuffer);
+    }
+    if (inboundNetworkBuffer.position() == 0) {
+      return false;
+    }
+
+    inboundNetworkBuffer.flip();
+    SSLEngineResult result;
+    try {
+      result = peer.engine.unwrap(inboundNetworkBuffer, applicationBuffer);
+    } finally {
+      inboundNetworkBuffer.compact();
+    }
+    peer.unwraps++;
+    if (verbose) {
+      System.out.println("EngineResult: " + result);
+      System.out.println("NetworkBuffer: " + inboundNetworkBuffer);
+      System.out.println("ApplicationBuffer: " + applicationBuffer);
+    }
+    // BUFFER_UNDERFLOW ならパケットの残りを待つ
+    return result.getStatus() == SSLEngineResult.Status.OK;
+  }
+
+  private static boolean unwrapPostHandshake(Peer peer, boolean verbose) throws Exception {
+    if (verbose) {
+      System.out.println("[" + peer.name + " after handshake]");
+    }
+    ByteBuffer applicationBuffer = applicationBufferPool.acquire();
+    try {
+      boolean progressed = unwrap(peer, applicationBuffer, verbose);
+      // NewSessionTicket などで、アプリケーションデータはまだ届かない
+      if (applicationBuffer.position() != 0) {
+        throw new AssertionError();
+      }
+      if (verbose) {
+        System.out.println();
+      }
+      return progressed;
+    } finally {
+      applicationBufferPool.release(applicationBuffer);
+    }
+  }
+
+  /**
+   * initiator から close_notify を送り、responder が受け取ったら close_notify を返す。
+   * initiator がそれを受け取るまで進めるので、この後はどちらのチャネルを閉じてもよい。
+   * TLS 1.3 では close_notify を受け取っても自動では返さない（half-close）ので、
+   * responder でも closeOutbound を呼ぶ。
+   */
+  private static void closeGracefully(Peer initiator, Peer responder, boolean verbose) throws Exception {
+    // closeOutbound の後の wrap はアプリケーションデータを読まない
+    ByteBuffer empty = ByteBuffer.allocate(0);
+    long deadline = System.nanoTime() + TIMEOUT_NANOS;
+    if (verbose) {
+      System.out.println("[" + initiator.name + " closeOutbound]");
+    }
+    initiator.engine.closeOutbound();
+    while (!initiator.engine.isOutboundDone()) {
+      wrap(initiator, empty, verbose);
+    }
+    awaitCloseNotify(responder, deadline, initiator, verbose);
+
+    if (verbose) {
+      System.out.println("[" + responder.name + " closeOutbound]");
+    }
+    responder.engine.closeOutbound();
+    while (!responder.engine.isOutboundDone()) {
+      wrap(responder, empty, verbose);
+    }
+    awaitCloseNotify(initiator, deadline, responder, verbose);
+    if (verbose) {
+      System.out.println();
+    }
+  }
+
+  private static void awaitCloseNotify(Peer peer, long deadline, Peer other, boolean verbose) throws Exception {
+    if (verbose) {
+      System.out.println("[" + peer.name + " awaits close_notify]");
+    }
+    ByteBuffer applicationBuffer = applicationBufferPool.acquire();
+    try {
+      while (!peer.engine.isInboundDone()) {
+        if (!unwrap(peer, applicationBuffer, verbose) && !peer.engine.isInboundDone()) {
+          awaitPackets(deadline, peer, other);
+        }
+      }
+    } finally {
+      applicationBufferPool.release(applicationBuffer);
+    }
+  }
+
+  /**
+   * ループバックでも、書いたパケットがすぐ読めるとは限らないので、少し待つ。
+   * 待った時間は両方の Peer の waitNanos に足す。
+   */
+  private static void awaitPackets(long deadline, Peer client, Peer server) throws Exception {
+    long start = System.nanoTime();
+    if (start > deadline) {
+      throw new IOException("Handshake stalled: client=" + client.engine.getHandshakeStatus()
+          + " server=" + server.engine.getHandshakeStatus());
+    }
+    Thread.sleep(1);
+    long waitNanos = System.nanoTime() - start;
+    client.waitNanos += waitNanos;
+    server.waitNanos += waitNanos;
+  }
+
+  private static boolean isHandshaking(SSLEngine engine) {
+    return engine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING;
   }
 
   private static void write(SocketChannel channel, SSLEngine engine) throws Exception {
     Thread.sleep(500);
-    ByteBuffer networkBuffer = ByteBuffer.allocate(1024 * 1024);
-    ByteBuffer applicationBuffer = ByteBuffer.allocate(1024 * 1024);
+    ByteBuffer networkBuffer = packetBufferPool.acquire();
+    ByteBuffer applicationBuffer = applicationBufferPool.acquire();
 
     applicationBuffer.put("hello".getBytes());
     applicationBuffer.flip();
@@ -378,13 +806,15 @@ public class HandshakeLogging {
     while (networkBuffer.hasRemaining()) {
       channel.write(networkBuffer);
     }
+    packetBufferPool.release(networkBuffer);
+    applicationBufferPool.release(applicationBuffer);
     System.out.println();
   }
 
   private static void read(SocketChannel channel, SSLEngine engine) throws Exception {
     Thread.sleep(500);
-    ByteBuffer networkBuffer = ByteBuffer.allocate(1024 * 1024);
-    ByteBuffer applicationBuffer = ByteBuffer.allocate(1024 * 1024);
+    ByteBuffer networkBuffer = packetBufferPool.acquire();
+    ByteBuffer applicationBuffer = applicationBufferPool.acquire();
 
     while (channel.read(networkBuffer) > 0) {
       // 全部読み込む
@@ -397,26 +827,21 @@ public class HandshakeLogging {
     System.out.println("EngineResult: " + engineResult);
 
     applicationBuffer.flip();
-    String message = new String(applicationBuffer.array(), 0, applicationBuffer.limit());
+    // direct buffer は array() を持たないのでコピーする
+    byte[] bytes = new byte[applicationBuffer.remaining()];
+    applicationBuffer.get(bytes);
+    String message = new String(bytes);
     System.out.println("Received: " + message);
+    packetBufferPool.release(networkBuffer);
+    applicationBufferPool.release(applicationBuffer);
     System.out.println();
   }
 
-  private static KeyManager[] createKeyManagers() throws Exception {
-    KeyStore keyStore = KeyStore.getInstance("JKS");
-    InputStream inputStream = new FileInputStream("./src/main/resources/nio-ssl-test-server.jks");
-    keyStore.load(inputStream, PASSWORD.toCharArray());
-    KeyManagerFactory factory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
-    factory.init(keyStore, PASSWORD.toCharArray());
-    return factory.getKeyManagers();
+  static KeyManager[] createKeyManagers() throws Exception {
+    return TlsContextFactory.loadKeyManagers(TlsContextFactory.SERVER_KEY_STORE, TlsContextFactory.PASSWORD);
   }
 
-  private static TrustManager[] createTrustManagers() throws Exception {
-    KeyStore trustStore = KeyStore.getInstance("JKS");
-    InputStream inputStream = new FileInputStream("./src/main/resources/nio-ssl-test-ca.jks");
-    trustStore.load(inputStream, PASSWORD.toCharArray());
-    TrustManagerFactory factory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
-    factory.init(trustStore);
-    return factory.getTrustManagers();
+  static TrustManager[] createTrustManagers() throws Exception {
+    return TlsContextFactory.loadTrustManagers(TlsContextFactory.CA_TRUST_STORE, TlsContextFactory.PASSWORD);
   }
 }
@@ -0,0 +1,50 @@
+package niossltest;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * 多数のコネクションの HandshakeTrace を、フェーズごとの LatencyHistogram に集める。
+ * TlsConnection に渡さなければ計測は行われない。
+ */
+class HandshakeMetrics {
+  private final Map<HandshakeTrace.Phase, LatencyHistogram> histograms =
+      new EnumMap<>(HandshakeTrace.Phase.class);
+
+  HandshakeMetrics() {
+    for (HandshakeTrace.Phase phase : HandshakeTrace.Phase.values()) {
+      histograms.put(phase, new LatencyHistogram());
+    }
+  }
+
+  void record(HandshakeTrace.Phase phase, long nanos) {
+    histograms.get(phase).record(nanos);
+  }
+
+  LatencyHistogram histogram(HandshakeTrace.Phase phase) {
+    return histograms.get(phase);
+  }
+
+  /**
+   * @return {"unit":"ns","WRAP":{...},"UNWRAP":{...},...}
+   */
+  String toJson() {
+    StringBuilder json = new StringBuilder("{\"unit\":\"ns\"");
+    for (Map.Entry<HandshakeTrace.Phase, LatencyHistogram> entry : histograms.entrySet()) {
+      json.append(",\"").append(entry.getKey()).append("\":").append(entry.getValue().toJson());
+    }
+    return json.append('}').toString();
+  }
+
+  /**
+   * 定期的なログ向けの、ハンドシェイク全体の所要時間の要約。
+   */
+  @Override
+  public String toString() {
+    LatencyHistogram handshake = histograms.get(HandshakeTrace.Phase.HANDSHAKE);
+    return "HandshakeMetrics(count=" + handshake.count()
+        + " p50=" + handshake.percentile(50) / 1000 + "us"
+        + " p99=" + handshake.percentile(99) / 1000 + "us"
+        + " max=" + handshake.max() / 1000 + "us)";
+  }
+}
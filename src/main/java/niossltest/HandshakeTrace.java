@@ -0,0 +1,104 @@
+package niossltest;
+
+import java.util.ArrayList;
+import java.util.List;
+import javax.net.ssl.SSLEngineResult;
+
+/**
+ * 1 つのコネクションのハンドシェイク中に、SSLEngine の各フェーズにかかった時間。
+ * 時刻はすべて System.nanoTime で、記録するたびに HandshakeMetrics にも加える。
+ * ハンドシェイクが終わると記録をやめる。
+ *
+ * 委譲タスクの完了は Executor のスレッドから記録されるので、同期する。
+ */
+class HandshakeTrace {
+  enum Phase {
+    WRAP,
+    UNWRAP,
+    // Executor に渡した場合は、キューで待っていた時間も含む
+    DELEGATED_TASK,
+    // パケットの到着（OP_READ）か、送信バッファの空き（OP_WRITE）を待っていた時間
+    SOCKET_WAIT,
+    // コネクションを作ってから FINISHED までの全体
+    HANDSHAKE
+  }
+
+  private static class Event {
+    final Phase phase;
+    final long startNanos;
+    final long durationNanos;
+    final SSLEngineResult.HandshakeStatus handshakeStatus;
+
+    Event(Phase phase, long startNanos, long durationNanos, SSLEngineResult.HandshakeStatus handshakeStatus) {
+      this.phase = phase;
+      this.startNanos = startNanos;
+      this.durationNanos = durationNanos;
+      this.handshakeStatus = handshakeStatus;
+    }
+  }
+
+  private final HandshakeMetrics metrics;
+  private final long startNanos = System.nanoTime();
+  private final List<Event> events = new ArrayList<>();
+  private long waitStartNanos = 0;
+  private long handshakeNanos = 0;
+
+  HandshakeTrace(HandshakeMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  /**
+   * @param phaseStartNanos そのフェーズを始めたときの System.nanoTime
+   * @param handshakeStatus フェーズを終えた後の状態
+   */
+  synchronized void record(Phase phase, long phaseStartNanos, SSLEngineResult.HandshakeStatus handshakeStatus) {
+    long durationNanos = System.nanoTime() - phaseStartNanos;
+    events.add(new Event(phase, phaseStartNanos - startNanos, durationNanos, handshakeStatus));
+    metrics.record(phase, durationNanos);
+  }
+
+  /**
+   * I/O 待ちに入った。すでに待っているなら何もしない。
+   */
+  synchronized void waitStarted() {
+    if (waitStartNanos == 0) {
+      waitStartNanos = System.nanoTime();
+    }
+  }
+
+  /**
+   * 待っていた I/O イベントが届いた。待っていなければ何もしない。
+   */
+  synchronized void waitFinished(SSLEngineResult.HandshakeStatus handshakeStatus) {
+    if (waitStartNanos != 0) {
+      record(Phase.SOCKET_WAIT, waitStartNanos, handshakeStatus);
+      waitStartNanos = 0;
+    }
+  }
+
+  synchronized void finished() {
+    waitStartNanos = 0;
+    handshakeNanos = System.nanoTime() - startNanos;
+    metrics.record(Phase.HANDSHAKE, handshakeNanos);
+  }
+
+  /**
+   * @return {"handshakeNanos":..,"events":[{"phase":..,"startNanos":..,"durationNanos":..,"status":..},...]}。
+   *         startNanos はコネクションを作ったときからの経過時間
+   */
+  synchronized String toJson() {
+    StringBuilder json = new StringBuilder();
+    json.append("{\"handshakeNanos\":").append(handshakeNanos).append(",\"events\":[");
+    for (int i = 0; i < events.size(); i++) {
+      Event event = events.get(i);
+      if (i > 0) {
+        json.append(',');
+      }
+      json.append("{\"phase\":\"").append(event.phase)
+          .append("\",\"startNanos\":").append(event.startNanos)
+          .append(",\"durationNanos\":").append(event.durationNanos)
+          .append(",\"status\":\"").append(event.handshakeStatus).append("\"}");
+    }
+    return json.append("]}").toString();
+  }
+}
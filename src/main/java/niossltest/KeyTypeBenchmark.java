@@ -0,0 +1,100 @@
+package niossltest;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+
+/**
+ * gen-keypair.sh が作る、鍵の種類と大きさが異なるサーバの鍵ストアごとにハンドシェイクし、
+ * サーバ側の CPU コストを比べる。
+ * サーバの TlsConnection の WRAP / UNWRAP / DELEGATED_TASK の時間の合計を、
+ * サーバが 1 回のハンドシェイクに使った CPU 時間とみなす（SOCKET_WAIT は含まない）。
+ * 暗号スイートは鍵に合わせてデフォルトのものが選ばれる（RSA なら ECDHE_RSA、EC なら ECDHE_ECDSA）。
+ *
+ * 出力
+ * - 鍵ごとに、選ばれた暗号スイート、サーバの 1 ハンドシェイクあたりの CPU 時間、
+ *   1 コア秒あたりのハンドシェイク数（サーバ側）、1 秒あたりのハンドシェイク数（クライアント込みの実時間）
+ *
+ * Usage: KeyTypeBenchmark [handshakes] [TLSv1.2|TLSv1.3] [socket|memory]
+ */
+public class KeyTypeBenchmark {
+  private static final int MAX_POOLED_BUFFERS = 4;
+  private static final String[] KEY_TYPES = {"rsa2048", "rsa4096", "ec256", "ec384"};
+
+  public static void main(String[] args) throws Exception {
+    int handshakes = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+    String protocol = args.length > 1 ? args[1] : "TLSv1.2";
+    Transport transport = Transport.parse(args, 2);
+
+    SSLContext clientContext = TlsContextFactory.forClient().context();
+    for (String keyType : KEY_TYPES) {
+      SSLParameters parameters = new SSLParameters();
+      parameters.setNeedClientAuth(false);
+      SSLContext serverContext = new TlsContextFactory(keyStore(keyType),
+          TlsContextFactory.CA_TRUST_STORE, TlsContextFactory.PASSWORD, parameters).context();
+      BufferPool packetBufferPool = BufferPool.forPackets(BufferType.HEAP,
+          serverContext.createSSLEngine().getSession(), MAX_POOLED_BUFFERS);
+      BufferPool applicationBufferPool = BufferPool.forApplicationData(BufferType.HEAP,
+          serverContext.createSSLEngine().getSession(), MAX_POOLED_BUFFERS);
+
+      // JIT のウォームアップ。計測には含めない
+      run(handshakes / 10 + 1, transport, protocol, serverContext, clientContext,
+          packetBufferPool, applicationBufferPool, new HandshakeMetrics());
+
+      HandshakeMetrics serverMetrics = new HandshakeMetrics();
+      long start = System.nanoTime();
+      String cipherSuite = run(handshakes, transport, protocol, serverContext, clientContext,
+          packetBufferPool, applicationBufferPool, serverMetrics);
+      long elapsedNanos = System.nanoTime() - start;
+
+      double serverNanos = totalNanos(serverMetrics, HandshakeTrace.Phase.WRAP)
+          + totalNanos(serverMetrics, HandshakeTrace.Phase.UNWRAP)
+          + totalNanos(serverMetrics, HandshakeTrace.Phase.DELEGATED_TASK);
+      System.out.printf("key=%s protocol=%s transport=%s cipherSuite=%s handshakes=%d"
+              + " serverCpuPerHandshake=%.0fus handshakesPerCoreSecond=%.1f handshakesPerSecond=%.1f%n",
+          keyType,
+          protocol,
+          transport,
+          cipherSuite,
+          handshakes,
+          serverNanos / handshakes / 1e3,
+          handshakes / (serverNanos / 1e9),
+          handshakes / (elapsedNanos / 1e9));
+    }
+  }
+
+  private static Path keyStore(String keyType) {
+    return Paths.get("./src/main/resources/nio-ssl-test-server-" + keyType + ".jks");
+  }
+
+  /**
+   * @return 最後のハンドシェイクで選ばれた暗号スイート
+   */
+  private static String run(int handshakes,
+                            Transport transport,
+                            String protocol,
+                            SSLContext serverContext,
+                            SSLContext clientContext,
+                            BufferPool packetBufferPool,
+                            BufferPool applicationBufferPool,
+                            HandshakeMetrics serverMetrics) throws Exception {
+    String cipherSuite = null;
+    for (int i = 0; i < handshakes; i++) {
+      SSLEngine clientEngine = clientContext.createSSLEngine();
+      clientEngine.setEnabledProtocols(new String[] {protocol});
+      try (LoopbackPair pair = LoopbackPair.open(transport, serverContext, clientEngine,
+          packetBufferPool, applicationBufferPool, null, serverMetrics)) {
+        pair.handshake();
+        cipherSuite = clientEngine.getSession().getCipherSuite();
+      }
+    }
+    return cipherSuite;
+  }
+
+  private static double totalNanos(HandshakeMetrics metrics, HandshakeTrace.Phase phase) {
+    LatencyHistogram histogram = metrics.histogram(phase);
+    return histogram.count() * histogram.mean();
+  }
+}
@@ -0,0 +1,103 @@
+package niossltest;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * HdrHistogram と同じ考え方の、ナノ秒単位のレイテンシ分布。
+ * 128 未満の値はそのまま数え、それ以上は上位 7 bit ごとのバケットにまとめるので、
+ * 相対誤差は 1/64 以下で、どんな値でも固定の配列 1 つに収まる。
+ *
+ * record は複数のスレッドから呼んでよい（委譲タスクの完了は Executor のスレッドで記録する）。
+ */
+class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 7;
+  private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+  private static final int HALF_SUB_BUCKET_COUNT = SUB_BUCKET_COUNT / 2;
+  // long の最上位ビットは符号なので、シフト量は最大 62 - (SUB_BUCKET_BITS - 1)
+  private static final int MAX_SHIFT = 63 - SUB_BUCKET_BITS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(SUB_BUCKET_COUNT + MAX_SHIFT * HALF_SUB_BUCKET_COUNT);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong sum = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  /**
+   * @param nanos 負の値は 0 として数える
+   */
+  void record(long nanos) {
+    long value = Math.max(nanos, 0);
+    counts.incrementAndGet(indexOf(value));
+    count.incrementAndGet();
+    sum.addAndGet(value);
+    long currentMax;
+    while (value > (currentMax = max.get()) && !max.compareAndSet(currentMax, value)) {
+      // 他のスレッドに更新されたので読み直す
+    }
+  }
+
+  long count() {
+    return count.get();
+  }
+
+  long max() {
+    return max.get();
+  }
+
+  double mean() {
+    long n = count.get();
+    return n == 0 ? 0 : (double) sum.get() / n;
+  }
+
+  /**
+   * @param percentile 0 から 100
+   * @return その割合の記録がこれ以下に収まる値。バケットの上端を返すので、実際の値より最大 1/64 大きい
+   */
+  long percentile(double percentile) {
+    long n = count.get();
+    if (n == 0) {
+      return 0;
+    }
+    long target = Math.max(1, (long) Math.ceil(n * percentile / 100));
+    long seen = 0;
+    for (int i = 0; i < counts.length(); i++) {
+      seen += counts.get(i);
+      if (seen >= target) {
+        return Math.min(highestValueAt(i), max.get());
+      }
+    }
+    return max.get();
+  }
+
+  /**
+   * @return {"count":..,"mean":..,"p50":..,"p90":..,"p99":..,"p999":..,"max":..}（単位はナノ秒）
+   */
+  String toJson() {
+    return "{\"count\":" + count()
+        + ",\"mean\":" + Math.round(mean())
+        + ",\"p50\":" + percentile(50)
+        + ",\"p90\":" + percentile(90)
+        + ",\"p99\":" + percentile(99)
+        + ",\"p999\":" + percentile(99.9)
+        + ",\"max\":" + max() + "}";
+  }
+
+  private static int indexOf(long value) {
+    if (value < SUB_BUCKET_COUNT) {
+      return (int) value;
+    }
+    // value >>> shift が [64, 128) に入るようにずらす
+    int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+    int subBucket = (int) (value >>> shift) - HALF_SUB_BUCKET_COUNT;
+    return SUB_BUCKET_COUNT + (shift - 1) * HALF_SUB_BUCKET_COUNT + subBucket;
+  }
+
+  private static long highestValueAt(int index) {
+    if (index < SUB_BUCKET_COUNT) {
+      return index;
+    }
+    int shift = (index - SUB_BUCKET_COUNT) / HALF_SUB_BUCKET_COUNT + 1;
+    long subBucket = (index - SUB_BUCKET_COUNT) % HALF_SUB_BUCKET_COUNT + HALF_SUB_BUCKET_COUNT;
+    return ((subBucket + 1) << shift) - 1;
+  }
+}
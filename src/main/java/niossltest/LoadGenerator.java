@@ -0,0 +1,453 @@
+package niossltest;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLEngine;
+
+/**
+ * TlsServer などに負荷をかけるクライアント。
+ * HandshakeLogging のクライアントと同じく、client mode の SSLEngine を non-blocking な SocketChannel で動かす。
+ *
+ * 1 秒あたり handshakes per second のペースで connections 本までコネクションを増やし、
+ * 確立済みのコネクションへ順番に、合計 messages per second のペースで message size バイトのメッセージを送る。
+ * 毎秒、ハンドシェイク数、確立済みのコネクション数、送信バイト数とレイテンシのパーセンタイルを表示する。
+ * 閉じたコネクションは外し、同じペースで張り直して connections 本を保つ。
+ * ハンドシェイクを終える前に閉じたもの（サーバに切られた場合も含む）は failed、終えた後に閉じたものは dropped に数える。
+ *
+ * メッセージのレイテンシは、予定していた送信時刻から、最後のパケットを書き出し終えるまでの時間。
+ * 実際に送り始めた時刻から測ると、サーバが詰まって送れなかった間の遅れが見えなくなるため。
+ * 予定した時刻に確立済みのコネクションがなかったメッセージと、送り終える前にコネクションが閉じたメッセージは
+ * missed に数える。張り直しが続いても、送れた分だけを見て達成したペースを多く見積もらないようにするため。
+ *
+ * コア数の Selector スレッドで動かす。どれかのスレッドが例外で止まったら、その時点で例外を投げて終える。
+ * 接続先がループバックで、127.0.0.2 に bind できるなら（Linux など 127/8 がすべて lo に向くとき）、
+ * 送信元アドレスを 127.0.0.x に散らして、エフェメラルポートの数を超えて接続できるようにする。
+ * できなければ（macOS など）送信元は OS に任せる。
+ *
+ * Usage: LoadGenerator [host:port] [connections] [handshakes per second] [message size]
+ *                      [messages per second] [seconds]
+ */
+public class LoadGenerator {
+  private static final int MAX_POOLED_BUFFERS = 64;
+  private static final int SOURCE_ADDRESSES = 8;
+  private static final long REPORT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  /**
+   * 1 本のコネクションと、まだ送っていないメッセージの予定時刻。
+   */
+  private static class Client {
+    final TlsConnection connection;
+    final ArrayDeque<Long> scheduledMessages = new ArrayDeque<>();
+    // 送信中のメッセージの予定時刻。なければ 0
+    long currentMessageNanos = 0;
+    // 送信中のメッセージのうち、まだ write していないバイト数
+    int remainingBytes = 0;
+
+    Client(TlsConnection connection) {
+      this.connection = connection;
+    }
+  }
+
+  /**
+   * 1 つの Selector スレッドで、割り当てられた分のコネクションを張って送り続ける。
+   * 統計は報告用に別スレッドから読むので volatile。
+   */
+  private static class Worker implements Runnable {
+    private final TlsContextFactory contextFactory;
+    private final InetSocketAddress address;
+    private final boolean spreadSourceAddresses;
+    private final int workerIndex;
+    private final int connectionCount;
+    private final long handshakeIntervalNanos;
+    private final long messageIntervalNanos;
+    private final ByteBuffer payload;
+    private final LatencyHistogram handshakeLatencies;
+    private final LatencyHistogram messageLatencies;
+    private final List<Client> clients = new ArrayList<>();
+    private volatile boolean running = true;
+    private int nextClient = 0;
+
+    volatile long completedHandshakes = 0;
+    volatile int establishedConnections = 0;
+    volatile long failedConnections = 0;
+    volatile long droppedConnections = 0;
+    volatile long sentBytes = 0;
+    volatile long sentMessages = 0;
+    volatile long missedMessages = 0;
+
+    /**
+     * @param messageIntervalNanos 0 ならメッセージを送らない
+     */
+    Worker(TlsContextFactory contextFactory,
+           InetSocketAddress address,
+           boolean spreadSourceAddresses,
+           int workerIndex,
+           int connectionCount,
+           long handshakeIntervalNanos,
+           long messageIntervalNanos,
+           ByteBuffer payload,
+           LatencyHistogram handshakeLatencies,
+           LatencyHistogram messageLatencies) {
+      this.contextFactory = contextFactory;
+      this.address = address;
+      this.spreadSourceAddresses = spreadSourceAddresses;
+      this.workerIndex = workerIndex;
+      this.connectionCount = connectionCount;
+      this.handshakeIntervalNanos = handshakeIntervalNanos;
+      this.messageIntervalNanos = messageIntervalNanos;
+      this.payload = payload;
+      this.handshakeLatencies = handshakeLatencies;
+      this.messageLatencies = messageLatencies;
+    }
+
+    void shutdown() {
+      running = false;
+    }
+
+    @Override
+    public void run() {
+      try (Selector selector = Selector.open()) {
+        SSLEngine sessionEngine = contextFactory.context().createSSLEngine();
+        BufferPool packetBufferPool = BufferPool.forPackets(BufferType.HEAP, sessionEngine.getSession(),
+            MAX_POOLED_BUFFERS);
+        BufferPool applicationBufferPool = BufferPool.forApplicationData(BufferType.HEAP,
+            sessionEngine.getSession(), MAX_POOLED_BUFFERS);
+
+        long nextHandshakeNanos = System.nanoTime();
+        long nextMessageNanos = nextHandshakeNanos;
+        while (running) {
+          long now = System.nanoTime();
+          if (clients.size() >= connectionCount) {
+            // 張り直しは、空きができた時点からハンドシェイクのペースで行う
+            nextHandshakeNanos = Math.max(nextHandshakeNanos, now);
+          }
+          while (clients.size() < connectionCount && nextHandshakeNanos <= now) {
+            open(selector, packetBufferPool, applicationBufferPool, nextHandshakeNanos);
+            nextHandshakeNanos += handshakeIntervalNanos;
+          }
+          while (messageIntervalNanos > 0 && nextMessageNanos <= now) {
+            schedule(selector, nextMessageNanos);
+            nextMessageNanos += messageIntervalNanos;
+          }
+
+          long timeoutNanos = Math.min(
+              clients.size() < connectionCount ? nextHandshakeNanos - now : REPORT_INTERVAL_NANOS,
+              messageIntervalNanos > 0 ? nextMessageNanos - now : REPORT_INTERVAL_NANOS);
+          if (timeoutNanos < TimeUnit.MILLISECONDS.toNanos(1)) {
+            selector.selectNow();
+          } else {
+            selector.select(TimeUnit.NANOSECONDS.toMillis(timeoutNanos));
+          }
+          for (SelectionKey key : selector.selectedKeys()) {
+            handle(key);
+          }
+          selector.selectedKeys().clear();
+        }
+
+        for (Client client : clients) {
+          client.connection.close();
+        }
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    /**
+     * 接続を始める。ソケットを作れなかったとき（ファイルディスクリプタが尽きたときなど）も failed に数えて続ける。
+     *
+     * @param startNanos 予定していた接続時刻。ハンドシェイクのレイテンシはここから測る
+     */
+    private void open(Selector selector,
+                      BufferPool packetBufferPool,
+                      BufferPool applicationBufferPool,
+                      long startNanos) {
+      SocketChannel channel = null;
+      Client client = null;
+      try {
+        channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        if (spreadSourceAddresses) {
+          int index = workerIndex + clients.size();
+          channel.bind(new InetSocketAddress("127.0.0." + (2 + index % SOURCE_ADDRESSES), 0));
+        }
+        SSLEngine engine = contextFactory.createClientEngine(address.getHostString(), address.getPort());
+        engine.beginHandshake();
+        TlsConnection connection = new TlsConnection(channel, engine, new TlsConnection.Listener() {
+          @Override
+          public void onHandshakeFinished(TlsConnection connection) {
+            handshakeLatencies.record(System.nanoTime() - startNanos);
+            completedHandshakes++;
+            establishedConnections++;
+          }
+        }, packetBufferPool, applicationBufferPool, null);
+        client = new Client(connection);
+        clients.add(client);
+
+        if (channel.connect(address)) {
+          connection.process();
+          channel.register(selector, connection.interestOps(), client);
+        } else {
+          channel.register(selector, SelectionKey.OP_CONNECT, client);
+        }
+      } catch (IOException e) {
+        if (client != null) {
+          closeQuietly(client.connection);
+          remove(client);
+        } else {
+          if (channel != null) {
+            try {
+              channel.close();
+            } catch (IOException closeException) {
+              // ignore
+            }
+          }
+          failedConnections++;
+        }
+      }
+    }
+
+    /**
+     * 確立済みのコネクションに順番にメッセージを割り当てる。
+     * 確立済みのものがなければ、その回は送らずに missed に数える。
+     */
+    private void schedule(Selector selector, long scheduledNanos) {
+      for (int i = 0; i < clients.size(); i++) {
+        // 閉じたコネクションを外すと、nextClient が範囲外になっていることがある
+        nextClient %= clients.size();
+        Client client = clients.get(nextClient);
+        nextClient = (nextClient + 1) % clients.size();
+        if (client.connection.isHandshakeFinished() && !client.connection.isClosed()) {
+          client.scheduledMessages.add(scheduledNanos);
+          try {
+            send(client);
+          } catch (IOException e) {
+            // サーバに切られた。updateInterestOps で外す
+            closeQuietly(client.connection);
+          }
+          updateInterestOps(selector, client);
+          return;
+        }
+      }
+      missedMessages++;
+    }
+
+    private void handle(SelectionKey key) {
+      Client client = (Client) key.attachment();
+      TlsConnection connection = client.connection;
+      try {
+        if (key.isConnectable()) {
+          if (!((SocketChannel) key.channel()).finishConnect()) {
+            return;
+          }
+          connection.process();
+        } else if (key.isReadable()) {
+          connection.onReadable();
+        } else if (key.isWritable()) {
+          connection.onWritable();
+        }
+        send(client);
+      } catch (IOException e) {
+        closeQuietly(connection);
+      }
+      updateInterestOps(key.selector(), client);
+    }
+
+    /**
+     * 予定済みのメッセージを、送信キューが詰まるまで送る。
+     */
+    private void send(Client client) throws IOException {
+      TlsConnection connection = client.connection;
+      while (connection.isHandshakeFinished() && !connection.isClosed()) {
+        if (client.remainingBytes == 0) {
+          if (client.currentMessageNanos != 0) {
+            if (connection.interestOps() == SelectionKey.OP_WRITE) {
+              // 最後のパケットがまだ書き出し待ち
+              return;
+            }
+            messageLatencies.record(System.nanoTime() - client.currentMessageNanos);
+            sentMessages++;
+            client.currentMessageNanos = 0;
+          }
+          Long scheduledNanos = client.scheduledMessages.poll();
+          if (scheduledNanos == null) {
+            return;
+          }
+          client.currentMessageNanos = scheduledNanos;
+          client.remainingBytes = payload.capacity();
+        }
+
+        payload.clear();
+        payload.limit(client.remainingBytes);
+        int written = connection.write(payload);
+        if (written == 0) {
+          // 送信キューが空くまで OP_WRITE を待つ
+          return;
+        }
+        client.remainingBytes -= written;
+        sentBytes += written;
+        connection.process();
+      }
+    }
+
+    private void updateInterestOps(Selector selector, Client client) {
+      TlsConnection connection = client.connection;
+      // 閉じた SocketChannel の key は無効になっているので、先に確かめる
+      if (connection.isClosed()) {
+        remove(client);
+        return;
+      }
+      SelectionKey key = ((SocketChannel) connection.channel()).keyFor(selector);
+      if (key != null && key.isValid()) {
+        key.interestOps(connection.interestOps());
+      }
+    }
+
+    /**
+     * 閉じたコネクションを外して数える。送り終えていないメッセージは missed に数える。
+     * 空いた分は run で張り直す。2 回目以降の呼び出しは何もしない。
+     */
+    private void remove(Client client) {
+      if (!clients.remove(client)) {
+        return;
+      }
+      missedMessages += client.scheduledMessages.size() + (client.currentMessageNanos != 0 ? 1 : 0);
+      if (client.connection.isHandshakeFinished()) {
+        establishedConnections--;
+        droppedConnections++;
+      } else {
+        failedConnections++;
+      }
+    }
+
+    private static void closeQuietly(TlsConnection connection) {
+      try {
+        connection.close();
+      } catch (IOException e) {
+        // ignore
+      }
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    String[] hostAndPort = (args.length > 0 ? args[0] : "127.0.0.1:24224").split(":");
+    InetSocketAddress address = new InetSocketAddress(hostAndPort[0], Integer.parseInt(hostAndPort[1]));
+    int connections = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+    double handshakesPerSecond = args.length > 2 ? Double.parseDouble(args[2]) : 200;
+    int messageSize = args.length > 3 ? Integer.parseInt(args[3]) : 1024;
+    double messagesPerSecond = args.length > 4 ? Double.parseDouble(args[4]) : 1000;
+    int seconds = args.length > 5 ? Integer.parseInt(args[5]) : 60;
+
+    TlsContextFactory contextFactory = TlsContextFactory.forClient();
+    LatencyHistogram handshakeLatencies = new LatencyHistogram();
+    LatencyHistogram messageLatencies = new LatencyHistogram();
+
+    boolean spreadSourceAddresses = address.getAddress().isLoopbackAddress() && canBindSourceAddress();
+    if (address.getAddress().isLoopbackAddress() && !spreadSourceAddresses) {
+      System.out.println("Cannot bind 127.0.0.2, so source addresses are not spread");
+    }
+
+    int threads = Math.min(Runtime.getRuntime().availableProcessors(), connections);
+    List<Worker> workers = new ArrayList<>();
+    List<Thread> workerThreads = new ArrayList<>();
+    for (int i = 0; i < threads; i++) {
+      int connectionCount = connections * (i + 1) / threads - connections * i / threads;
+      Worker worker = new Worker(contextFactory, address, spreadSourceAddresses, i, connectionCount,
+          (long) (1e9 * threads / handshakesPerSecond),
+          messagesPerSecond > 0 ? (long) (1e9 * threads / messagesPerSecond) : 0,
+          ByteBuffer.allocate(messageSize),
+          handshakeLatencies,
+          messageLatencies);
+      Thread thread = new Thread(worker, "load-" + i);
+      thread.start();
+      workers.add(worker);
+      workerThreads.add(thread);
+    }
+    System.out.println("Connecting to " + address + " with " + threads + " threads");
+
+    long start = System.nanoTime();
+    long end = start + TimeUnit.SECONDS.toNanos(seconds);
+    long lastHandshakes = 0;
+    long lastBytes = 0;
+    long lastReport = start;
+    while (System.nanoTime() < end) {
+      TimeUnit.NANOSECONDS.sleep(Math.min(REPORT_INTERVAL_NANOS, end - System.nanoTime()));
+      for (Thread thread : workerThreads) {
+        if (!thread.isAlive()) {
+          // 負荷がかかっていないのに正常な結果として表示しないよう、ここで止める
+          for (Worker worker : workers) {
+            worker.shutdown();
+          }
+          throw new IllegalStateException(thread.getName() + " stopped");
+        }
+      }
+      long now = System.nanoTime();
+      long handshakes = 0;
+      long bytes = 0;
+      long messages = 0;
+      long missed = 0;
+      long failed = 0;
+      long dropped = 0;
+      int established = 0;
+      for (Worker worker : workers) {
+        handshakes += worker.completedHandshakes;
+        bytes += worker.sentBytes;
+        messages += worker.sentMessages;
+        missed += worker.missedMessages;
+        failed += worker.failedConnections;
+        dropped += worker.droppedConnections;
+        established += worker.establishedConnections;
+      }
+      double intervalSeconds = (now - lastReport) / 1e9;
+      System.out.printf("elapsed=%ds established=%d failed=%d dropped=%d handshakesPerSecond=%.1f bytesPerSecond=%.0f"
+              + " messages=%d missed=%d handshakeP50=%.2fms handshakeP99=%.2fms messageP50=%.2fms messageP99=%.2fms%n",
+          TimeUnit.NANOSECONDS.toSeconds(now - start),
+          established,
+          failed,
+          dropped,
+          (handshakes - lastHandshakes) / intervalSeconds,
+          (bytes - lastBytes) / intervalSeconds,
+          messages,
+          missed,
+          handshakeLatencies.percentile(50) / 1e6,
+          handshakeLatencies.percentile(99) / 1e6,
+          messageLatencies.percentile(50) / 1e6,
+          messageLatencies.percentile(99) / 1e6);
+      lastHandshakes = handshakes;
+      lastBytes = bytes;
+      lastReport = now;
+    }
+
+    for (Worker worker : workers) {
+      worker.shutdown();
+    }
+    for (Thread thread : workerThreads) {
+      thread.join();
+    }
+    System.out.println("{\"handshake\":" + handshakeLatencies.toJson()
+        + ",\"message\":" + messageLatencies.toJson() + "}");
+  }
+
+  /**
+   * 127/8 のうち 127.0.0.1 以外にも bind できるか確かめる。
+   * Linux では 127/8 がすべて lo に向くが、macOS などでは 127.0.0.1 しか使えない。
+   */
+  private static boolean canBindSourceAddress() {
+    try (SocketChannel channel = SocketChannel.open()) {
+      channel.bind(new InetSocketAddress("127.0.0.2", 0));
+      return true;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+}
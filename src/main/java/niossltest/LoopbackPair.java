@@ -0,0 +1,278 @@
+package niossltest;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+
+/**
+ * Transport でつないだクライアントとサーバの TlsConnection。
+ * Selector を使わず、1 スレッドで両方を交互に進める。
+ * SOCKET でも MEMORY でも同じコードが動くので、I/O のコストだけを差し引ける。
+ */
+class LoopbackPair implements Closeable, TlsConnection.Listener {
+  private static final long TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+  private final TlsConnection client;
+  private final TlsConnection server;
+  private long serverReceivedBytes = 0;
+  // null ならサーバが受け取ったデータは読み捨てる
+  private WritableByteChannel serverSink = null;
+  // attach で渡された Listener。null なら何もしない
+  private TlsConnection.Listener clientListener = null;
+  private TlsConnection.Listener serverListener = null;
+  // pump() のタイムアウト。パケットを読むたびに延ばす
+  private long pumpDeadline = 0;
+  private long pumpedBytes = -1;
+
+  private LoopbackPair(ByteChannel[] channels,
+                       SSLEngine clientEngine,
+                       SSLEngine serverEngine,
+                       BufferPool packetBufferPool,
+                       BufferPool applicationBufferPool,
+                       HandshakeMetrics clientMetrics,
+                       HandshakeMetrics serverMetrics) {
+    this.client = new TlsConnection(channels[0], clientEngine, this,
+        packetBufferPool, applicationBufferPool, null, clientMetrics);
+    this.server = new TlsConnection(channels[1], serverEngine, this,
+        packetBufferPool, applicationBufferPool, null, serverMetrics);
+  }
+
+  static LoopbackPair open(Transport transport,
+                           SSLContext serverContext,
+                           SSLContext clientContext,
+                           BufferPool packetBufferPool,
+                           BufferPool applicationBufferPool) throws IOException {
+    return open(transport, serverContext, clientContext.createSSLEngine(),
+        packetBufferPool, applicationBufferPool);
+  }
+
+  /**
+   * @param clientEngine setUseClientMode などはこちらで設定する。
+   *                     セッションを再開したければ createSSLEngine(host, port) で作ったものを渡す
+   */
+  static LoopbackPair open(Transport transport,
+                           SSLContext serverContext,
+                           SSLEngine clientEngine,
+                           BufferPool packetBufferPool,
+                           BufferPool applicationBufferPool) throws IOException {
+    return open(transport, serverContext, clientEngine, packetBufferPool, applicationBufferPool, null, null);
+  }
+
+  /**
+   * @param clientMetrics null ならクライアントのハンドシェイクを計測しない
+   * @param serverMetrics null ならサーバのハンドシェイクを計測しない
+   */
+  static LoopbackPair open(Transport transport,
+                           SSLContext serverContext,
+                           SSLEngine clientEngine,
+                           BufferPool packetBufferPool,
+                           BufferPool applicationBufferPool,
+                           HandshakeMetrics clientMetrics,
+                           HandshakeMetrics serverMetrics) throws IOException {
+    clientEngine.setUseClientMode(true);
+    clientEngine.beginHandshake();
+    SSLEngine serverEngine = serverContext.createSSLEngine();
+    serverEngine.setUseClientMode(false);
+    serverEngine.setNeedClientAuth(false);
+    serverEngine.beginHandshake();
+    return new LoopbackPair(transport.open(), clientEngine, serverEngine,
+        packetBufferPool, applicationBufferPool, clientMetrics, serverMetrics);
+  }
+
+  TlsConnection client() {
+    return client;
+  }
+
+  TlsConnection server() {
+    return server;
+  }
+
+  long serverReceivedBytes() {
+    return serverReceivedBytes;
+  }
+
+  /**
+   * サーバが受け取ったデータを sink に書き出す。
+   * applicationBufferPool が DIRECT なら、FileChannel へはそのまま書き出せる。
+   * sink の close は呼び出し側で行うこと。
+   */
+  void receiveTo(WritableByteChannel sink) {
+    this.serverSink = sink;
+  }
+
+  /**
+   * クライアントとサーバの TlsConnection に届いたデータなどを、それぞれの Listener にも渡す。
+   * サーバが受け取ったバイト数は、これまでどおり serverReceivedBytes でも数える。
+   */
+  void attach(TlsConnection.Listener clientListener, TlsConnection.Listener serverListener) {
+    this.clientListener = clientListener;
+    this.serverListener = serverListener;
+  }
+
+  /**
+   * 両方のハンドシェイクが終わり、送ったパケットがすべて相手に届くまで進める。
+   * TLS 1.3 の NewSessionTicket はハンドシェイク後に届くので、
+   * これを読まないとクライアントは次の接続でセッションを再開できない。
+   */
+  void handshake() throws IOException {
+    long deadline = System.nanoTime() + TIMEOUT_NANOS;
+    client.process();
+    while (!client.isHandshakeFinished() || !server.isHandshakeFinished() || !isSettled()) {
+      pump(deadline);
+    }
+  }
+
+  /**
+   * クライアントから source をすべて送り、サーバが受け取り終えるまで進める。
+   */
+  void transfer(ByteBuffer source) throws IOException {
+    long deadline = System.nanoTime() + TIMEOUT_NANOS;
+    long expected = serverReceivedBytes + source.remaining();
+    while (serverReceivedBytes < expected) {
+      if (source.hasRemaining()) {
+        client.write(source);
+      }
+      pump(deadline);
+    }
+  }
+
+  /**
+   * クライアントから sources をすべて送り、サーバが受け取り終えるまで進める。
+   *
+   * @param gathering true なら TlsConnection#write(ByteBuffer[]) でまとめて wrap する。
+   *                  false なら 1 つずつ write(ByteBuffer) し、buffer ごとにレコードを作る
+   */
+  void transfer(ByteBuffer[] sources, boolean gathering) throws IOException {
+    long deadline = System.nanoTime() + TIMEOUT_NANOS;
+    long expected = serverReceivedBytes;
+    for (ByteBuffer source : sources) {
+      expected += source.remaining();
+    }
+    int next = 0;
+    while (serverReceivedBytes < expected) {
+      if (gathering) {
+        client.write(sources);
+      } else {
+        while (next < sources.length && !sources[next].hasRemaining()) {
+          next++;
+        }
+        if (next < sources.length) {
+          client.write(sources[next]);
+        }
+      }
+      pump(deadline);
+    }
+  }
+
+  /**
+   * クライアントから source を最後まで送り、サーバが受け取り終えるまで進める。
+   * 進展がある限りタイムアウトしない。
+   *
+   * @return サーバが受け取ったバイト数
+   */
+  long send(ReadableByteChannel source) throws IOException {
+    long initialReceivedBytes = serverReceivedBytes;
+    client.send(source);
+    awaitSent();
+    return serverReceivedBytes - initialReceivedBytes;
+  }
+
+  /**
+   * クライアントから file を TlsConnection#sendFile で最後まで送り、サーバが受け取り終えるまで進める。
+   *
+   * @return サーバが受け取ったバイト数
+   */
+  long sendFile(FileChannel file) throws IOException {
+    long initialReceivedBytes = serverReceivedBytes;
+    client.sendFile(file);
+    awaitSent();
+    return serverReceivedBytes - initialReceivedBytes;
+  }
+
+  /**
+   * クライアントの送信が終わり、送ったパケットがすべてサーバに届くまで進める。
+   * 進展がある限りタイムアウトしない。
+   */
+  private void awaitSent() throws IOException {
+    long lastReceivedBytes = serverReceivedBytes;
+    long deadline = System.nanoTime() + TIMEOUT_NANOS;
+    while (client.isSending() || !isSettled()) {
+      pump(deadline);
+      if (serverReceivedBytes != lastReceivedBytes) {
+        lastReceivedBytes = serverReceivedBytes;
+        deadline = System.nanoTime() + TIMEOUT_NANOS;
+      }
+    }
+  }
+
+  /**
+   * クライアントとサーバを 1 回ずつ進める。呼び出し側で送るものを積みながら回すためのもの。
+   * どちらかがパケットを読んでいる限りタイムアウトしない。
+   */
+  void pump() throws IOException {
+    long bytes = client.networkBytesRead() + server.networkBytesRead();
+    if (bytes != pumpedBytes) {
+      pumpedBytes = bytes;
+      pumpDeadline = System.nanoTime() + TIMEOUT_NANOS;
+    }
+    pump(pumpDeadline);
+  }
+
+  @Override
+  public void onApplicationData(TlsConnection connection, ByteBuffer data) throws IOException {
+    TlsConnection.Listener listener = listenerOf(connection);
+    if (listener != null) {
+      // 読み進めても serverReceivedBytes で数えられるよう、別の view を渡す
+      listener.onApplicationData(connection, data.duplicate());
+    }
+    if (connection == server) {
+      serverReceivedBytes += data.remaining();
+      if (serverSink != null) {
+        while (data.hasRemaining()) {
+          serverSink.write(data);
+        }
+      }
+    }
+  }
+
+  @Override
+  public void onOutboundFlushed(TlsConnection connection) throws IOException {
+    TlsConnection.Listener listener = listenerOf(connection);
+    if (listener != null) {
+      listener.onOutboundFlushed(connection);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    client.close();
+    server.close();
+  }
+
+  private TlsConnection.Listener listenerOf(TlsConnection connection) {
+    return connection == client ? clientListener : serverListener;
+  }
+
+  private boolean isSettled() {
+    return client.networkBytesRead() == server.networkBytesWritten()
+        && server.networkBytesRead() == client.networkBytesWritten();
+  }
+
+  private void pump(long deadline) throws IOException {
+    if (client.isClosed() || server.isClosed()) {
+      throw new IOException("Connection closed unexpectedly");
+    }
+    if (System.nanoTime() > deadline) {
+      throw new IOException("Timed out");
+    }
+    client.onReadable();
+    server.onReadable();
+  }
+}
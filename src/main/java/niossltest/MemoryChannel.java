@@ -0,0 +1,119 @@
+package niossltest;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+
+/**
+ * メモリ上の ByteBuffer のキューで、もう一方の MemoryChannel とつながった ByteChannel。
+ * non-blocking な SocketChannel と同じく、読めるデータがなければ read は 0 を返し、
+ * キューが capacity バイトを超えていれば write は 0 を返す。
+ * 相手が close した後、キューを読み切ると read は -1 を返す。
+ */
+class MemoryChannel implements ByteChannel {
+  /**
+   * 片方向のキュー。別々のスレッドから読み書きされてもよいように同期する。
+   */
+  private static class Pipe {
+    private final ArrayDeque<ByteBuffer> buffers = new ArrayDeque<>();
+    private final int capacity;
+    private int queuedBytes = 0;
+    private boolean closed = false;
+
+    Pipe(int capacity) {
+      this.capacity = capacity;
+    }
+
+    synchronized int write(ByteBuffer source) {
+      int length = Math.min(source.remaining(), capacity - queuedBytes);
+      if (length <= 0) {
+        return 0;
+      }
+      ByteBuffer copy = ByteBuffer.allocate(length);
+      ByteBuffer slice = source.duplicate();
+      slice.limit(slice.position() + length);
+      copy.put(slice);
+      copy.flip();
+      source.position(source.position() + length);
+      buffers.addLast(copy);
+      queuedBytes += length;
+      return length;
+    }
+
+    synchronized int read(ByteBuffer destination) {
+      if (buffers.isEmpty()) {
+        return closed ? -1 : 0;
+      }
+      int read = 0;
+      while (destination.hasRemaining() && !buffers.isEmpty()) {
+        ByteBuffer head = buffers.peekFirst();
+        int length = Math.min(head.remaining(), destination.remaining());
+        ByteBuffer slice = head.duplicate();
+        slice.limit(slice.position() + length);
+        destination.put(slice);
+        head.position(head.position() + length);
+        if (!head.hasRemaining()) {
+          buffers.pollFirst();
+        }
+        read += length;
+      }
+      queuedBytes -= read;
+      return read;
+    }
+
+    synchronized void close() {
+      closed = true;
+    }
+  }
+
+  private final Pipe inbound;
+  private final Pipe outbound;
+  private volatile boolean open = true;
+
+  private MemoryChannel(Pipe inbound, Pipe outbound) {
+    this.inbound = inbound;
+    this.outbound = outbound;
+  }
+
+  /**
+   * @param capacity 片方向あたりにキューできる最大バイト数
+   * @return 互いにつながった 2 つの MemoryChannel
+   */
+  static MemoryChannel[] pair(int capacity) {
+    Pipe forward = new Pipe(capacity);
+    Pipe backward = new Pipe(capacity);
+    return new MemoryChannel[] {
+        new MemoryChannel(backward, forward),
+        new MemoryChannel(forward, backward)
+    };
+  }
+
+  @Override
+  public int read(ByteBuffer destination) throws IOException {
+    if (!open) {
+      throw new ClosedChannelException();
+    }
+    return inbound.read(destination);
+  }
+
+  @Override
+  public int write(ByteBuffer source) throws IOException {
+    if (!open) {
+      throw new ClosedChannelException();
+    }
+    return outbound.write(source);
+  }
+
+  @Override
+  public boolean isOpen() {
+    return open;
+  }
+
+  @Override
+  public void close() {
+    open = false;
+    outbound.close();
+  }
+}
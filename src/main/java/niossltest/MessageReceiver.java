@@ -0,0 +1,81 @@
+package niossltest;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * MessageSender が送ったメッセージを FrameDecoder で切り出し、まとめて ack を返すサーバ側の Listener。
+ *
+ * ack は 8 バイトの本体に、それまでに受け取ったメッセージの累計数を入れたフレーム。
+ * メッセージごとには返さず、1 つのレコードを読み終えるたびに 1 つだけ返す。
+ * 送信キューが空いていなければ返さずにおき、onOutboundFlushed で最新の累計数を返す。
+ * 累計数なので、返しそびれた ack は次の ack にまとまる。
+ * 1 つのコネクションにつき 1 つ使う。
+ */
+class MessageReceiver implements TlsConnection.Listener {
+  static final int ACK_SIZE = 8;
+
+  private final FrameDecoder decoder;
+  private final ByteBuffer ack = ByteBuffer.allocate(FrameDecoder.HEADER_SIZE + ACK_SIZE);
+  private final FrameDecoder.Handler handler = this::onMessage;
+  private long receivedMessages = 0;
+  private long receivedBytes = 0;
+  private long acknowledgedMessages = 0;
+  private long sentAcks = 0;
+
+  /**
+   * @param maxMessageSize これより長いメッセージが届いたらコネクションを閉じる
+   */
+  MessageReceiver(int maxMessageSize) {
+    this.decoder = new FrameDecoder(maxMessageSize);
+  }
+
+  long receivedMessages() {
+    return receivedMessages;
+  }
+
+  long receivedBytes() {
+    return receivedBytes;
+  }
+
+  long sentAcks() {
+    return sentAcks;
+  }
+
+  FrameDecoder decoder() {
+    return decoder;
+  }
+
+  @Override
+  public void onApplicationData(TlsConnection connection, ByteBuffer data) throws IOException {
+    decoder.decode(data, handler);
+    sendAck(connection);
+  }
+
+  @Override
+  public void onOutboundFlushed(TlsConnection connection) throws IOException {
+    sendAck(connection);
+  }
+
+  /**
+   * メッセージ 1 つの処理。ここでは数えるだけ。
+   */
+  private void onMessage(ByteBuffer message) {
+    receivedMessages++;
+    receivedBytes += message.remaining();
+  }
+
+  private void sendAck(TlsConnection connection) throws IOException {
+    if (acknowledgedMessages == receivedMessages) {
+      return;
+    }
+    ack.clear();
+    ack.putInt(ACK_SIZE);
+    ack.putLong(receivedMessages);
+    ack.flip();
+    if (connection.write(ack) > 0) {
+      acknowledgedMessages = receivedMessages;
+      sentAcks++;
+    }
+  }
+}
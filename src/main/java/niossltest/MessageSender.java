@@ -0,0 +1,123 @@
+package niossltest;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * メッセージを長さ付きフレームにして送るクライアント側の Listener。MessageReceiver と対で使う。
+ *
+ * ack を待たずに、未確認のメッセージが window 個になるまで続けて送る（パイプライン）。
+ * ヘッダと本体は TlsConnection#write(ByteBuffer[]) にそのまま渡すので、
+ * 小さなメッセージも同じレコードに詰め込まれ、本体を平文のままコピーし直すことはない。
+ * ack が届くか、送信キューが空いたら、続きを積む。
+ * 1 つのコネクションにつき 1 つ使う。
+ */
+class MessageSender implements TlsConnection.Listener {
+  // 1 度の write(ByteBuffer[]) に渡すメッセージの上限
+  private static final int MAX_BATCH_MESSAGES = 256;
+
+  private final int window;
+  private final FrameDecoder decoder = new FrameDecoder(MessageReceiver.ACK_SIZE);
+  private final FrameDecoder.Handler handler = this::onAck;
+  private final ArrayDeque<ByteBuffer> queue = new ArrayDeque<>();
+  private final ByteBuffer[] headers = new ByteBuffer[MAX_BATCH_MESSAGES];
+  // ヘッダと本体を交互に並べたもの。書き切るまで次のメッセージを積まない
+  private ByteBuffer[] batch = null;
+  private long sentMessages = 0;
+  private long acknowledgedMessages = 0;
+  private long receivedAcks = 0;
+
+  /**
+   * @param window ack を待たずに送れるメッセージの数。1 なら 1 つずつ ack を待つ
+   */
+  MessageSender(int window) {
+    this.window = window;
+    for (int i = 0; i < headers.length; i++) {
+      headers[i] = ByteBuffer.allocate(FrameDecoder.HEADER_SIZE);
+    }
+  }
+
+  /**
+   * message を送信待ちに加える。実際に積むのは flush で。
+   * message は送り終えるまで書き換えないこと。
+   */
+  void enqueue(ByteBuffer message) {
+    queue.addLast(message);
+  }
+
+  int queuedMessages() {
+    return queue.size();
+  }
+
+  long sentMessages() {
+    return sentMessages;
+  }
+
+  long acknowledgedMessages() {
+    return acknowledgedMessages;
+  }
+
+  long receivedAcks() {
+    return receivedAcks;
+  }
+
+  /**
+   * window と送信キューが許す限り、送信待ちのメッセージを connection に積む。
+   * 書き出しは TlsConnection#process で行う。
+   */
+  void flush(TlsConnection connection) throws IOException {
+    while (true) {
+      if (batch != null) {
+        connection.write(batch);
+        if (hasRemaining(batch)) {
+          return;
+        }
+        batch = null;
+      }
+      long available = window - (sentMessages - acknowledgedMessages);
+      int count = (int) Math.min(Math.min(queue.size(), MAX_BATCH_MESSAGES), available);
+      if (count <= 0) {
+        return;
+      }
+      batch = new ByteBuffer[count * 2];
+      for (int i = 0; i < count; i++) {
+        ByteBuffer message = queue.pollFirst();
+        ByteBuffer header = headers[i];
+        header.clear();
+        header.putInt(0, message.remaining());
+        batch[i * 2] = header;
+        batch[i * 2 + 1] = message;
+      }
+      sentMessages += count;
+    }
+  }
+
+  @Override
+  public void onApplicationData(TlsConnection connection, ByteBuffer data) throws IOException {
+    decoder.decode(data, handler);
+    flush(connection);
+  }
+
+  @Override
+  public void onOutboundFlushed(TlsConnection connection) throws IOException {
+    flush(connection);
+  }
+
+  private void onAck(ByteBuffer ack) throws IOException {
+    if (ack.remaining() != MessageReceiver.ACK_SIZE) {
+      throw new IOException("Invalid ack length: " + ack.remaining());
+    }
+    acknowledgedMessages = ack.getLong(ack.position());
+    receivedAcks++;
+  }
+
+  private static boolean hasRemaining(ByteBuffer[] buffers) {
+    for (ByteBuffer buffer : buffers) {
+      if (buffer.hasRemaining()) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
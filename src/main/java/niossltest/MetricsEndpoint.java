@@ -0,0 +1,149 @@
+package niossltest;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * ServerMetrics と、プロセス全体の CPU 時間、ヒープ、GC、スレッド数を、
+ * GET /metrics で Prometheus のテキスト形式で返す HTTP サーバ。
+ * ローカルからのスクレイプ用なので、ループバックのアドレスで listen すること。
+ * リクエストは HttpServer の 1 つのスレッドで処理するので、Reactor のスレッドは使わない。
+ *
+ * curl http://127.0.0.1:<metrics port>/metrics
+ */
+class MetricsEndpoint implements Closeable {
+  private final ServerMetrics metrics;
+  private final HttpServer httpServer;
+
+  private MetricsEndpoint(ServerMetrics metrics, HttpServer httpServer) {
+    this.metrics = metrics;
+    this.httpServer = httpServer;
+  }
+
+  static MetricsEndpoint start(ServerMetrics metrics, InetSocketAddress address) throws IOException {
+    HttpServer httpServer = HttpServer.create(address, 0);
+    MetricsEndpoint endpoint = new MetricsEndpoint(metrics, httpServer);
+    httpServer.createContext("/metrics", endpoint::handle);
+    httpServer.start();
+    return endpoint;
+  }
+
+  InetSocketAddress localAddress() {
+    return httpServer.getAddress();
+  }
+
+  @Override
+  public void close() {
+    httpServer.stop(0);
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    try {
+      if (!exchange.getRequestMethod().equals("GET")) {
+        exchange.sendResponseHeaders(405, -1);
+        return;
+      }
+      byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+      exchange.sendResponseHeaders(200, body.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(body);
+      }
+    } finally {
+      exchange.close();
+    }
+  }
+
+  /**
+   * @return Prometheus のテキスト形式
+   */
+  String scrape() {
+    StringBuilder text = new StringBuilder();
+    gauge(text, "tls_connections_active", "Open TLS connections", metrics.getActiveConnections());
+    gauge(text, "tls_handshakes_in_progress", "Connections that have not finished the handshake",
+        metrics.getHandshakesInProgress());
+    counter(text, "tls_handshakes_completed_total", "Completed handshakes", metrics.getCompletedHandshakes());
+    counter(text, "tls_handshakes_failed_total", "Connections closed during the handshake",
+        metrics.getFailedHandshakes());
+    counter(text, "tls_connection_errors_total", "Connections closed after an unexpected exception",
+        metrics.getConnectionErrors());
+    gauge(text, "tls_delegated_tasks_queued", "Delegated tasks submitted but not started",
+        metrics.getQueuedDelegatedTasks());
+    summary(text, "tls_delegated_task_wait_seconds", "Time from submitting a delegated task to starting it",
+        metrics.delegatedTaskWait());
+    summary(text, "tls_delegated_task_run_seconds", "Time to run a delegated task", metrics.delegatedTaskRun());
+    counter(text, "tls_wrapped_bytes_total", "Application bytes consumed by SSLEngine#wrap",
+        metrics.getWrappedBytes());
+    counter(text, "tls_unwrapped_bytes_total", "Application bytes produced by SSLEngine#unwrap",
+        metrics.getUnwrappedBytes());
+    counter(text, "tls_buffer_overflows_total", "BUFFER_OVERFLOW results", metrics.getBufferOverflows());
+    counter(text, "tls_buffer_underflows_total", "BUFFER_UNDERFLOW results", metrics.getBufferUnderflows());
+    summary(text, "tls_selector_loop_seconds", "Time to handle the selected keys of one select",
+        metrics.selectorLoop());
+
+    // プロセス全体
+    java.lang.management.OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+    if (os instanceof com.sun.management.OperatingSystemMXBean) {
+      counter(text, "process_cpu_seconds_total", "CPU time used by the process",
+          ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime() / 1e9);
+    }
+    MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+    gauge(text, "jvm_heap_used_bytes", "Used heap", heap.getUsed());
+    gauge(text, "jvm_heap_committed_bytes", "Committed heap", heap.getCommitted());
+    gauge(text, "jvm_threads_live", "Live threads", ManagementFactory.getThreadMXBean().getThreadCount());
+    long gcCount = 0;
+    long gcMillis = 0;
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      gcCount += Math.max(gc.getCollectionCount(), 0);
+      gcMillis += Math.max(gc.getCollectionTime(), 0);
+    }
+    counter(text, "jvm_gc_collections_total", "Garbage collections", gcCount);
+    counter(text, "jvm_gc_collection_seconds_total", "Time spent in garbage collection", gcMillis / 1e3);
+    return text.toString();
+  }
+
+  private static void gauge(StringBuilder text, String name, String help, double value) {
+    metric(text, name, help, "gauge", value);
+  }
+
+  private static void counter(StringBuilder text, String name, String help, double value) {
+    metric(text, name, help, "counter", value);
+  }
+
+  private static void metric(StringBuilder text, String name, String help, String type, double value) {
+    text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    text.append(name).append(' ').append(format(value)).append('\n');
+  }
+
+  /**
+   * LatencyHistogram を、分位点と _count / _sum を持つ summary として書く。単位は秒。
+   */
+  private static void summary(StringBuilder text, String name, String help, LatencyHistogram histogram) {
+    text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    text.append("# TYPE ").append(name).append(" summary\n");
+    for (double quantile : new double[] {0.5, 0.9, 0.99, 0.999}) {
+      text.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+          .append(format(histogram.percentile(quantile * 100) / 1e9)).append('\n');
+    }
+    long count = histogram.count();
+    text.append(name).append("_count ").append(count).append('\n');
+    text.append(name).append("_sum ").append(format(histogram.mean() * count / 1e9)).append('\n');
+  }
+
+  private static String format(double value) {
+    if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+      return Long.toString((long) value);
+    }
+    return String.format(Locale.ROOT, "%.9g", value);
+  }
+}
@@ -1,6 +1,10 @@
 package niossltest;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLParameters;
@@ -22,9 +26,42 @@ import javax.net.ssl.SSLParameters;
  * flume
  * - https://github.com/apache/flume/blob/trunk/flume-ng-core/src/main/java/org/apache/flume/source/AvroSource.java#L484
  * - https://github.com/apache/flume/blob/trunk/flume-ng-core/src/main/java/org/apache/flume/source/AvroSource.java#L519
+ *
+ * measure を指定すると、ハンドシェイクが成立するプロトコルと暗号スイートの組ごとに、
+ * EnginePair でハンドシェイク 1 回あたりの時間と、wrap / unwrap のスループットを測り、
+ * スループットの高い順に表示する。setEnabledCipherSuites で何を選ぶかの材料にする。
+ *
+ * Usage: ProtocolPrinter [measure] [handshakes] [MiB] [enabled|all]
  */
 public class ProtocolPrinter {
+  private static final int CHUNK_SIZE = 16 * 1024;
+  private static final int WARMUP_HANDSHAKES = 10;
+
+  /**
+   * 1 つのプロトコルと暗号スイートの組の測定結果。
+   */
+  private static class Measurement {
+    final String suite;
+    final double handshakeMicros;
+    final double megabytesPerSecond;
+    int handshakeRank;
+
+    Measurement(String suite, double handshakeMicros, double megabytesPerSecond) {
+      this.suite = suite;
+      this.handshakeMicros = handshakeMicros;
+      this.megabytesPerSecond = megabytesPerSecond;
+    }
+  }
+
   public static void main(String[] args) throws Exception {
+    if (args.length > 0 && args[0].equals("measure")) {
+      int handshakes = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+      long bytes = (args.length > 2 ? Long.parseLong(args[2]) : 64) * 1024 * 1024;
+      boolean includeDisabled = args.length > 3 && args[3].equals("all");
+      measure(handshakes, bytes, includeDisabled);
+      return;
+    }
+
     // ## SSLContext: Default
     // Protocol: [TLSv1, TLSv1.1, TLSv1.2]
     // CipherSuites: [TLS_ECDHE_ECDSA_WITH_AES_256_CBC_SHA384, TLS_ECDHE_RSA_WITH_AES_256_CBC_SHA384, TLS_RSA_WITH_AES_256_CBC_SHA256, TLS_ECDH_ECDSA_WITH_AES_256_CBC_SHA384, TLS_ECDH_RSA_WITH_AES_256_CBC_SHA384, TLS_DHE_RSA_WITH_AES_256_CBC_SHA256, TLS_DHE_DSS_WITH_AES_256_CBC_SHA256, TLS_ECDHE_ECDSA_WITH_AES_256_CBC_SHA, TLS_ECDHE_RSA_WITH_AES_256_CBC_SHA, TLS_RSA_WITH_AES_256_CBC_SHA, TLS_ECDH_ECDSA_WITH_AES_256_CBC_SHA, TLS_ECDH_RSA_WITH_AES_256_CBC_SHA, TLS_DHE_RSA_WITH_AES_256_CBC_SHA, TLS_DHE_DSS_WITH_AES_256_CBC_SHA, TLS_ECDHE_ECDSA_WITH_AES_128_CBC_SHA256, TLS_ECDHE_RSA_WITH_AES_128_CBC_SHA256, TLS_RSA_WITH_AES_128_CBC_SHA256, TLS_ECDH_ECDSA_WITH_AES_128_CBC_SHA256, TLS_ECDH_RSA_WITH_AES_128_CBC_SHA256, TLS_DHE_RSA_WITH_AES_128_CBC_SHA256, TLS_DHE_DSS_WITH_AES_128_CBC_SHA256, TLS_ECDHE_ECDSA_WITH_AES_128_CBC_SHA, TLS_ECDHE_RSA_WITH_AES_128_CBC_SHA, TLS_RSA_WITH_AES_128_CBC_SHA, TLS_ECDH_ECDSA_WITH_AES_128_CBC_SHA, TLS_ECDH_RSA_WITH_AES_128_CBC_SHA, TLS_DHE_RSA_WITH_AES_128_CBC_SHA, TLS_DHE_DSS_WITH_AES_128_CBC_SHA, TLS_ECDHE_ECDSA_WITH_AES_256_GCM_SHA384, TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256, TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384, TLS_RSA_WITH_AES_256_GCM_SHA384, TLS_ECDH_ECDSA_WITH_AES_256_GCM_SHA384, TLS_ECDH_RSA_WITH_AES_256_GCM_SHA384, TLS_DHE_RSA_WITH_AES_256_GCM_SHA384, TLS_DHE_DSS_WITH_AES_256_GCM_SHA384, TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256, TLS_RSA_WITH_AES_128_GCM_SHA256, TLS_ECDH_ECDSA_WITH_AES_128_GCM_SHA256, TLS_ECDH_RSA_WITH_AES_128_GCM_SHA256, TLS_DHE_RSA_WITH_AES_128_GCM_SHA256, TLS_DHE_DSS_WITH_AES_128_GCM_SHA256, TLS_ECDHE_ECDSA_WITH_3DES_EDE_CBC_SHA, TLS_ECDHE_RSA_WITH_3DES_EDE_CBC_SHA, SSL_RSA_WITH_3DES_EDE_CBC_SHA, TLS_ECDH_ECDSA_WITH_3DES_EDE_CBC_SHA, TLS_ECDH_RSA_WITH_3DES_EDE_CBC_SHA, SSL_DHE_RSA_WITH_3DES_EDE_CBC_SHA, SSL_DHE_DSS_WITH_3DES_EDE_CBC_SHA, TLS_EMPTY_RENEGOTIATION_INFO_SCSV]
@@ -124,6 +161,73 @@ public class ProtocolPrinter {
     System.out.println();
   }
 
+  private static void measure(int handshakes, long bytes, boolean includeDisabled) throws Exception {
+    SSLContext serverContext = TlsContextFactory.forServer().context();
+    SSLContext clientContext = TlsContextFactory.forClient().context();
+    List<String> suites = EnginePair.negotiableSuites(serverContext, clientContext, includeDisabled);
+    System.out.println("Measures " + suites.size() + " suites");
+
+    List<Measurement> measurements = new ArrayList<>();
+    for (String suite : suites) {
+      // JIT のウォームアップ。暗号スイートごとに別の実装が使われるので、それぞれで行う
+      measureHandshake(serverContext, clientContext, suite, WARMUP_HANDSHAKES);
+      measureTransfer(serverContext, clientContext, suite, bytes / 8);
+
+      measurements.add(new Measurement(suite,
+          measureHandshake(serverContext, clientContext, suite, handshakes) / 1e3 / handshakes,
+          bytes / 1e6 / (measureTransfer(serverContext, clientContext, suite, bytes) / 1e9)));
+    }
+
+    measurements.sort(Comparator.comparingDouble(measurement -> measurement.handshakeMicros));
+    for (int i = 0; i < measurements.size(); i++) {
+      measurements.get(i).handshakeRank = i + 1;
+    }
+    measurements.sort(Comparator.comparingDouble(measurement -> -measurement.megabytesPerSecond));
+
+    System.out.printf("%4s  %-60s %10s %12s %8s%n", "rank", "suite", "MB/s", "handshake", "hs rank");
+    for (int i = 0; i < measurements.size(); i++) {
+      Measurement measurement = measurements.get(i);
+      System.out.printf("%4d  %-60s %10.1f %10.0fus %8d%n",
+          i + 1,
+          measurement.suite,
+          measurement.megabytesPerSecond,
+          measurement.handshakeMicros,
+          measurement.handshakeRank);
+    }
+  }
+
+  /**
+   * @return handshakes 回ハンドシェイクするのにかかった時間
+   */
+  private static long measureHandshake(SSLContext serverContext,
+                                       SSLContext clientContext,
+                                       String suite,
+                                       int handshakes) throws Exception {
+    long start = System.nanoTime();
+    for (int i = 0; i < handshakes; i++) {
+      EnginePair.create(serverContext, clientContext, suite).handshake();
+    }
+    return System.nanoTime() - start;
+  }
+
+  /**
+   * @return ハンドシェイク後、bytes を CHUNK_SIZE ずつ wrap / unwrap するのにかかった時間
+   */
+  private static long measureTransfer(SSLContext serverContext,
+                                      SSLContext clientContext,
+                                      String suite,
+                                      long bytes) throws Exception {
+    EnginePair pair = EnginePair.create(serverContext, clientContext, suite);
+    pair.handshake();
+    ByteBuffer payload = ByteBuffer.allocate(CHUNK_SIZE);
+    long start = System.nanoTime();
+    for (long sent = 0; sent < bytes; sent += payload.capacity()) {
+      payload.clear();
+      pair.transfer(payload);
+    }
+    return System.nanoTime() - start;
+  }
+
   private static void printSSLParameters(SSLParameters parameters) {
     System.out.println("Protocol: " + Arrays.toString(parameters.getProtocols()));
     System.out.println("CipherSuites: " + Arrays.toString(parameters.getCipherSuites()));
@@ -0,0 +1,368 @@
+package niossltest;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+
+/**
+ * 1 つの Selector スレッドで、TlsServer から割り当てられたコネクションをさばく。
+ * 各コネクションの SSLEngine は OP_READ / OP_WRITE が通知されたときだけ進める。
+ * 受信したアプリケーションデータは読み捨てる。
+ *
+ * drain が呼ばれると、コネクションごとに close_notify と FIN を送り、相手の close_notify か EOF を受け取ったら閉じる。
+ * すべて閉じたら run を終える。
+ * 閉じたクライアントが一斉に再接続してハンドシェイクが集中しないよう、close_notify は
+ * spreadNanos の間に少しずつ送る。deadline を過ぎても閉じていないコネクションは、そのまま閉じる。
+ *
+ * BufferPool は Reactor ごとに持つので、スレッド間で共有しない。
+ * 他のスレッドから呼んでよいのは register, shutdown, drain と統計の getter だけ。
+ */
+class Reactor implements Runnable, Closeable, TlsConnection.Listener {
+  private static final long SELECT_TIMEOUT_MILLIS = 1000;
+  // drain 中は close_notify を少しずつ送るので、select で長く待たない
+  private static final long DRAIN_SELECT_TIMEOUT_MILLIS = 10;
+
+  private final TlsContextFactory contextFactory;
+  private final Selector selector;
+  private final BufferPool packetBufferPool;
+  private final BufferPool applicationBufferPool;
+  private final ExecutorService delegatedTaskExecutor;
+  private final HandshakeMetrics handshakeMetrics;
+  private final ServerMetrics serverMetrics;
+  // acceptor から渡され、この Selector への登録を待っているコネクション
+  private final Queue<SocketChannel> acceptedChannels = new ConcurrentLinkedQueue<>();
+  // タスクの実行を終え、Selector スレッドでの再開を待っているコネクション
+  private final Queue<TlsConnection> resumedConnections = new ConcurrentLinkedQueue<>();
+  private volatile boolean running = true;
+  private volatile boolean draining = false;
+  private volatile long drainStartNanos;
+  private volatile long drainSpreadNanos;
+  private volatile long drainDeadlineNanos;
+  // drain を始めたときのコネクションのうち、まだ close_notify を送っていないもの。Selector スレッドだけが触る
+  private ArrayDeque<SelectionKey> undrainedKeys = null;
+  private int drainTargets = 0;
+
+  // 統計は TlsServer のスレッドから読むので volatile
+  private volatile int activeConnections = 0;
+  private volatile long completedHandshakes = 0;
+  private volatile long resumedHandshakes = 0;
+  private volatile long receivedBytes = 0;
+  private volatile long forcedCloses = 0;
+
+  /**
+   * @param delegatedTaskExecutor null ならタスクをこの Reactor のスレッドで実行する
+   * @param handshakeMetrics      null ならハンドシェイクを計測しない
+   * @param serverMetrics         null ならコネクションの状態やループの所要時間を数えない
+   */
+  Reactor(TlsContextFactory contextFactory,
+          BufferType bufferType,
+          int maxPooledBuffers,
+          ExecutorService delegatedTaskExecutor,
+          HandshakeMetrics handshakeMetrics,
+          ServerMetrics serverMetrics) throws IOException {
+    this.contextFactory = contextFactory;
+    this.delegatedTaskExecutor = delegatedTaskExecutor;
+    this.handshakeMetrics = handshakeMetrics;
+    this.serverMetrics = serverMetrics;
+    this.selector = Selector.open();
+
+    // バッファの大きさはハンドシェイク前のセッションから決める
+    SSLSession session = contextFactory.context().createSSLEngine().getSession();
+    this.packetBufferPool = BufferPool.forPackets(bufferType, session, maxPooledBuffers);
+    this.applicationBufferPool = BufferPool.forApplicationData(bufferType, session, maxPooledBuffers);
+  }
+
+  /**
+   * accept 済みのコネクションを引き受ける。どのスレッドから呼んでもよい。
+   */
+  void register(SocketChannel channel) {
+    acceptedChannels.add(channel);
+    selector.wakeup();
+  }
+
+  @Override
+  public void run() {
+    try {
+      while (running) {
+        selector.select(draining ? DRAIN_SELECT_TIMEOUT_MILLIS : SELECT_TIMEOUT_MILLIS);
+        long loopStartNanos = serverMetrics != null ? System.nanoTime() : 0;
+        // タイムアウトや wakeup だけで戻った回は、ループの所要時間に数えない
+        int handled = 0;
+        Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+        while (iterator.hasNext()) {
+          SelectionKey key = iterator.next();
+          iterator.remove();
+          if (key.isValid()) {
+            handle(key);
+            handled++;
+          }
+        }
+
+        SocketChannel accepted;
+        while ((accepted = acceptedChannels.poll()) != null) {
+          if (draining) {
+            // まだハンドシェイクも始めていないので、そのまま閉じる
+            closeQuietly(accepted);
+          } else {
+            accept(accepted);
+          }
+          handled++;
+        }
+
+        TlsConnection resumed;
+        while ((resumed = resumedConnections.poll()) != null) {
+          resume(resumed);
+          handled++;
+        }
+        if (serverMetrics != null && handled > 0) {
+          serverMetrics.selectorLoopFinished(loopStartNanos);
+        }
+        if (draining && drainStep()) {
+          break;
+        }
+      }
+    } catch (IOException e) {
+      System.out.println("Reactor stopped: " + e);
+    }
+  }
+
+  int activeConnections() {
+    return activeConnections;
+  }
+
+  long completedHandshakes() {
+    return completedHandshakes;
+  }
+
+  long resumedHandshakes() {
+    return resumedHandshakes;
+  }
+
+  long receivedBytes() {
+    return receivedBytes;
+  }
+
+  /**
+   * @return drain の deadline までに閉じ終わらず、そのまま閉じたコネクションの数
+   */
+  long forcedCloses() {
+    return forcedCloses;
+  }
+
+  BufferPool packetBufferPool() {
+    return packetBufferPool;
+  }
+
+  BufferPool applicationBufferPool() {
+    return applicationBufferPool;
+  }
+
+  void shutdown() {
+    running = false;
+    selector.wakeup();
+  }
+
+  /**
+   * すべてのコネクションに close_notify を送り、閉じ終えたら run を終える。どのスレッドから呼んでもよい。
+   *
+   * @param spreadNanos    close_notify を送り終えるまでにかける時間
+   * @param deadlineNanos  これを過ぎたら（System#nanoTime）、残ったコネクションをそのまま閉じる
+   */
+  void drain(long spreadNanos, long deadlineNanos) {
+    drainStartNanos = System.nanoTime();
+    drainSpreadNanos = spreadNanos;
+    drainDeadlineNanos = deadlineNanos;
+    draining = true;
+    selector.wakeup();
+  }
+
+  /**
+   * run が終わってから呼ぶこと。
+   */
+  @Override
+  public void close() throws IOException {
+    for (SelectionKey key : selector.keys()) {
+      ((TlsConnection) key.attachment()).close();
+    }
+    SocketChannel accepted;
+    while ((accepted = acceptedChannels.poll()) != null) {
+      accepted.close();
+    }
+    selector.close();
+  }
+
+  @Override
+  public void onHandshakeFinished(TlsConnection connection) {
+    completedHandshakes++;
+    if (contextFactory.isResumed(connection.engine())) {
+      resumedHandshakes++;
+    }
+  }
+
+  @Override
+  public void onApplicationData(TlsConnection connection, ByteBuffer data) {
+    receivedBytes += data.remaining();
+  }
+
+  @Override
+  public void onDelegatedTasksFinished(TlsConnection connection) {
+    resumedConnections.add(connection);
+    selector.wakeup();
+  }
+
+  /**
+   * 経過時間に応じた数のコネクションに close_notify を送る。
+   *
+   * @return すべて閉じたか、deadline を過ぎたら true
+   */
+  private boolean drainStep() {
+    if (undrainedKeys == null) {
+      undrainedKeys = new ArrayDeque<>();
+      for (SelectionKey key : selector.keys()) {
+        if (key.isValid()) {
+          undrainedKeys.add(key);
+        }
+      }
+      drainTargets = undrainedKeys.size();
+    }
+
+    long now = System.nanoTime();
+    if (now - drainDeadlineNanos >= 0) {
+      for (SelectionKey key : selector.keys()) {
+        if (key.isValid()) {
+          TlsConnection connection = (TlsConnection) key.attachment();
+          closeQuietly(connection);
+          updateInterestOps(key, connection);
+          forcedCloses++;
+        }
+      }
+      return true;
+    }
+
+    long elapsed = now - drainStartNanos;
+    long due = elapsed >= drainSpreadNanos
+        ? drainTargets
+        : drainTargets * elapsed / drainSpreadNanos;
+    while (drainTargets - undrainedKeys.size() < due) {
+      SelectionKey key = undrainedKeys.poll();
+      if (!key.isValid()) {
+        continue;
+      }
+      TlsConnection connection = (TlsConnection) key.attachment();
+      try {
+        connection.closeOutbound();
+      } catch (IOException e) {
+        closeQuietly(connection);
+      } catch (RuntimeException e) {
+        fail(connection, e);
+      }
+      updateInterestOps(key, connection);
+    }
+    return undrainedKeys.isEmpty() && activeConnections == 0;
+  }
+
+  /**
+   * 登録に失敗したら、そのコネクションだけを閉じる。Reactor は止めない。
+   */
+  private void accept(SocketChannel channel) {
+    TlsConnection connection = null;
+    try {
+      channel.configureBlocking(false);
+      // 鍵ストアが読み直されていれば、このハンドシェイクから新しい証明書を使う
+      SSLEngine engine = contextFactory.createServerEngine();
+      engine.beginHandshake();
+
+      connection = new TlsConnection(channel, engine, this,
+          packetBufferPool, applicationBufferPool, delegatedTaskExecutor, handshakeMetrics, serverMetrics);
+      channel.register(selector, connection.interestOps(), connection);
+      activeConnections++;
+    } catch (IOException | RuntimeException e) {
+      System.out.println("Closes " + channel + ": " + e);
+      if (connection != null) {
+        closeQuietly(connection);
+      } else {
+        closeQuietly(channel);
+      }
+    }
+  }
+
+  private void handle(SelectionKey key) {
+    TlsConnection connection = (TlsConnection) key.attachment();
+    try {
+      if (key.isReadable()) {
+        connection.onReadable();
+      } else if (key.isWritable()) {
+        connection.onWritable();
+      }
+    } catch (IOException e) {
+      System.out.println("Closes " + connection.channel() + ": " + e);
+      closeQuietly(connection);
+    } catch (RuntimeException e) {
+      fail(connection, e);
+    }
+    updateInterestOps(key, connection);
+  }
+
+  private void resume(TlsConnection connection) {
+    SelectionKey key = ((SocketChannel) connection.channel()).keyFor(selector);
+    if (key == null || !key.isValid()) {
+      return;
+    }
+    try {
+      connection.process();
+    } catch (IOException e) {
+      System.out.println("Closes " + connection.channel() + ": " + e);
+      closeQuietly(connection);
+    } catch (RuntimeException e) {
+      fail(connection, e);
+    }
+    updateInterestOps(key, connection);
+  }
+
+  /**
+   * SSLEngine や Listener が RuntimeException を投げたら、そのコネクションだけを閉じる。
+   * Reactor のスレッドが死ぬと、登録済みのコネクションも、この後に割り当てられるコネクションも処理されなくなる。
+   */
+  private void fail(TlsConnection connection, RuntimeException e) {
+    System.out.println("Closes " + connection.channel() + " after an unexpected error: " + e);
+    if (serverMetrics != null && !connection.isClosed()) {
+      serverMetrics.connectionError();
+    }
+    closeQuietly(connection);
+  }
+
+  private void updateInterestOps(SelectionKey key, TlsConnection connection) {
+    if (connection.isClosed()) {
+      key.cancel();
+      activeConnections--;
+    } else {
+      key.interestOps(connection.interestOps());
+    }
+  }
+
+  private static void closeQuietly(TlsConnection connection) {
+    try {
+      connection.close();
+    } catch (IOException e) {
+      // ignore
+    }
+  }
+
+  private static void closeQuietly(SocketChannel channel) {
+    try {
+      channel.close();
+    } catch (IOException e) {
+      // ignore
+    }
+  }
+}
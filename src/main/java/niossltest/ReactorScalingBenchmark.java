@@ -0,0 +1,190 @@
+package niossltest;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+
+/**
+ * Reactor の数を 1 からコア数まで増やしながら、バルク転送でのサーバの受信スループットを測る。
+ * クライアントも Reactor と同じ数の Selector スレッドで送るので、
+ * 同じマシンで動かすとクライアントとサーバでコアを取り合う。
+ * async を指定すると、サーバを AsyncTlsServer にし、Reactor の数の代わりに
+ * AsynchronousChannelGroup のスレッド数を増やす。クライアントは同じ。
+ *
+ * Usage: ReactorScalingBenchmark [max reactors] [connections] [seconds] [heap|direct] [nio|async]
+ */
+public class ReactorScalingBenchmark {
+  private static final int MAX_POOLED_BUFFERS = 64;
+  private static final long WARMUP_MILLIS = 1000;
+
+  /**
+   * 1 つの Selector スレッドで、複数のコネクションから送り続けるクライアント。
+   */
+  private static class LoadClient implements Runnable {
+    private final SSLContext context;
+    private final InetSocketAddress address;
+    private final int connectionCount;
+    private final BufferType bufferType;
+    private volatile boolean running = true;
+
+    LoadClient(SSLContext context, InetSocketAddress address, int connectionCount, BufferType bufferType) {
+      this.context = context;
+      this.address = address;
+      this.connectionCount = connectionCount;
+      this.bufferType = bufferType;
+    }
+
+    void shutdown() {
+      running = false;
+    }
+
+    @Override
+    public void run() {
+      try (Selector selector = Selector.open()) {
+        SSLEngine sessionEngine = context.createSSLEngine();
+        BufferPool packetBufferPool = BufferPool.forPackets(bufferType, sessionEngine.getSession(),
+            MAX_POOLED_BUFFERS);
+        BufferPool applicationBufferPool = BufferPool.forApplicationData(bufferType, sessionEngine.getSession(),
+            MAX_POOLED_BUFFERS);
+        ByteBuffer payload = applicationBufferPool.allocate(applicationBufferPool.bufferSize());
+
+        List<TlsConnection> connections = new ArrayList<>();
+        for (int i = 0; i < connectionCount; i++) {
+          SocketChannel channel = SocketChannel.open(address);
+          channel.configureBlocking(false);
+          channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+          SSLEngine engine = context.createSSLEngine();
+          engine.setUseClientMode(true);
+          engine.beginHandshake();
+          TlsConnection connection = new TlsConnection(channel, engine, new TlsConnection.Listener() {
+          }, packetBufferPool, applicationBufferPool, null);
+          channel.register(selector, connection.interestOps(), connection);
+          connection.process();
+          connections.add(connection);
+        }
+
+        while (running) {
+          boolean wrote = false;
+          for (TlsConnection connection : connections) {
+            if (connection.isHandshakeFinished() && connection.interestOps() == SelectionKey.OP_READ) {
+              payload.clear();
+              wrote |= connection.write(payload) > 0;
+              connection.process();
+            }
+            ((SocketChannel) connection.channel()).keyFor(selector).interestOps(connection.interestOps());
+          }
+          if (wrote) {
+            // まだ送れるコネクションがあるかもしれないので待たない
+            selector.selectNow();
+          } else {
+            selector.select(10);
+          }
+          for (SelectionKey key : selector.selectedKeys()) {
+            TlsConnection connection = (TlsConnection) key.attachment();
+            if (key.isReadable()) {
+              connection.onReadable();
+            } else if (key.isWritable()) {
+              connection.onWritable();
+            }
+          }
+          selector.selectedKeys().clear();
+        }
+
+        for (TlsConnection connection : connections) {
+          connection.close();
+        }
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    int maxReactors = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+    int connections = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+    int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+    BufferType bufferType = BufferType.parse(args, 3);
+    String mode = args.length > 4 ? args[4] : "nio";
+
+    SSLContext serverContext = SSLContext.getInstance("TLS");
+    serverContext.init(HandshakeLogging.createKeyManagers(), HandshakeLogging.createTrustManagers(), null);
+    SSLContext clientContext = SSLContext.getInstance("TLS");
+    clientContext.init(null, HandshakeLogging.createTrustManagers(), null);
+
+    double baseline = 0;
+    for (int reactors = 1; reactors <= maxReactors; reactors++) {
+      double megabytesPerSecond = run(serverContext, clientContext, bufferType, mode, reactors, connections,
+          seconds);
+      if (reactors == 1) {
+        baseline = megabytesPerSecond;
+      }
+      System.out.printf("mode=%s reactors=%d connections=%d type=%s throughput=%.1fMB/s speedup=%.2f%n",
+          mode, reactors, connections, bufferType, megabytesPerSecond, megabytesPerSecond / baseline);
+    }
+  }
+
+  /**
+   * @return ウォームアップ後 seconds 秒間の、サーバの受信スループット
+   */
+  private static double run(SSLContext serverContext,
+                            SSLContext clientContext,
+                            BufferType bufferType,
+                            String mode,
+                            int reactors,
+                            int connections,
+                            int seconds) throws Exception {
+    InetSocketAddress address = new InetSocketAddress("127.0.0.1", 0);
+    Server server = mode.equals("async")
+        ? new AsyncTlsServer(TlsContextFactory.of(serverContext), address, bufferType, reactors)
+        : new TlsServer(TlsContextFactory.of(serverContext), address, bufferType, null, null, reactors);
+    Thread serverThread = new Thread(() -> {
+      try {
+        server.run();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }, "acceptor");
+    serverThread.start();
+
+    List<LoadClient> clients = new ArrayList<>();
+    List<Thread> clientThreads = new ArrayList<>();
+    for (int i = 0; i < reactors; i++) {
+      // 端数は最初のクライアントに寄せる
+      int connectionCount = connections / reactors + (i == 0 ? connections % reactors : 0);
+      LoadClient client = new LoadClient(clientContext, server.localAddress(), connectionCount, bufferType);
+      Thread thread = new Thread(client, "client-" + i);
+      thread.start();
+      clients.add(client);
+      clientThreads.add(thread);
+    }
+
+    try {
+      TimeUnit.MILLISECONDS.sleep(WARMUP_MILLIS);
+      long startBytes = server.receivedBytes();
+      long start = System.nanoTime();
+      TimeUnit.SECONDS.sleep(seconds);
+      long bytes = server.receivedBytes() - startBytes;
+      return bytes / 1e6 / ((System.nanoTime() - start) / 1e9);
+    } finally {
+      for (LoadClient client : clients) {
+        client.shutdown();
+      }
+      for (Thread thread : clientThreads) {
+        thread.join();
+      }
+      server.shutdown();
+      serverThread.join();
+      server.close();
+    }
+  }
+}
@@ -0,0 +1,84 @@
+package niossltest;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+
+/**
+ * エージェントの再接続を模して、同じサーバへ何度もハンドシェイクし直す。
+ * - fresh: 接続ごとに SSLContext を作り、接続先も渡さない（これまでの HandshakeLogging と同じ）
+ * - reuse: 1 つの SSLContext を使い回し、createSSLEngine(host, port) で接続先を渡す
+ * それぞれについて、フルハンドシェイクと abbreviated handshake の数、1 秒あたりのハンドシェイク数を表示する。
+ * 再開したかどうかは、サーバのセッションを前回のコネクションのものと比べて決める。
+ * ハンドシェイクの速さは、コネクションの作成と close を除いた、ハンドシェイクそのものの時間から求める。
+ *
+ * Usage: ResumptionBenchmark [reconnects] [TLSv1.2|TLSv1.3] [socket|memory]
+ *                            [session cache size] [session timeout seconds]
+ */
+public class ResumptionBenchmark {
+  private static final int MAX_POOLED_BUFFERS = 4;
+  // セッションキャッシュのキーにするだけなので、実在しなくてよい
+  private static final String PEER_HOST = "127.0.0.1";
+  private static final int PEER_PORT = 24224;
+
+  public static void main(String[] args) throws Exception {
+    int reconnects = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+    String protocol = args.length > 1 ? args[1] : "TLSv1.2";
+    Transport transport = Transport.parse(args, 2);
+    int cacheSize = args.length > 3 ? Integer.parseInt(args[3]) : 20480;
+    int timeoutSeconds = args.length > 4 ? Integer.parseInt(args[4]) : 86400;
+
+    SSLContext serverContext = SSLContext.getInstance("TLS");
+    serverContext.init(HandshakeLogging.createKeyManagers(), HandshakeLogging.createTrustManagers(), null);
+    SessionResumption.configureServerSessionCache(serverContext, cacheSize, timeoutSeconds);
+    BufferPool packetBufferPool = BufferPool.forPackets(BufferType.HEAP,
+        serverContext.createSSLEngine().getSession(), MAX_POOLED_BUFFERS);
+    BufferPool applicationBufferPool = BufferPool.forApplicationData(BufferType.HEAP,
+        serverContext.createSSLEngine().getSession(), MAX_POOLED_BUFFERS);
+
+    SSLContext sharedClientContext = createClientContext();
+    for (String mode : new String[] {"fresh", "reuse"}) {
+      int resumed = 0;
+      long handshakeNanos = 0;
+      SSLSession previousSession = null;
+      for (int i = 0; i < reconnects; i++) {
+        SSLEngine clientEngine;
+        if (mode.equals("fresh")) {
+          clientEngine = createClientContext().createSSLEngine();
+        } else {
+          clientEngine = sharedClientContext.createSSLEngine(PEER_HOST, PEER_PORT);
+        }
+        clientEngine.setEnabledProtocols(new String[] {protocol});
+
+        try (LoopbackPair pair = LoopbackPair.open(transport, serverContext, clientEngine,
+            packetBufferPool, applicationBufferPool)) {
+          long start = System.nanoTime();
+          pair.handshake();
+          handshakeNanos += System.nanoTime() - start;
+          SSLSession session = pair.server().engine().getSession();
+          if (SessionResumption.isResumed(session, previousSession)) {
+            resumed++;
+          }
+          previousSession = session;
+        }
+      }
+
+      System.out.printf("mode=%s protocol=%s transport=%s handshakes=%d full=%d abbreviated=%d"
+              + " hitRate=%.1f%% handshakesPerSecond=%.1f%n",
+          mode,
+          protocol,
+          transport,
+          reconnects,
+          reconnects - resumed,
+          resumed,
+          100.0 * resumed / reconnects,
+          reconnects / (handshakeNanos / 1e9));
+    }
+  }
+
+  private static SSLContext createClientContext() throws Exception {
+    SSLContext context = SSLContext.getInstance("TLS");
+    context.init(null, HandshakeLogging.createTrustManagers(), null);
+    return context;
+  }
+}
@@ -0,0 +1,26 @@
+package niossltest;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+/**
+ * TLS コネクションを受け付けるサーバ。いずれもコネクションは TlsConnection で扱う。
+ * - TlsServer: Selector と Reactor による non-blocking な状態機械
+ * - BlockingTlsServer: コネクションごとの virtual thread で blocking に進める
+ * - AsyncTlsServer: AsynchronousSocketChannel の完了通知で進める
+ */
+interface Server extends Closeable {
+  /**
+   * shutdown が呼ばれるまで accept し続ける。
+   */
+  void run() throws IOException;
+
+  InetSocketAddress localAddress() throws IOException;
+
+  long completedHandshakes();
+
+  long receivedBytes();
+
+  void shutdown();
+}
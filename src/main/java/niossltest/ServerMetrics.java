@@ -0,0 +1,232 @@
+package niossltest;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * サーバ全体のコネクションの状態と、処理の段階ごとの量を集める。負荷をかけたときに、どの段階が詰まるかを見るためのもの。
+ * - コネクション: 開いている数、ハンドシェイク中 / 完了 / 失敗（ハンドシェイク中に閉じた）の数、
+ *   処理中の予期しない例外（SSLEngine や Listener の RuntimeException）で閉じた数
+ * - 委譲タスク: Executor に渡して、まだ動き始めていない数と、動き始めるまでの待ち時間と実行時間
+ * - wrap / unwrap: 暗号化したアプリケーションデータと、復号したアプリケーションデータのバイト数
+ * - BUFFER_OVERFLOW / BUFFER_UNDERFLOW の回数
+ * - Reactor の 1 回のループ（select から戻ってから、次の select を呼ぶまで）の所要時間。何か処理した回だけ数える
+ *
+ * TlsConnection と Reactor に渡さなければ計測は行われない。
+ * 複数の Reactor のスレッドと Executor のスレッドから更新されるので、LongAdder と LatencyHistogram で数える。
+ * registerMBean で JMX に、MetricsEndpoint で HTTP に公開する。
+ */
+class ServerMetrics implements ServerMetricsMXBean {
+  static final String OBJECT_NAME = "niossltest:type=ServerMetrics";
+
+  private final LongAdder activeConnections = new LongAdder();
+  private final LongAdder handshakesInProgress = new LongAdder();
+  private final LongAdder completedHandshakes = new LongAdder();
+  private final LongAdder failedHandshakes = new LongAdder();
+  private final LongAdder connectionErrors = new LongAdder();
+  private final LongAdder queuedDelegatedTasks = new LongAdder();
+  private final LatencyHistogram delegatedTaskWait = new LatencyHistogram();
+  private final LatencyHistogram delegatedTaskRun = new LatencyHistogram();
+  private final LongAdder wrappedBytes = new LongAdder();
+  private final LongAdder unwrappedBytes = new LongAdder();
+  private final LongAdder bufferOverflows = new LongAdder();
+  private final LongAdder bufferUnderflows = new LongAdder();
+  private final LatencyHistogram selectorLoop = new LatencyHistogram();
+
+  /**
+   * プラットフォームの MBeanServer に OBJECT_NAME で登録する。
+   */
+  void registerMBean() throws JMException {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    server.registerMBean(this, new ObjectName(OBJECT_NAME));
+  }
+
+  void unregisterMBean() throws JMException {
+    ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(OBJECT_NAME));
+  }
+
+  void connectionOpened() {
+    activeConnections.increment();
+    handshakesInProgress.increment();
+  }
+
+  /**
+   * @param handshakeFinished false ならハンドシェイクの失敗として数える
+   */
+  void connectionClosed(boolean handshakeFinished) {
+    activeConnections.decrement();
+    if (!handshakeFinished) {
+      handshakesInProgress.decrement();
+      failedHandshakes.increment();
+    }
+  }
+
+  /**
+   * 予期しない例外で閉じるとき、close の前に呼ぶ。開いている数などは close で数える。
+   */
+  void connectionError() {
+    connectionErrors.increment();
+  }
+
+  void handshakeFinished() {
+    handshakesInProgress.decrement();
+    completedHandshakes.increment();
+  }
+
+  void delegatedTaskSubmitted() {
+    queuedDelegatedTasks.increment();
+  }
+
+  /**
+   * @param submittedNanos Executor に渡したときの System#nanoTime
+   */
+  void delegatedTaskStarted(long submittedNanos) {
+    queuedDelegatedTasks.decrement();
+    delegatedTaskWait.record(System.nanoTime() - submittedNanos);
+  }
+
+  void delegatedTaskFinished(long startNanos) {
+    delegatedTaskRun.record(System.nanoTime() - startNanos);
+  }
+
+  void wrapped(long bytes) {
+    wrappedBytes.add(bytes);
+  }
+
+  void unwrapped(long bytes) {
+    unwrappedBytes.add(bytes);
+  }
+
+  void bufferOverflow() {
+    bufferOverflows.increment();
+  }
+
+  void bufferUnderflow() {
+    bufferUnderflows.increment();
+  }
+
+  void selectorLoopFinished(long startNanos) {
+    selectorLoop.record(System.nanoTime() - startNanos);
+  }
+
+  LatencyHistogram delegatedTaskWait() {
+    return delegatedTaskWait;
+  }
+
+  LatencyHistogram delegatedTaskRun() {
+    return delegatedTaskRun;
+  }
+
+  LatencyHistogram selectorLoop() {
+    return selectorLoop;
+  }
+
+  @Override
+  public long getActiveConnections() {
+    return activeConnections.sum();
+  }
+
+  @Override
+  public long getHandshakesInProgress() {
+    return handshakesInProgress.sum();
+  }
+
+  @Override
+  public long getCompletedHandshakes() {
+    return completedHandshakes.sum();
+  }
+
+  @Override
+  public long getFailedHandshakes() {
+    return failedHandshakes.sum();
+  }
+
+  @Override
+  public long getConnectionErrors() {
+    return connectionErrors.sum();
+  }
+
+  @Override
+  public long getQueuedDelegatedTasks() {
+    return queuedDelegatedTasks.sum();
+  }
+
+  @Override
+  public long getDelegatedTaskWaitNanosP50() {
+    return delegatedTaskWait.percentile(50);
+  }
+
+  @Override
+  public long getDelegatedTaskWaitNanosP99() {
+    return delegatedTaskWait.percentile(99);
+  }
+
+  @Override
+  public long getDelegatedTaskWaitNanosMax() {
+    return delegatedTaskWait.max();
+  }
+
+  @Override
+  public long getDelegatedTaskRunNanosP99() {
+    return delegatedTaskRun.percentile(99);
+  }
+
+  @Override
+  public long getWrappedBytes() {
+    return wrappedBytes.sum();
+  }
+
+  @Override
+  public long getUnwrappedBytes() {
+    return unwrappedBytes.sum();
+  }
+
+  @Override
+  public long getBufferOverflows() {
+    return bufferOverflows.sum();
+  }
+
+  @Override
+  public long getBufferUnderflows() {
+    return bufferUnderflows.sum();
+  }
+
+  @Override
+  public long getSelectorLoops() {
+    return selectorLoop.count();
+  }
+
+  @Override
+  public long getSelectorLoopNanosP50() {
+    return selectorLoop.percentile(50);
+  }
+
+  @Override
+  public long getSelectorLoopNanosP99() {
+    return selectorLoop.percentile(99);
+  }
+
+  @Override
+  public long getSelectorLoopNanosMax() {
+    return selectorLoop.max();
+  }
+
+  /**
+   * 定期的なログ向けの要約。
+   */
+  @Override
+  public String toString() {
+    return "ServerMetrics(connections=" + getActiveConnections()
+        + " handshaking=" + getHandshakesInProgress()
+        + " failed=" + getFailedHandshakes()
+        + " errors=" + getConnectionErrors()
+        + " queuedTasks=" + getQueuedDelegatedTasks()
+        + " taskWaitP99=" + getDelegatedTaskWaitNanosP99() / 1000 + "us"
+        + " overflows=" + getBufferOverflows()
+        + " underflows=" + getBufferUnderflows()
+        + " loopP99=" + getSelectorLoopNanosP99() / 1000 + "us)";
+  }
+}
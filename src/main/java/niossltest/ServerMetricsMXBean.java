@@ -0,0 +1,44 @@
+package niossltest;
+
+/**
+ * ServerMetrics を JMX で公開するためのインターフェース。
+ * MXBean として登録するには public でなければならない。
+ * レイテンシはナノ秒。
+ */
+public interface ServerMetricsMXBean {
+  long getActiveConnections();
+
+  long getHandshakesInProgress();
+
+  long getCompletedHandshakes();
+
+  long getFailedHandshakes();
+
+  long getConnectionErrors();
+
+  long getQueuedDelegatedTasks();
+
+  long getDelegatedTaskWaitNanosP50();
+
+  long getDelegatedTaskWaitNanosP99();
+
+  long getDelegatedTaskWaitNanosMax();
+
+  long getDelegatedTaskRunNanosP99();
+
+  long getWrappedBytes();
+
+  long getUnwrappedBytes();
+
+  long getBufferOverflows();
+
+  long getBufferUnderflows();
+
+  long getSelectorLoops();
+
+  long getSelectorLoopNanosP50();
+
+  long getSelectorLoopNanosP99();
+
+  long getSelectorLoopNanosMax();
+}
@@ -0,0 +1,419 @@
+package niossltest;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+
+/**
+ * TlsServer (nio) と BlockingTlsServer (virtual)、AsyncTlsServer (async) に、
+ * connections 本のコネクションを張って維持する。
+ * - 1 秒あたりに確立できたコネクション数
+ * - connect からハンドシェイク完了までのレイテンシの p50 / p99
+ * - サーバのコネクションあたりのメモリ（GC 後のヒープと direct buffer の増分）
+ * を表示する。
+ *
+ * サーバは別の JVM で動かし、標準入出力で統計をやり取りする。
+ * クライアントとサーバのメモリやファイルディスクリプタが混ざらないようにするため。
+ * 1 プロセスあたり connections 個のファイルディスクリプタを使うので、ulimit -n を十分大きくすること。
+ * virtual には JDK 21 以降が必要。それより前の JDK では both と all から virtual を外す。
+ *
+ * nio と async はコア数と同じ数のスレッドを使う。both は nio と virtual、all は 3 つすべて。
+ *
+ * Usage: ServerModeBenchmark [connections,...] [nio|virtual|async|both|all]
+ */
+public class ServerModeBenchmark {
+  private static final int MAX_POOLED_BUFFERS = 64;
+  // クライアント全体で、同時にハンドシェイク中にしておくコネクションの上限
+  private static final int MAX_IN_FLIGHT_HANDSHAKES = 256;
+  // エフェメラルポートが足りなくならないように、送信元アドレスを散らす
+  private static final int SOURCE_ADDRESSES = 8;
+  // 確立後、TLS 1.3 の NewSessionTicket などを読み切るまで待つ時間
+  private static final long SETTLE_MILLIS = 1000;
+  // すべてのコネクションが確立するか失敗するのを待つ時間。コネクション数に比例させる
+  private static final long MIN_ESTABLISH_TIMEOUT_SECONDS = 60;
+  private static final int CONNECTIONS_PER_TIMEOUT_SECOND = 100;
+
+  /**
+   * 1 つの Selector スレッドで、count 本のコネクションを張って維持するクライアント。
+   * ハンドシェイクを終えるか、終える前に失敗する（接続できない、リセットされる、サーバに閉じられる）たびに
+   * established をカウントダウンする。失敗は failures に数え、張り直さない。
+   */
+  private static class HandshakeClient implements Runnable {
+    private final SSLContext context;
+    private final InetSocketAddress address;
+    private final int firstIndex;
+    private final int count;
+    private final int maxInFlight;
+    private final LatencyHistogram latencies;
+    private final CountDownLatch established;
+    private final AtomicInteger failures;
+    private final List<TlsConnection> connections = new ArrayList<>();
+    private volatile boolean running = true;
+    // 失敗したものも含めて、張ろうとしたコネクションの数
+    private int attempts = 0;
+    private int inFlight = 0;
+
+    HandshakeClient(SSLContext context,
+                    InetSocketAddress address,
+                    int firstIndex,
+                    int count,
+                    int maxInFlight,
+                    LatencyHistogram latencies,
+                    CountDownLatch established,
+                    AtomicInteger failures) {
+      this.context = context;
+      this.address = address;
+      this.firstIndex = firstIndex;
+      this.count = count;
+      this.maxInFlight = maxInFlight;
+      this.latencies = latencies;
+      this.established = established;
+      this.failures = failures;
+    }
+
+    void shutdown() {
+      running = false;
+    }
+
+    @Override
+    public void run() {
+      try (Selector selector = Selector.open()) {
+        SSLEngine sessionEngine = context.createSSLEngine();
+        BufferPool packetBufferPool = BufferPool.forPackets(BufferType.HEAP, sessionEngine.getSession(),
+            MAX_POOLED_BUFFERS);
+        BufferPool applicationBufferPool = BufferPool.forApplicationData(BufferType.HEAP,
+            sessionEngine.getSession(), MAX_POOLED_BUFFERS);
+
+        while (running) {
+          while (attempts < count && inFlight < maxInFlight) {
+            open(selector, packetBufferPool, applicationBufferPool);
+          }
+          selector.select(10);
+          for (SelectionKey key : selector.selectedKeys()) {
+            TlsConnection connection = (TlsConnection) key.attachment();
+            try {
+              if (key.isConnectable()) {
+                ((SocketChannel) key.channel()).finishConnect();
+                connection.process();
+              } else if (key.isReadable()) {
+                connection.onReadable();
+              } else if (key.isWritable()) {
+                connection.onWritable();
+              }
+            } catch (IOException e) {
+              System.out.println("Closes " + connection.channel() + ": " + e);
+              connection.close();
+            }
+            if (connection.isClosed()) {
+              key.cancel();
+              if (!connection.isHandshakeFinished()) {
+                failed();
+              }
+            } else {
+              key.interestOps(connection.interestOps());
+            }
+          }
+          selector.selectedKeys().clear();
+        }
+
+        for (TlsConnection connection : connections) {
+          connection.close();
+        }
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    private void open(Selector selector,
+                      BufferPool packetBufferPool,
+                      BufferPool applicationBufferPool) throws IOException {
+      int index = firstIndex + attempts;
+      attempts++;
+      inFlight++;
+      long startNanos = System.nanoTime();
+      SocketChannel channel = null;
+      try {
+        channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        channel.bind(new InetSocketAddress("127.0.0." + (2 + index % SOURCE_ADDRESSES), 0));
+      } catch (IOException e) {
+        // ファイルディスクリプタやエフェメラルポートが足りない
+        System.out.println("Failed to open a socket: " + e);
+        if (channel != null) {
+          channel.close();
+        }
+        failed();
+        return;
+      }
+      SSLEngine engine = context.createSSLEngine();
+      engine.setUseClientMode(true);
+      engine.beginHandshake();
+      TlsConnection connection = new TlsConnection(channel, engine, new TlsConnection.Listener() {
+        @Override
+        public void onHandshakeFinished(TlsConnection connection) {
+          latencies.record(System.nanoTime() - startNanos);
+          inFlight--;
+          established.countDown();
+        }
+      }, packetBufferPool, applicationBufferPool, null);
+      connections.add(connection);
+
+      try {
+        if (channel.connect(address)) {
+          connection.process();
+          channel.register(selector, connection.interestOps(), connection);
+        } else {
+          channel.register(selector, SelectionKey.OP_CONNECT, connection);
+        }
+      } catch (IOException e) {
+        System.out.println("Failed to connect " + channel + ": " + e);
+        connection.close();
+        failed();
+      }
+    }
+
+    /**
+     * ハンドシェイクを終える前に閉じたコネクションを、確立待ちから外す。
+     */
+    private void failed() {
+      inFlight--;
+      failures.incrementAndGet();
+      established.countDown();
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length > 0 && args[0].equals("serve")) {
+      serve(args[1]);
+      return;
+    }
+    String[] connectionCounts = (args.length > 0 ? args[0] : "1000,10000,50000").split(",");
+    String modeArgument = args.length > 1 ? args[1] : "both";
+    List<String> modes;
+    if (modeArgument.equals("both")) {
+      modes = new ArrayList<>(Arrays.asList("nio", "virtual"));
+    } else if (modeArgument.equals("all")) {
+      modes = new ArrayList<>(Arrays.asList("nio", "virtual", "async"));
+    } else {
+      modes = Arrays.asList(modeArgument);
+    }
+    // サーバのプロセスを起こす前に確かめる。起こしてからだと、途中のモードで止まってしまう
+    if (!DelegatedTaskExecutors.virtualThreadsAvailable()) {
+      if (modeArgument.equals("virtual")) {
+        throw new IllegalArgumentException("virtual requires JDK 21 or later (running on "
+            + System.getProperty("java.version") + ")");
+      }
+      if (modes.remove("virtual")) {
+        System.out.println("Skips virtual: virtual threads require JDK 21 or later");
+      }
+    }
+
+    SSLContext clientContext = SSLContext.getInstance("TLS");
+    clientContext.init(null, HandshakeLogging.createTrustManagers(), null);
+    for (String connectionCount : connectionCounts) {
+      for (String mode : modes) {
+        run(clientContext, mode, Integer.parseInt(connectionCount));
+      }
+    }
+  }
+
+  private static void run(SSLContext clientContext, String mode, int connections) throws Exception {
+    Process process = new ProcessBuilder(
+        System.getProperty("java.home") + "/bin/java",
+        "-cp", System.getProperty("java.class.path"),
+        ServerModeBenchmark.class.getName(), "serve", mode)
+        .redirectError(ProcessBuilder.Redirect.INHERIT)
+        .start();
+    BlockingQueue<String> replies = readReplies(process);
+    PrintStream commands = new PrintStream(process.getOutputStream(), true);
+
+    int port = Integer.parseInt(take(replies, process).substring("port=".length()));
+    commands.println("stats");
+    long[] before = parseStats(take(replies, process));
+
+    int threads = Runtime.getRuntime().availableProcessors();
+    LatencyHistogram latencies = new LatencyHistogram();
+    CountDownLatch established = new CountDownLatch(connections);
+    AtomicInteger failures = new AtomicInteger();
+    List<HandshakeClient> clients = new ArrayList<>();
+    List<Thread> clientThreads = new ArrayList<>();
+    long start = System.nanoTime();
+    for (int i = 0; i < threads; i++) {
+      int firstIndex = connections * i / threads;
+      int count = connections * (i + 1) / threads - firstIndex;
+      HandshakeClient client = new HandshakeClient(clientContext, new InetSocketAddress("127.0.0.1", port),
+          firstIndex, count, Math.max(1, MAX_IN_FLIGHT_HANDSHAKES / threads), latencies, established, failures);
+      Thread thread = new Thread(client, "client-" + i);
+      thread.start();
+      clients.add(client);
+      clientThreads.add(thread);
+    }
+
+    try {
+      long timeoutSeconds = Math.max(MIN_ESTABLISH_TIMEOUT_SECONDS, connections / CONNECTIONS_PER_TIMEOUT_SECOND);
+      if (!established.await(timeoutSeconds, TimeUnit.SECONDS)) {
+        System.out.println("Timed out after " + timeoutSeconds + "s: "
+            + established.getCount() + " connections neither established nor failed");
+      }
+      long elapsedNanos = System.nanoTime() - start;
+      long succeeded = latencies.count();
+      TimeUnit.MILLISECONDS.sleep(SETTLE_MILLIS);
+      commands.println("stats");
+      long[] after = parseStats(take(replies, process));
+
+      System.out.printf("mode=%s connections=%d established=%d failed=%d serverHandshakes=%d"
+              + " connectionsPerSecond=%.0f p50=%.2fms p99=%.2fms heapPerConnection=%dB directPerConnection=%dB%n",
+          mode,
+          connections,
+          succeeded,
+          failures.get(),
+          after[2],
+          succeeded / (elapsedNanos / 1e9),
+          latencies.percentile(50) / 1e6,
+          latencies.percentile(99) / 1e6,
+          (after[0] - before[0]) / Math.max(succeeded, 1),
+          (after[1] - before[1]) / Math.max(succeeded, 1));
+    } finally {
+      commands.println("exit");
+      process.waitFor();
+      for (HandshakeClient client : clients) {
+        client.shutdown();
+      }
+      for (Thread thread : clientThreads) {
+        thread.join();
+      }
+    }
+  }
+
+  /**
+   * サーバの標準出力のうち、port= と stats で始まる行だけを返す。
+   * TlsServer の定期的なログなど、それ以外の行は読み捨てる。
+   */
+  private static BlockingQueue<String> readReplies(Process process) {
+    BlockingQueue<String> replies = new LinkedBlockingQueue<>();
+    Thread reader = new Thread(() -> {
+      try (BufferedReader output = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+        String line;
+        while ((line = output.readLine()) != null) {
+          if (line.startsWith("port=") || line.startsWith("stats ")) {
+            replies.add(line);
+          }
+        }
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }, "server-output");
+    reader.setDaemon(true);
+    reader.start();
+    return replies;
+  }
+
+  /**
+   * サーバのプロセスが異常終了していたら、待ち続けずに例外にする。
+   */
+  private static String take(BlockingQueue<String> replies, Process process) throws Exception {
+    while (true) {
+      String reply = replies.poll(1, TimeUnit.SECONDS);
+      if (reply != null) {
+        return reply;
+      }
+      if (!process.isAlive()) {
+        throw new IOException("Server process exited with " + process.exitValue());
+      }
+    }
+  }
+
+  /**
+   * @return {heap, direct, handshakes}
+   */
+  private static long[] parseStats(String line) {
+    long[] stats = new long[3];
+    for (String field : line.substring("stats ".length()).split(" ")) {
+      String[] keyAndValue = field.split("=");
+      switch (keyAndValue[0]) {
+        case "heap":
+          stats[0] = Long.parseLong(keyAndValue[1]);
+          break;
+        case "direct":
+          stats[1] = Long.parseLong(keyAndValue[1]);
+          break;
+        case "handshakes":
+          stats[2] = Long.parseLong(keyAndValue[1]);
+          break;
+        default:
+          break;
+      }
+    }
+    return stats;
+  }
+
+  /**
+   * サーバ側のプロセス。ポート番号を表示した後、標準入力から次のコマンドを読む。
+   * - stats: GC してから、ヒープと direct buffer の使用量、完了したハンドシェイク数を表示する
+   * - exit または EOF: 終了する
+   */
+  private static void serve(String mode) throws Exception {
+    TlsContextFactory contextFactory = TlsContextFactory.forServer();
+    InetSocketAddress address = new InetSocketAddress("127.0.0.1", 0);
+    int threads = Runtime.getRuntime().availableProcessors();
+    Server server;
+    if (mode.equals("virtual")) {
+      server = new BlockingTlsServer(contextFactory, address, BufferType.HEAP);
+    } else if (mode.equals("async")) {
+      server = new AsyncTlsServer(contextFactory, address, BufferType.HEAP, threads);
+    } else {
+      server = new TlsServer(contextFactory, address, BufferType.HEAP, null, null, threads);
+    }
+    Thread serverThread = new Thread(() -> {
+      try {
+        server.run();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }, "server");
+    serverThread.start();
+    System.out.println("port=" + server.localAddress().getPort());
+
+    BufferedReader commands = new BufferedReader(new InputStreamReader(System.in));
+    String command;
+    while ((command = commands.readLine()) != null && !command.equals("exit")) {
+      if (command.equals("stats")) {
+        System.gc();
+        System.gc();
+        long heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        long direct = 0;
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+          if (pool.getName().equals("direct")) {
+            direct = pool.getMemoryUsed();
+          }
+        }
+        System.out.println("stats heap=" + heap + " direct=" + direct
+            + " handshakes=" + server.completedHandshakes());
+      }
+    }
+    server.shutdown();
+    serverThread.join();
+    server.close();
+  }
+}
@@ -0,0 +1,52 @@
+package niossltest;
+
+import java.util.Arrays;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+
+/**
+ * セッション再開（abbreviated handshake）まわりの設定と判定。
+ *
+ * セッションを再開するには
+ * - クライアントは同じ SSLContext を使い回し、
+ *   SSLContext#createSSLEngine(host, port) で接続先を渡す（キャッシュのキーになる）
+ * - サーバは SSLSessionContext のキャッシュに前回のセッションが残っている
+ * 必要がある。
+ */
+final class SessionResumption {
+  private SessionResumption() {
+  }
+
+  /**
+   * @param cacheSize      0 なら無制限
+   * @param timeoutSeconds 0 なら無期限。
+   *                       ただし TLS 1.3 では NewSessionTicket の有効期間にも使われるので、
+   *                       0 にするとセッションを再開できなくなる
+   */
+  static void configureServerSessionCache(SSLContext context, int cacheSize, int timeoutSeconds) {
+    SSLSessionContext sessionContext = context.getServerSessionContext();
+    sessionContext.setSessionCacheSize(cacheSize);
+    sessionContext.setSessionTimeout(timeoutSeconds);
+  }
+
+  /**
+   * 同じ相手との前回のコネクションのセッション previous を再開したなら true。
+   * TLS 1.2 では、再開したセッションのセッション ID は前回と同じ。
+   * JDK の TLS 1.3 はハンドシェイクごとに新しいセッション ID を付けるが、PSK から作ったセッションは
+   * 前回の作成時刻をそのまま引き継ぐので、作成時刻が一致するかで判定する。
+   * どちらも前回のセッションとの比較なので、再接続の間隔によらない。
+   * 前回のセッションがわからないサーバでは、TlsContextFactory#isResumed を使う。
+   *
+   * @param previous null なら false
+   */
+  static boolean isResumed(SSLSession session, SSLSession previous) {
+    if (previous == null) {
+      return false;
+    }
+    if (Arrays.equals(session.getId(), previous.getId())) {
+      return true;
+    }
+    return session.getProtocol().equals("TLSv1.3") && session.getCreationTime() == previous.getCreationTime();
+  }
+}
@@ -0,0 +1,100 @@
+package niossltest;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import javax.net.ssl.SSLContext;
+
+/**
+ * 巨大なペイロードを TlsConnection#send で流し、スループットとヒープの最大使用量を表示する。
+ * ペイロードの大きさに関わらず、ヒープの使用量は一定に収まるはず。
+ *
+ * Usage: StreamingBenchmark [MiB] [socket|memory] [heap|direct]
+ */
+public class StreamingBenchmark {
+  private static final int MAX_POOLED_BUFFERS = 4;
+
+  /**
+   * 指定したバイト数だけ読める ReadableByteChannel。中身は読み手の buffer のまま。
+   */
+  private static class SizedSource implements ReadableByteChannel {
+    private long remaining;
+
+    SizedSource(long size) {
+      this.remaining = size;
+    }
+
+    @Override
+    public int read(ByteBuffer destination) {
+      if (remaining == 0) {
+        return -1;
+      }
+      int length = (int) Math.min(destination.remaining(), remaining);
+      destination.position(destination.position() + length);
+      remaining -= length;
+      return length;
+    }
+
+    @Override
+    public boolean isOpen() {
+      return true;
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    long bytes = (args.length > 0 ? Long.parseLong(args[0]) : 4096) * 1024 * 1024;
+    Transport transport = Transport.parse(args, 1);
+    BufferType bufferType = BufferType.parse(args, 2);
+
+    SSLContext serverContext = SSLContext.getInstance("TLS");
+    serverContext.init(HandshakeLogging.createKeyManagers(), HandshakeLogging.createTrustManagers(), null);
+    SSLContext clientContext = SSLContext.getInstance("TLS");
+    clientContext.init(null, HandshakeLogging.createTrustManagers(), null);
+    BufferPool packetBufferPool = BufferPool.forPackets(bufferType,
+        serverContext.createSSLEngine().getSession(), MAX_POOLED_BUFFERS);
+    BufferPool applicationBufferPool = BufferPool.forApplicationData(bufferType,
+        serverContext.createSSLEngine().getSession(), MAX_POOLED_BUFFERS);
+
+    try (LoopbackPair pair = LoopbackPair.open(transport, serverContext, clientContext,
+        packetBufferPool, applicationBufferPool)) {
+      pair.handshake();
+      resetPeakHeapUsage();
+      long start = System.nanoTime();
+      long received = pair.send(new SizedSource(bytes));
+      long elapsedNanos = System.nanoTime() - start;
+      System.out.printf("transport=%s type=%s bytes=%d received=%d throughput=%.1fMB/s peakHeap=%dKiB%n",
+          transport,
+          bufferType,
+          bytes,
+          received,
+          received / 1e6 / (elapsedNanos / 1e9),
+          peakHeapUsage() / 1024);
+    }
+    System.out.println("Packet: " + packetBufferPool);
+    System.out.println("Application: " + applicationBufferPool);
+  }
+
+  static void resetPeakHeapUsage() {
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) {
+        pool.resetPeakUsage();
+      }
+    }
+  }
+
+  static long peakHeapUsage() {
+    long peak = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) {
+        peak += pool.getPeakUsage().getUsed();
+      }
+    }
+    return peak;
+  }
+}
@@ -0,0 +1,804 @@
+package niossltest;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+
+/**
+ * 1 本の ByteChannel と SSLEngine の組。
+ * ByteChannel は non-blocking な SocketChannel か MemoryChannel。
+ * HandshakeLogging#handshake と同じ状態遷移を、
+ * Selector が OP_READ / OP_WRITE を通知したときだけ進める。
+ * MemoryChannel の場合は Selector がないので、LoopbackPair が onReadable を呼び続ける。
+ *
+ * Buffer の向き
+ * - inboundNetworkBuffer: 書き込みモード。ByteChannel から読んだパケットを溜める
+ * - outboundNetworkBuffers: 読み込みモード。ByteChannel へ書き出し待ちのパケット。
+ *   複数あれば GatheringByteChannel#write でまとめて書き出す。空になりうるのは最後の 1 つだけ
+ * - applicationBuffer: 書き込みモード。unwrap の出力先
+ * - sendBuffer: 読み込みモード。send で渡された source から読み、wrap 待ちのデータ
+ *
+ * 各 buffer は BufferPool から借り、処理待ちのデータがなくなったら返す。
+ * 借りていない間は null（outboundNetworkBuffers は空）。
+ *
+ * delegatedTaskExecutor を渡すと、NEED_TASK のタスク（証明書の検証や鍵交換など）を
+ * Selector スレッドの外で実行する。実行中は OP_READ / OP_WRITE を待たず、
+ * すべて終わったら Listener#onDelegatedTasksFinished で知らせる。
+ *
+ * send で渡した source は、送信キューが空いたときだけ最大 1 レコード分ずつ読んで wrap する。
+ * 相手が読むのが遅ければ OP_WRITE を待つ間 source を読まないので、
+ * source がどれだけ大きくても、コネクションが抱えるデータは
+ * パケット 1 つとアプリケーションデータ 1 レコード分を超えない。
+ *
+ * sendFile で渡したファイルは、FileChannel#map した MappedByteBuffer から直接 wrap する。
+ * sendBuffer へのコピーがなく、ファイルの中身はヒープを通らない。
+ * 送信キューが空いたときだけ 1 レコードずつ wrap するのは send と同じ。
+ *
+ * 小さなイベントをたくさん送るときは write(ByteBuffer[]) を使う。
+ * SSLEngine#wrap(ByteBuffer[], ByteBuffer) で複数の buffer を 1 レコードにまとめ、
+ * 最大 MAX_QUEUED_PACKETS 個のパケットを 1 回の write で書き出す。
+ *
+ * handshakeMetrics を渡すと、ハンドシェイク中の wrap / unwrap / 委譲タスク / I/O 待ちの時間を
+ * HandshakeTrace に記録する。渡さなければ、計測のコストは null チェックだけになる。
+ * serverMetrics も同じで、渡すとコネクションの状態や wrap / unwrap の量を ServerMetrics に数える。
+ */
+class TlsConnection {
+  private static final ByteBuffer[] EMPTY = new ByteBuffer[] {ByteBuffer.allocate(0)};
+  // write(ByteBuffer[]) で 1 度に積むパケットの上限。16 KiB のレコードなら 256 KiB 程度
+  private static final int MAX_QUEUED_PACKETS = 16;
+  // sendFile で 1 度に map する大きさ。map できるのは 1 度に Integer.MAX_VALUE バイトまで
+  private static final long MAX_MAPPED_BYTES = 256L * 1024 * 1024;
+
+  interface Listener {
+    default void onHandshakeFinished(TlsConnection connection) {
+    }
+
+    /**
+     * @param data unwrap されたアプリケーションデータ。呼び出し後に再利用される
+     */
+    default void onApplicationData(TlsConnection connection, ByteBuffer data) throws IOException {
+    }
+
+    /**
+     * delegatedTaskExecutor のスレッドから呼ばれる。
+     * Selector スレッドで process を呼び直すこと。
+     */
+    default void onDelegatedTasksFinished(TlsConnection connection) {
+    }
+
+    /**
+     * send で渡した source を最後まで読み、すべて wrap し終えたときに呼ばれる。
+     * 最後のパケットはまだ書き出し待ちのことがある。
+     */
+    default void onSendCompleted(TlsConnection connection) {
+    }
+
+    /**
+     * ハンドシェイク後、書き出し待ちだったパケットをすべて書き出したときに呼ばれる。
+     * write が 0 を返して積めなかったデータは、ここで積み直せる。
+     */
+    default void onOutboundFlushed(TlsConnection connection) throws IOException {
+    }
+  }
+
+  private final ByteChannel channel;
+  private final SSLEngine engine;
+  private final Listener listener;
+  private final BufferPool packetBufferPool;
+  private final BufferPool applicationBufferPool;
+  private final Executor delegatedTaskExecutor;
+
+  private ByteBuffer inboundNetworkBuffer = null;
+  private final ArrayDeque<ByteBuffer> outboundNetworkBuffers = new ArrayDeque<>();
+  private ByteBuffer applicationBuffer = null;
+  private ByteBuffer sendBuffer = null;
+  private ReadableByteChannel sendSource = null;
+  private FileChannel sendFile = null;
+  // sendFile の次に map する位置と、map 済みでまだ wrap していない範囲
+  private long sendFilePosition = 0;
+  private MappedByteBuffer mappedSendRegion = null;
+
+  private boolean handshakeFinished = false;
+  private boolean closed = false;
+  // close_notify の後に FIN を送り、相手の close_notify か EOF を待っている
+  private boolean outputShutdown = false;
+  private long networkBytesRead = 0;
+  private long networkBytesWritten = 0;
+  private long recordsWrapped = 0;
+  private long flushes = 0;
+  private long writeCalls = 0;
+  private volatile boolean delegatedTasksRunning = false;
+  // 計測しないなら null
+  private final HandshakeTrace handshakeTrace;
+  private final ServerMetrics serverMetrics;
+
+  /**
+   * @param delegatedTaskExecutor null なら NEED_TASK のタスクをその場で実行する
+   */
+  TlsConnection(ByteChannel channel,
+                SSLEngine engine,
+                Listener listener,
+                BufferPool packetBufferPool,
+                BufferPool applicationBufferPool,
+                Executor delegatedTaskExecutor) {
+    this(channel, engine, listener, packetBufferPool, applicationBufferPool, delegatedTaskExecutor, null);
+  }
+
+  /**
+   * @param handshakeMetrics null ならハンドシェイクを計測しない
+   */
+  TlsConnection(ByteChannel channel,
+                SSLEngine engine,
+                Listener listener,
+                BufferPool packetBufferPool,
+                BufferPool applicationBufferPool,
+                Executor delegatedTaskExecutor,
+                HandshakeMetrics handshakeMetrics) {
+    this(channel, engine, listener, packetBufferPool, applicationBufferPool, delegatedTaskExecutor,
+        handshakeMetrics, null);
+  }
+
+  /**
+   * @param serverMetrics null ならコネクションの状態や wrap / unwrap の量を数えない
+   */
+  TlsConnection(ByteChannel channel,
+                SSLEngine engine,
+                Listener listener,
+                BufferPool packetBufferPool,
+                BufferPool applicationBufferPool,
+                Executor delegatedTaskExecutor,
+                HandshakeMetrics handshakeMetrics,
+                ServerMetrics serverMetrics) {
+    this.channel = channel;
+    this.engine = engine;
+    this.listener = listener;
+    this.packetBufferPool = packetBufferPool;
+    this.applicationBufferPool = applicationBufferPool;
+    this.delegatedTaskExecutor = delegatedTaskExecutor;
+    this.handshakeTrace = handshakeMetrics == null ? null : new HandshakeTrace(handshakeMetrics);
+    this.serverMetrics = serverMetrics;
+    if (serverMetrics != null) {
+      serverMetrics.connectionOpened();
+    }
+  }
+
+  ByteChannel channel() {
+    return channel;
+  }
+
+  SSLEngine engine() {
+    return engine;
+  }
+
+  boolean isHandshakeFinished() {
+    return handshakeFinished;
+  }
+
+  /**
+   * @return ByteChannel から読んだバイト数の合計
+   */
+  long networkBytesRead() {
+    return networkBytesRead;
+  }
+
+  /**
+   * @return ByteChannel へ書いたバイト数の合計
+   */
+  long networkBytesWritten() {
+    return networkBytesWritten;
+  }
+
+  /**
+   * @return wrap でパケットを作った回数。1 回の wrap で作られるレコードは 1 つ
+   */
+  long recordsWrapped() {
+    return recordsWrapped;
+  }
+
+  /**
+   * @return 書き出し待ちのパケットがある状態で、書き出しを始めた回数
+   */
+  long flushes() {
+    return flushes;
+  }
+
+  /**
+   * @return ByteChannel#write (GatheringByteChannel#write) を呼んだ回数
+   */
+  long writeCalls() {
+    return writeCalls;
+  }
+
+  /**
+   * @return 計測していなければ null
+   */
+  HandshakeTrace handshakeTrace() {
+    return handshakeTrace;
+  }
+
+  boolean isClosed() {
+    return closed;
+  }
+
+  /**
+   * 次に Selector に待ってもらうべきイベント。
+   * 書き出し待ちのパケットがあるなら OP_WRITE、それ以外は OP_READ。
+   * タスクの実行中は何も待たない。
+   */
+  int interestOps() {
+    if (delegatedTasksRunning) {
+      return 0;
+    }
+    return hasPendingOutbound() ? SelectionKey.OP_WRITE : SelectionKey.OP_READ;
+  }
+
+  void onReadable() throws IOException {
+    if (inboundNetworkBuffer == null) {
+      inboundNetworkBuffer = packetBufferPool.acquire();
+    }
+    int read = channel.read(inboundNetworkBuffer);
+    if (read < 0) {
+      try {
+        engine.closeInbound();
+      } catch (SSLException e) {
+        // close_notify を受け取らずに切断された
+      }
+      close();
+      return;
+    }
+    networkBytesRead += read;
+    if (read > 0 && isTracing()) {
+      handshakeTrace.waitFinished(engine.getHandshakeStatus());
+    }
+    process();
+  }
+
+  void onWritable() throws IOException {
+    if (isTracing()) {
+      handshakeTrace.waitFinished(engine.getHandshakeStatus());
+    }
+    process();
+  }
+
+  /**
+   * ブロックせずに進められるところまで SSLEngine を進める。
+   * パケットの到着待ちか書き出し待ちになったら戻る。
+   */
+  void process() throws IOException {
+    try {
+      while (!closed && !delegatedTasksRunning) {
+        if (!flush()) {
+          // 書き切れなかったので OP_WRITE を待つ
+          if (isTracing()) {
+            handshakeTrace.waitStarted();
+          }
+          return;
+        }
+        if (engine.isOutboundDone()) {
+          // close_notify まで送り終えた
+          if (engine.isInboundDone() || !shutdownOutput()) {
+            close();
+            return;
+          }
+          // 受信側を開いたまま閉じると、読み残したデータのせいで RST になるので、
+          // 相手の close_notify か EOF (onReadable で close) まで読み続ける
+          if (!unwrap()) {
+            return;
+          }
+          continue;
+        }
+        SSLEngineResult.HandshakeStatus handshakeStatus = engine.getHandshakeStatus();
+        switch (handshakeStatus) {
+          case NEED_WRAP:
+            wrap(EMPTY);
+            break;
+          case NEED_TASK:
+            if (delegatedTaskExecutor == null) {
+              runDelegatedTasks();
+              break;
+            }
+            // ループを抜け、終わったら Listener#onDelegatedTasksFinished から再開する
+            submitDelegatedTasks();
+            break;
+          case NOT_HANDSHAKING:
+            boolean unwrapped = unwrap();
+            boolean wrapped = wrapFromSendSource();
+            if (!unwrapped && !wrapped && !hasPendingOutbound()) {
+              // 読むべきパケットも送るべきデータもない
+              return;
+            }
+            break;
+          default:
+            // NEED_UNWRAP (及び JDK 9 以降の NEED_UNWRAP_AGAIN)
+            if (!unwrap()) {
+              // パケットが足りないので OP_READ を待つ
+              if (isTracing()) {
+                handshakeTrace.waitStarted();
+              }
+              return;
+            }
+            break;
+        }
+      }
+    } finally {
+      releaseIdleBuffers();
+    }
+  }
+
+  /**
+   * アプリケーションデータを暗号化して送信キューに積む。
+   * 書き出しは process で行う。
+   *
+   * @return 消費したバイト数。送信キューが空いていなければ 0
+   */
+  int write(ByteBuffer source) throws IOException {
+    if (!handshakeFinished || hasPendingOutbound()) {
+      return 0;
+    }
+    return wrap(new ByteBuffer[] {source}).bytesConsumed();
+  }
+
+  /**
+   * sources をまとめて暗号化して送信キューに積む。
+   * 小さな buffer は同じレコードに詰め込み、キューが MAX_QUEUED_PACKETS 個になるまで wrap する。
+   * wrap が進まなくなったら（CLOSED など）、その時点でやめる。
+   * 書き出しは process で行う。
+   *
+   * @return 消費したバイト数。送信キューが空いていなければ 0
+   */
+  long write(ByteBuffer[] sources) throws IOException {
+    if (!handshakeFinished || hasPendingOutbound()) {
+      return 0;
+    }
+    long consumed = 0;
+    boolean overflowed = false;
+    while (outboundNetworkBuffers.size() < MAX_QUEUED_PACKETS && hasRemaining(sources)) {
+      SSLEngineResult result = wrap(sources);
+      consumed += result.bytesConsumed();
+      if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW && !overflowed) {
+        // wrap が次のパケットを書く空の buffer を用意したので、続けて積む
+        overflowed = true;
+        continue;
+      }
+      if (result.getStatus() != SSLEngineResult.Status.OK
+          || result.bytesConsumed() == 0 && result.bytesProduced() == 0) {
+        // CLOSED か、空の buffer でも入り切らないなど、これ以上進まない
+        break;
+      }
+      overflowed = false;
+    }
+    return consumed;
+  }
+
+  /**
+   * source を最後まで読んで送る。実際の送信は process の中で、送信キューが空いたときに進める。
+   * 送り終えたら Listener#onSendCompleted を呼ぶ。
+   * source が 0 を返したら、次に process が呼ばれるまで待つ。
+   *
+   * @throws IllegalStateException 前の send が終わっていない
+   */
+  void send(ReadableByteChannel source) {
+    if (isSending()) {
+      throw new IllegalStateException("Previous send has not completed");
+    }
+    sendSource = source;
+  }
+
+  /**
+   * file の現在位置から最後までを、map して送る。send と同じく、送り終えたら Listener#onSendCompleted を呼ぶ。
+   * file の close は呼び出し側で行うこと。
+   *
+   * @throws IllegalStateException 前の send が終わっていない
+   */
+  void sendFile(FileChannel file) throws IOException {
+    if (isSending()) {
+      throw new IllegalStateException("Previous send has not completed");
+    }
+    sendFilePosition = file.position();
+    sendFile = file;
+  }
+
+  boolean isSending() {
+    return sendSource != null || sendFile != null;
+  }
+
+  /**
+   * close_notify を送ってから閉じる。書き出し待ちのパケットを先に書き切り、
+   * close_notify を書き終えたら shutdownOutput で FIN を送る。
+   * その後は相手の close_notify か EOF が届くまで読み続け、届いたデータは Listener に渡してから close する。
+   * 相手が応えなければ閉じないので、呼び出し側で期限を決めて close すること。
+   * 書き切れなければ戻るので、閉じるまで interestOps に従って process を呼び続けること。
+   * 委譲タスクの実行中なら、タスクが終わって process が呼ばれたときに送る。
+   * SocketChannel でなければ FIN を送れないので、close_notify を書き終えたらすぐに close する。
+   */
+  void closeOutbound() throws IOException {
+    if (closed) {
+      return;
+    }
+    engine.closeOutbound();
+    process();
+  }
+
+  /**
+   * @return FIN を送ったら true。SocketChannel でなければ false
+   */
+  private boolean shutdownOutput() throws IOException {
+    if (!outputShutdown) {
+      if (!(channel instanceof SocketChannel)) {
+        return false;
+      }
+      ((SocketChannel) channel).shutdownOutput();
+      outputShutdown = true;
+    }
+    return true;
+  }
+
+  void close() throws IOException {
+    if (!closed && serverMetrics != null) {
+      serverMetrics.connectionClosed(handshakeFinished);
+    }
+    closed = true;
+    channel.close();
+    releaseIdleBuffers();
+  }
+
+  /**
+   * sendSource から最大 1 レコード分を読み、wrap する。
+   * 呼ばれるのは送信キューが空のときだけなので、これ以上は source を読み進めない。
+   * sendBuffer (getApplicationBufferSize) は 1 レコードの平文の上限より大きいので、wrap の後には端数が残る。
+   * 端数だけで wrap すると小さなレコードができるので、毎回残りを詰めて source から読み足し、
+   * いつも最大の大きさのレコードを作る。上限は TLS 1.2 では 16384、JDK の TLS 1.3 では 16367 バイト。
+   *
+   * @return wrap したら true
+   */
+  private boolean wrapFromSendSource() throws IOException {
+    if (!isSending() || !handshakeFinished || hasPendingOutbound()) {
+      return false;
+    }
+    if (sendFile != null) {
+      return wrapFromSendFile();
+    }
+    if (sendBuffer == null) {
+      sendBuffer = applicationBufferPool.acquire();
+      sendBuffer.flip();
+    }
+    if (sendBuffer.remaining() < sendBuffer.capacity()) {
+      sendBuffer.compact();
+      int read;
+      do {
+        // InputStream から作った channel などは 1 回で埋めてくれないので、読めるだけ読む
+        read = sendSource.read(sendBuffer);
+      } while (read > 0 && sendBuffer.hasRemaining());
+      sendBuffer.flip();
+      if (read < 0 && !sendBuffer.hasRemaining()) {
+        sendSource = null;
+        listener.onSendCompleted(this);
+        return false;
+      }
+      if (read == 0 && !sendBuffer.hasRemaining()) {
+        return false;
+      }
+    }
+    SSLEngineResult result = wrap(new ByteBuffer[] {sendBuffer});
+    return result.bytesConsumed() > 0 || result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW;
+  }
+
+  /**
+   * mappedSendRegion から最大 1 レコード分を wrap する。使い切ったら次の範囲を map する。
+   *
+   * @return wrap したら true
+   */
+  private boolean wrapFromSendFile() throws IOException {
+    if (mappedSendRegion == null || !mappedSendRegion.hasRemaining()) {
+      long remaining = sendFile.size() - sendFilePosition;
+      if (remaining <= 0) {
+        // 参照を外せば、GC されたときに unmap される
+        mappedSendRegion = null;
+        sendFile = null;
+        listener.onSendCompleted(this);
+        return false;
+      }
+      mappedSendRegion = sendFile.map(FileChannel.MapMode.READ_ONLY, sendFilePosition,
+          Math.min(remaining, MAX_MAPPED_BYTES));
+      sendFilePosition += mappedSendRegion.capacity();
+    }
+    SSLEngineResult result = wrap(new ByteBuffer[] {mappedSendRegion});
+    return result.bytesConsumed() > 0 || result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW;
+  }
+
+  private boolean hasPendingOutbound() {
+    // 空になりうるのは最後の buffer だけなので、先頭を見れば足りる
+    return !outboundNetworkBuffers.isEmpty() && outboundNetworkBuffers.peekFirst().hasRemaining();
+  }
+
+  private static boolean hasRemaining(ByteBuffer[] buffers) {
+    for (ByteBuffer buffer : buffers) {
+      if (buffer.hasRemaining()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private boolean isTracing() {
+    return handshakeTrace != null && !handshakeFinished;
+  }
+
+  private void runDelegatedTasks() {
+    long traceStartNanos = isTracing() ? System.nanoTime() : 0;
+    Runnable task;
+    while ((task = engine.getDelegatedTask()) != null) {
+      long startNanos = serverMetrics != null ? System.nanoTime() : 0;
+      task.run();
+      if (serverMetrics != null) {
+        serverMetrics.delegatedTaskFinished(startNanos);
+      }
+    }
+    if (traceStartNanos != 0) {
+      handshakeTrace.record(HandshakeTrace.Phase.DELEGATED_TASK, traceStartNanos, engine.getHandshakeStatus());
+    }
+  }
+
+  private void submitDelegatedTasks() {
+    List<Runnable> tasks = new ArrayList<>();
+    Runnable task;
+    while ((task = engine.getDelegatedTask()) != null) {
+      tasks.add(task);
+    }
+    if (tasks.isEmpty()) {
+      return;
+    }
+
+    delegatedTasksRunning = true;
+    long traceStartNanos = isTracing() ? System.nanoTime() : 0;
+    AtomicInteger remainingTasks = new AtomicInteger(tasks.size());
+    long submittedNanos = serverMetrics != null ? System.nanoTime() : 0;
+    for (Runnable delegatedTask : tasks) {
+      if (serverMetrics != null) {
+        serverMetrics.delegatedTaskSubmitted();
+      }
+      delegatedTaskExecutor.execute(() -> {
+        long startNanos = 0;
+        if (serverMetrics != null) {
+          serverMetrics.delegatedTaskStarted(submittedNanos);
+          startNanos = System.nanoTime();
+        }
+        try {
+          delegatedTask.run();
+        } finally {
+          if (serverMetrics != null) {
+            serverMetrics.delegatedTaskFinished(startNanos);
+          }
+          if (remainingTasks.decrementAndGet() == 0) {
+            if (traceStartNanos != 0) {
+              handshakeTrace.record(HandshakeTrace.Phase.DELEGATED_TASK, traceStartNanos,
+                  engine.getHandshakeStatus());
+            }
+            delegatedTasksRunning = false;
+            listener.onDelegatedTasksFinished(this);
+          }
+        }
+      });
+    }
+  }
+
+  /**
+   * 送信キューの最後のパケットに追記する。入り切らなければ次の wrap のために
+   * 新しいパケットをキューに足すので、BUFFER_OVERFLOW なら同じ sources で wrap し直せばよい。
+   */
+  private SSLEngineResult wrap(ByteBuffer[] sources) throws IOException {
+    ByteBuffer outboundNetworkBuffer = outboundNetworkBuffers.peekLast();
+    if (outboundNetworkBuffer == null) {
+      outboundNetworkBuffer = packetBufferPool.acquire();
+      outboundNetworkBuffers.addLast(outboundNetworkBuffer);
+    } else {
+      outboundNetworkBuffer.compact();
+    }
+    long traceStartNanos = isTracing() ? System.nanoTime() : 0;
+    SSLEngineResult result;
+    try {
+      result = engine.wrap(sources, outboundNetworkBuffer);
+    } finally {
+      outboundNetworkBuffer.flip();
+    }
+    if (traceStartNanos != 0 && result.bytesProduced() > 0) {
+      handshakeTrace.record(HandshakeTrace.Phase.WRAP, traceStartNanos, result.getHandshakeStatus());
+    }
+    if (result.bytesProduced() > 0) {
+      recordsWrapped++;
+    }
+    if (serverMetrics != null) {
+      serverMetrics.wrapped(result.bytesConsumed());
+      if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+        serverMetrics.bufferOverflow();
+      }
+    }
+    if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+      if (outboundNetworkBuffer.hasRemaining()) {
+        // 書き出し待ちのパケットはそのままにして、次のパケットに書く
+        ByteBuffer next = packetBufferPool.acquire();
+        next.flip();
+        outboundNetworkBuffers.addLast(next);
+      } else {
+        // 空なのに 1 レコードが入り切らない
+        outboundNetworkBuffers.pollLast();
+        outboundNetworkBuffers.addLast(enlargeReadable(packetBufferPool, outboundNetworkBuffer,
+            engine.getSession().getPacketBufferSize()));
+      }
+    }
+    onResult(result);
+    return result;
+  }
+
+  /**
+   * @return 何らかの進展があれば true。パケットの到着を待つ必要があれば false
+   */
+  private boolean unwrap() throws IOException {
+    if (inboundNetworkBuffer == null) {
+      // 受信済みのパケットがない
+      return false;
+    }
+    if (applicationBuffer == null) {
+      applicationBuffer = applicationBufferPool.acquire();
+    }
+
+    inboundNetworkBuffer.flip();
+    long traceStartNanos = isTracing() ? System.nanoTime() : 0;
+    SSLEngineResult result;
+    try {
+      result = engine.unwrap(inboundNetworkBuffer, applicationBuffer);
+    } finally {
+      inboundNetworkBuffer.compact();
+    }
+    if (traceStartNanos != 0 && result.bytesConsumed() > 0) {
+      // パケットが足りなかっただけの unwrap は数えない
+      handshakeTrace.record(HandshakeTrace.Phase.UNWRAP, traceStartNanos, result.getHandshakeStatus());
+    }
+    if (serverMetrics != null) {
+      serverMetrics.unwrapped(result.bytesProduced());
+      if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+        serverMetrics.bufferOverflow();
+      } else if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+        serverMetrics.bufferUnderflow();
+      }
+    }
+    onResult(result);
+
+    if (applicationBuffer.position() != 0) {
+      applicationBuffer.flip();
+      listener.onApplicationData(this, applicationBuffer);
+      applicationBuffer.clear();
+    }
+
+    switch (result.getStatus()) {
+      case BUFFER_UNDERFLOW:
+        if (!inboundNetworkBuffer.hasRemaining()) {
+          // 1 レコードが入り切らない
+          inboundNetworkBuffer = enlargeWritable(packetBufferPool, inboundNetworkBuffer,
+              engine.getSession().getPacketBufferSize());
+        }
+        return false;
+      case BUFFER_OVERFLOW:
+        applicationBuffer = enlargeWritable(applicationBufferPool, applicationBuffer,
+            engine.getSession().getApplicationBufferSize());
+        return true;
+      case CLOSED:
+        // close_notify を受け取ったので、こちらからも close_notify を返す
+        engine.closeOutbound();
+        return true;
+      default:
+        return result.bytesConsumed() > 0
+            || result.bytesProduced() > 0
+            || result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP
+            || result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK;
+    }
+  }
+
+  private void onResult(SSLEngineResult result) {
+    if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED && !handshakeFinished) {
+      if (handshakeTrace != null) {
+        handshakeTrace.finished();
+      }
+      handshakeFinished = true;
+      if (serverMetrics != null) {
+        serverMetrics.handshakeFinished();
+      }
+      listener.onHandshakeFinished(this);
+    }
+  }
+
+  /**
+   * @return 未処理の書き出しがなくなれば true
+   */
+  private boolean flush() throws IOException {
+    boolean pending = hasPendingOutbound();
+    if (pending) {
+      flushes++;
+    }
+    while (hasPendingOutbound()) {
+      long written;
+      if (outboundNetworkBuffers.size() > 1 && channel instanceof GatheringByteChannel) {
+        ByteBuffer[] buffers = outboundNetworkBuffers.toArray(new ByteBuffer[0]);
+        written = ((GatheringByteChannel) channel).write(buffers);
+      } else {
+        written = channel.write(outboundNetworkBuffers.peekFirst());
+      }
+      writeCalls++;
+      if (written == 0) {
+        return false;
+      }
+      networkBytesWritten += written;
+      while (outboundNetworkBuffers.size() > 1 && !outboundNetworkBuffers.peekFirst().hasRemaining()) {
+        packetBufferPool.release(outboundNetworkBuffers.pollFirst());
+      }
+    }
+    if (pending && handshakeFinished) {
+      listener.onOutboundFlushed(this);
+    }
+    return true;
+  }
+
+  /**
+   * 処理待ちのデータを持っていない buffer をプールに返す。
+   * 閉じたコネクションはすべて返す。
+   */
+  private void releaseIdleBuffers() {
+    if (inboundNetworkBuffer != null && (closed || inboundNetworkBuffer.position() == 0)) {
+      packetBufferPool.release(inboundNetworkBuffer);
+      inboundNetworkBuffer = null;
+    }
+    if (closed || !hasPendingOutbound()) {
+      while (!outboundNetworkBuffers.isEmpty()) {
+        packetBufferPool.release(outboundNetworkBuffers.pollFirst());
+      }
+    }
+    if (applicationBuffer != null) {
+      // unwrap の出力はその場で Listener に渡しているので、常に空
+      applicationBufferPool.release(applicationBuffer);
+      applicationBuffer = null;
+    }
+    if (sendBuffer != null && (closed || sendSource == null)) {
+      applicationBufferPool.release(sendBuffer);
+      sendBuffer = null;
+    }
+    if (closed) {
+      mappedSendRegion = null;
+    }
+  }
+
+  /**
+   * 書き込みモードの buffer を、中身を保ったまま拡張する。
+   * 拡張後の buffer はプールに返しても捨てられる。
+   */
+  private static ByteBuffer enlargeWritable(BufferPool pool, ByteBuffer buffer, int minimumCapacity) {
+    ByteBuffer enlarged = pool.allocate(Math.max(buffer.capacity() * 2, minimumCapacity));
+    buffer.flip();
+    enlarged.put(buffer);
+    return enlarged;
+  }
+
+  /**
+   * 読み込みモードの buffer を、中身を保ったまま拡張する。
+   * 拡張後の buffer はプールに返しても捨てられる。
+   */
+  private static ByteBuffer enlargeReadable(BufferPool pool, ByteBuffer buffer, int minimumCapacity) {
+    ByteBuffer enlarged = pool.allocate(Math.max(buffer.capacity() * 2, minimumCapacity));
+    enlarged.put(buffer);
+    enlarged.flip();
+    return enlarged;
+  }
+}
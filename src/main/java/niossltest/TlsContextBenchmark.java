@@ -0,0 +1,92 @@
+package niossltest;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+
+/**
+ * コネクションごとに鍵ストアを読んで SSLContext を作る場合と、TlsContextFactory で使い回す場合の、
+ * SSLEngine 1 つあたりの作成時間を比べる。
+ * 続けて、鍵ストアのコピーを更新し、startReloading のスレッドが読み直した後も、
+ * 読み直す前のセッションを再開できることを確かめる。
+ *
+ * Usage: TlsContextBenchmark [engines]
+ */
+public class TlsContextBenchmark {
+  private static final int MAX_POOLED_BUFFERS = 4;
+  private static final long RELOAD_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(5);
+  // クライアントのセッションキャッシュのキー。接続はしない
+  private static final String SESSION_HOST = "localhost";
+  private static final int SESSION_PORT = 24224;
+
+  public static void main(String[] args) throws Exception {
+    int engines = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+
+    TlsContextFactory contextFactory = TlsContextFactory.forServer();
+    for (int run = 0; run < 2; run++) {
+      long start = System.nanoTime();
+      for (int i = 0; i < engines; i++) {
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(HandshakeLogging.createKeyManagers(), HandshakeLogging.createTrustManagers(), null);
+        SSLEngine engine = context.createSSLEngine();
+        engine.setUseClientMode(false);
+      }
+      long rebuildNanos = System.nanoTime() - start;
+
+      start = System.nanoTime();
+      for (int i = 0; i < engines; i++) {
+        contextFactory.createServerEngine();
+      }
+      long cachedNanos = System.nanoTime() - start;
+
+      System.out.printf("run=%d engines=%d rebuildPerEngine=%.1fus cachedPerEngine=%.1fus%n",
+          run, engines, rebuildNanos / 1e3 / engines, cachedNanos / 1e3 / engines);
+    }
+
+    Path directory = Files.createTempDirectory("nio-ssl-test");
+    Path keyStore = directory.resolve("server.jks");
+    Files.copy(TlsContextFactory.SERVER_KEY_STORE, keyStore);
+    try (TlsContextFactory rotating = new TlsContextFactory(keyStore, TlsContextFactory.CA_TRUST_STORE,
+        TlsContextFactory.PASSWORD, null)) {
+      rotating.startReloading();
+      SSLContext clientContext = TlsContextFactory.forClient().context();
+      SSLSession before = handshake(rotating.context(), clientContext);
+
+      // 証明書の更新の代わりに、同じ鍵ストアを書き直して更新時刻を進める
+      Files.copy(TlsContextFactory.SERVER_KEY_STORE, keyStore, StandardCopyOption.REPLACE_EXISTING);
+      Files.setLastModifiedTime(keyStore,
+          FileTime.fromMillis(Files.getLastModifiedTime(keyStore).toMillis() + 1000));
+      long deadline = System.nanoTime() + RELOAD_TIMEOUT_NANOS;
+      while (rotating.reloads() == 0 && System.nanoTime() - deadline < 0) {
+        Thread.sleep(100);
+      }
+      // SSLContext は変わらないので、読み直す前のセッションを再開できる
+      boolean resumed = SessionResumption.isResumed(handshake(rotating.context(), clientContext), before);
+
+      System.out.println("reloads=" + rotating.reloads() + " resumedAfterReload=" + resumed);
+    } finally {
+      Files.deleteIfExists(keyStore);
+      Files.deleteIfExists(directory);
+    }
+  }
+
+  /**
+   * @return クライアントのセッション
+   */
+  private static SSLSession handshake(SSLContext serverContext, SSLContext clientContext) throws Exception {
+    BufferPool packetBufferPool = BufferPool.forPackets(BufferType.HEAP,
+        serverContext.createSSLEngine().getSession(), MAX_POOLED_BUFFERS);
+    BufferPool applicationBufferPool = BufferPool.forApplicationData(BufferType.HEAP,
+        serverContext.createSSLEngine().getSession(), MAX_POOLED_BUFFERS);
+    try (LoopbackPair pair = LoopbackPair.open(Transport.MEMORY, serverContext,
+        clientContext.createSSLEngine(SESSION_HOST, SESSION_PORT), packetBufferPool, applicationBufferPool)) {
+      pair.handshake();
+      return pair.client().engine().getSession();
+    }
+  }
+}
@@ -0,0 +1,469 @@
+package niossltest;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.Principal;
+import java.security.PrivateKey;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509ExtendedKeyManager;
+import javax.net.ssl.X509ExtendedTrustManager;
+
+/**
+ * 鍵ストアを 1 度だけ読んで作った SSLContext を使い回し、SSLParameters を設定済みの SSLEngine を作る。
+ * コネクションごとに鍵ストアを読み直したり SSLContext を作り直したりしない。
+ *
+ * startReloading を呼ぶと、専用のスレッドで CHECK_INTERVAL_SECONDS ごとに鍵ストアのファイルの
+ * 更新時刻と大きさを確かめ、変わっていたら読み直す。Reactor などのスレッドはファイルを読まない。
+ * 読み直した KeyManager / TrustManager は、SSLContext に渡したラッパーの中で差し替えるので、
+ * SSLContext とそのセッションキャッシュはそのまま残る。差し替えた後に始まったハンドシェイクだけが
+ * 新しい証明書を使い、既存のコネクションやキャッシュからのセッションの再開はそのまま続く。
+ * 読み込みに失敗したら（書き換えの途中など）、前のものを使い続けて次の確認で読み直す。
+ *
+ * context はどのスレッドから呼んでもよい。
+ */
+class TlsContextFactory implements Closeable {
+  static final Path SERVER_KEY_STORE = Paths.get("./src/main/resources/nio-ssl-test-server.jks");
+  static final Path CA_TRUST_STORE = Paths.get("./src/main/resources/nio-ssl-test-ca.jks");
+  static final char[] PASSWORD = "12345678".toCharArray();
+  private static final long CHECK_INTERVAL_SECONDS = 1;
+
+  // null ならその鍵ストアを使わない。両方 null なら差し替えない
+  private final Path keyStore;
+  private final Path trustStore;
+  private final char[] password;
+  private final SSLParameters parameters;
+  private final SSLContext context;
+  // null なら差し替えない
+  private final ReloadingKeyManager keyManager;
+  private final ReloadingTrustManager trustManager;
+  private final AtomicLong reloads = new AtomicLong();
+  // 今の KeyManager / TrustManager を読んだときのファイルの状態
+  private volatile String fileVersions;
+  private ScheduledExecutorService reloader = null;
+
+  /**
+   * @param keyStore   null なら鍵を持たない（クライアント）
+   * @param trustStore null ならデフォルトのトラストストア
+   * @param parameters SSLEngine に設定するパラメータ。null なら SSLContext のデフォルト
+   */
+  TlsContextFactory(Path keyStore,
+                    Path trustStore,
+                    char[] password,
+                    SSLParameters parameters) throws GeneralSecurityException, IOException {
+    this.keyStore = keyStore;
+    this.trustStore = trustStore;
+    this.password = password;
+    this.parameters = parameters;
+    // ファイルの状態を先に取ってから読む。読んでいる間に書き換えられたら、次の確認でもう一度読む
+    this.fileVersions = fileVersions();
+    this.keyManager = keyStore == null ? null : new ReloadingKeyManager(loadKeyManager(keyStore, password));
+    this.trustManager = trustStore == null ? null : new ReloadingTrustManager(loadTrustManager(trustStore, password));
+    this.context = SSLContext.getInstance("TLS");
+    this.context.init(keyManager == null ? null : new KeyManager[] {keyManager},
+        trustManager == null ? null : new TrustManager[] {trustManager},
+        null);
+  }
+
+  private TlsContextFactory(SSLContext context, SSLParameters parameters) {
+    this.keyStore = null;
+    this.trustStore = null;
+    this.password = null;
+    this.parameters = parameters;
+    this.context = context;
+    this.keyManager = null;
+    this.trustManager = null;
+    this.fileVersions = "";
+  }
+
+  /**
+   * このプロジェクトのサーバ証明書を使う。クライアント認証は求めない。
+   */
+  static TlsContextFactory forServer() throws GeneralSecurityException, IOException {
+    SSLParameters parameters = new SSLParameters();
+    parameters.setNeedClientAuth(false);
+    return new TlsContextFactory(SERVER_KEY_STORE, CA_TRUST_STORE, PASSWORD, parameters);
+  }
+
+  /**
+   * このプロジェクトの CA を信頼するクライアント。
+   */
+  static TlsContextFactory forClient() throws GeneralSecurityException, IOException {
+    return new TlsContextFactory(null, CA_TRUST_STORE, PASSWORD, null);
+  }
+
+  /**
+   * 作成済みの SSLContext をそのまま使う。差し替えは行わない。
+   */
+  static TlsContextFactory of(SSLContext context) {
+    SSLParameters parameters = new SSLParameters();
+    parameters.setNeedClientAuth(false);
+    return new TlsContextFactory(context, parameters);
+  }
+
+  /**
+   * @return 鍵ストアを読み直しても同じ SSLContext
+   */
+  SSLContext context() {
+    return context;
+  }
+
+  SSLEngine createServerEngine() {
+    SSLEngine engine = context.createSSLEngine();
+    configure(engine, false);
+    return engine;
+  }
+
+  /**
+   * @param host セッションキャッシュのキーになる接続先
+   */
+  SSLEngine createClientEngine(String host, int port) {
+    SSLEngine engine = context.createSSLEngine(host, port);
+    configure(engine, true);
+    return engine;
+  }
+
+  /**
+   * サーバの engine のハンドシェイクがセッションの再開だったなら true。ハンドシェイクを終えてから 1 回だけ呼ぶ。
+   * サーバが証明書を選ぶのはフルハンドシェイクのときだけ（TLS 1.2 でも 1.3 でも）なので、
+   * この engine のために KeyManager が alias を選んだかで判定する。
+   * 時刻を比べないので、同じミリ秒内の再接続や時計の巻き戻りで取り違えない。
+   *
+   * @return 鍵を持たないファクトリ（クライアントや of で作ったもの）なら false
+   */
+  boolean isResumed(SSLEngine engine) {
+    return keyManager != null && !keyManager.choseServerAlias(engine);
+  }
+
+  /**
+   * @return 鍵ストアを読み直して KeyManager / TrustManager を差し替えた回数
+   */
+  long reloads() {
+    return reloads.get();
+  }
+
+  /**
+   * 専用のデーモンスレッドで、CHECK_INTERVAL_SECONDS ごとに reloadIfChanged を呼ぶ。close で止める。
+   * 差し替える鍵ストアがなければ何もしない。
+   */
+  synchronized void startReloading() {
+    if (reloader != null || (keyManager == null && trustManager == null)) {
+      return;
+    }
+    reloader = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "tls-context-reloader");
+      thread.setDaemon(true);
+      return thread;
+    });
+    reloader.scheduleWithFixedDelay(this::reloadIfChanged,
+        CHECK_INTERVAL_SECONDS, CHECK_INTERVAL_SECONDS, TimeUnit.SECONDS);
+  }
+
+  /**
+   * startReloading で起こしたスレッドを止める。作った SSLEngine はそのまま使える。
+   */
+  @Override
+  public synchronized void close() {
+    if (reloader != null) {
+      reloader.shutdownNow();
+      reloader = null;
+    }
+  }
+
+  /**
+   * 鍵ストアが変わっていれば読み直す。startReloading のスレッドから呼ばれるが、直接呼んでもよい。
+   *
+   * @return 差し替えたら true
+   */
+  synchronized boolean reloadIfChanged() {
+    if (keyManager == null && trustManager == null) {
+      return false;
+    }
+    try {
+      String versions = fileVersions();
+      if (versions.equals(fileVersions)) {
+        return false;
+      }
+      // 両方読めてから差し替える
+      X509ExtendedKeyManager newKeyManager = keyManager == null ? null : loadKeyManager(keyStore, password);
+      X509ExtendedTrustManager newTrustManager = trustManager == null
+          ? null
+          : loadTrustManager(trustStore, password);
+      if (keyManager != null) {
+        keyManager.swap(newKeyManager);
+      }
+      if (trustManager != null) {
+        trustManager.swap(newTrustManager);
+      }
+      fileVersions = versions;
+      reloads.incrementAndGet();
+      return true;
+    } catch (GeneralSecurityException | IOException e) {
+      System.out.println("Failed to reload key stores, keeps the current ones: " + e);
+      return false;
+    }
+  }
+
+  static KeyManager[] loadKeyManagers(Path path, char[] password) throws GeneralSecurityException, IOException {
+    KeyManagerFactory factory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+    factory.init(loadKeyStore(path, password), password);
+    return factory.getKeyManagers();
+  }
+
+  static TrustManager[] loadTrustManagers(Path path, char[] password) throws GeneralSecurityException, IOException {
+    TrustManagerFactory factory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+    factory.init(loadKeyStore(path, password));
+    return factory.getTrustManagers();
+  }
+
+  private static KeyStore loadKeyStore(Path path, char[] password) throws GeneralSecurityException, IOException {
+    KeyStore keyStore = KeyStore.getInstance("JKS");
+    try (InputStream inputStream = Files.newInputStream(path)) {
+      keyStore.load(inputStream, password);
+    }
+    return keyStore;
+  }
+
+  private void configure(SSLEngine engine, boolean clientMode) {
+    if (parameters != null) {
+      engine.setSSLParameters(parameters);
+    }
+    engine.setUseClientMode(clientMode);
+  }
+
+  private static X509ExtendedKeyManager loadKeyManager(Path path, char[] password)
+      throws GeneralSecurityException, IOException {
+    for (KeyManager keyManager : loadKeyManagers(path, password)) {
+      if (keyManager instanceof X509ExtendedKeyManager) {
+        return (X509ExtendedKeyManager) keyManager;
+      }
+    }
+    throw new KeyStoreException("No X509ExtendedKeyManager for " + path);
+  }
+
+  private static X509ExtendedTrustManager loadTrustManager(Path path, char[] password)
+      throws GeneralSecurityException, IOException {
+    for (TrustManager trustManager : loadTrustManagers(path, password)) {
+      if (trustManager instanceof X509ExtendedTrustManager) {
+        return (X509ExtendedTrustManager) trustManager;
+      }
+    }
+    throw new KeyStoreException("No X509ExtendedTrustManager for " + path);
+  }
+
+  private String fileVersions() throws IOException {
+    return fileVersion(keyStore) + "," + fileVersion(trustStore);
+  }
+
+  private static String fileVersion(Path path) throws IOException {
+    if (path == null) {
+      return "";
+    }
+    BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+    return attributes.lastModifiedTime().toMillis() + ":" + attributes.size();
+  }
+
+  /**
+   * 読み直した KeyManager に処理を任せる。
+   * ハンドシェイクは alias を選んでから、その alias で証明書と秘密鍵を取り出すので、
+   * その間に差し替わっても同じ鍵ストアから取り出せるよう、alias に世代の番号を付け、1 つ前の世代も残しておく。
+   */
+  private static class ReloadingKeyManager extends X509ExtendedKeyManager {
+    private static class Generation {
+      final int number;
+      final X509ExtendedKeyManager delegate;
+
+      Generation(int number, X509ExtendedKeyManager delegate) {
+        this.number = number;
+        this.delegate = delegate;
+      }
+
+      String alias(String delegateAlias) {
+        return delegateAlias == null ? null : number + ":" + delegateAlias;
+      }
+
+      String[] aliases(String[] delegateAliases) {
+        if (delegateAliases == null) {
+          return null;
+        }
+        String[] aliases = new String[delegateAliases.length];
+        for (int i = 0; i < aliases.length; i++) {
+          aliases[i] = alias(delegateAliases[i]);
+        }
+        return aliases;
+      }
+    }
+
+    private volatile Generation current;
+    private volatile Generation previous = null;
+    // サーバの alias を選んだ SSLEngine。ハンドシェイクの途中で捨てられたものは GC で消える
+    private final Set<SSLEngine> serverAliasEngines = Collections.newSetFromMap(Collections.synchronizedMap(
+        new WeakHashMap<>()));
+
+    ReloadingKeyManager(X509ExtendedKeyManager delegate) {
+      this.current = new Generation(0, delegate);
+    }
+
+    void swap(X509ExtendedKeyManager delegate) {
+      Generation replaced = current;
+      previous = replaced;
+      current = new Generation(replaced.number + 1, delegate);
+    }
+
+    /**
+     * @return engine のためにサーバの alias を選んでいたら true。選んだことは忘れる
+     */
+    boolean choseServerAlias(SSLEngine engine) {
+      return serverAliasEngines.remove(engine);
+    }
+
+    @Override
+    public String[] getClientAliases(String keyType, Principal[] issuers) {
+      Generation generation = current;
+      return generation.aliases(generation.delegate.getClientAliases(keyType, issuers));
+    }
+
+    @Override
+    public String chooseClientAlias(String[] keyTypes, Principal[] issuers, Socket socket) {
+      Generation generation = current;
+      return generation.alias(generation.delegate.chooseClientAlias(keyTypes, issuers, socket));
+    }
+
+    @Override
+    public String chooseEngineClientAlias(String[] keyTypes, Principal[] issuers, SSLEngine engine) {
+      Generation generation = current;
+      return generation.alias(generation.delegate.chooseEngineClientAlias(keyTypes, issuers, engine));
+    }
+
+    @Override
+    public String[] getServerAliases(String keyType, Principal[] issuers) {
+      Generation generation = current;
+      return generation.aliases(generation.delegate.getServerAliases(keyType, issuers));
+    }
+
+    @Override
+    public String chooseServerAlias(String keyType, Principal[] issuers, Socket socket) {
+      Generation generation = current;
+      return generation.alias(generation.delegate.chooseServerAlias(keyType, issuers, socket));
+    }
+
+    @Override
+    public String chooseEngineServerAlias(String keyType, Principal[] issuers, SSLEngine engine) {
+      if (engine != null) {
+        serverAliasEngines.add(engine);
+      }
+      Generation generation = current;
+      return generation.alias(generation.delegate.chooseEngineServerAlias(keyType, issuers, engine));
+    }
+
+    @Override
+    public X509Certificate[] getCertificateChain(String alias) {
+      Generation generation = generationOf(alias);
+      return generation == null ? null : generation.delegate.getCertificateChain(delegateAlias(alias));
+    }
+
+    @Override
+    public PrivateKey getPrivateKey(String alias) {
+      Generation generation = generationOf(alias);
+      return generation == null ? null : generation.delegate.getPrivateKey(delegateAlias(alias));
+    }
+
+    /**
+     * @return 2 つ以上前の世代の alias や、このクラスが付けたものでない alias なら null
+     */
+    private Generation generationOf(String alias) {
+      int separator = alias == null ? -1 : alias.indexOf(':');
+      if (separator < 0) {
+        return null;
+      }
+      String number = alias.substring(0, separator);
+      for (Generation generation : new Generation[] {current, previous}) {
+        if (generation != null && Integer.toString(generation.number).equals(number)) {
+          return generation;
+        }
+      }
+      return null;
+    }
+
+    private static String delegateAlias(String alias) {
+      return alias.substring(alias.indexOf(':') + 1);
+    }
+  }
+
+  /**
+   * 読み直した TrustManager に処理を任せる。
+   */
+  private static class ReloadingTrustManager extends X509ExtendedTrustManager {
+    private volatile X509ExtendedTrustManager delegate;
+
+    ReloadingTrustManager(X509ExtendedTrustManager delegate) {
+      this.delegate = delegate;
+    }
+
+    void swap(X509ExtendedTrustManager delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public void checkClientTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+      delegate.checkClientTrusted(chain, authType);
+    }
+
+    @Override
+    public void checkClientTrusted(X509Certificate[] chain, String authType, Socket socket)
+        throws CertificateException {
+      delegate.checkClientTrusted(chain, authType, socket);
+    }
+
+    @Override
+    public void checkClientTrusted(X509Certificate[] chain, String authType, SSLEngine engine)
+        throws CertificateException {
+      delegate.checkClientTrusted(chain, authType, engine);
+    }
+
+    @Override
+    public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+      delegate.checkServerTrusted(chain, authType);
+    }
+
+    @Override
+    public void checkServerTrusted(X509Certificate[] chain, String authType, Socket socket)
+        throws CertificateException {
+      delegate.checkServerTrusted(chain, authType, socket);
+    }
+
+    @Override
+    public void checkServerTrusted(X509Certificate[] chain, String authType, SSLEngine engine)
+        throws CertificateException {
+      delegate.checkServerTrusted(chain, authType, engine);
+    }
+
+    @Override
+    public X509Certificate[] getAcceptedIssuers() {
+      return delegate.getAcceptedIssuers();
+    }
+  }
+}
@@ -0,0 +1,353 @@
+package niossltest;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLContext;
+
+/**
+ * 多数の TLS コネクションをさばくサーバ。
+ * run を呼んだスレッドが acceptor として accept だけを行い、
+ * コネクションを reactorCount 個の Reactor にラウンドロビンで割り当てる。
+ * TLS レコードの暗号処理は CPU を使うので、Reactor をコア数だけ用意すると
+ * 1 つの Selector スレッドがボトルネックにならない。
+ * コネクションは割り当てられた Reactor のスレッドでだけ扱われる。
+ *
+ * delegatedTaskExecutor を渡すと、ハンドシェイク中のタスクはそのスレッドで実行され、
+ * Reactor はその間も確立済みのコネクションをさばき続ける。
+ *
+ * handshakeMetrics を渡すと、各コネクションのハンドシェイクを計測する。
+ * serverMetrics を渡すと、コネクションの状態、委譲タスクの待ち、wrap / unwrap の量、Reactor のループの所要時間を数える。
+ *
+ * startReloading した TlsContextFactory を渡すと、鍵ストアが更新されたときに再起動せずに新しい証明書へ切り替わる。
+ *
+ * drain を呼ぶと accept をやめ、すべてのコネクションに close_notify を送ってから run を終える。
+ * 再起動のときに使う。close_notify は時間の前半に散らして送るので、クライアントの再接続も散らばる。
+ */
+public class TlsServer implements Server {
+  private static final int BACKLOG = 1024;
+  private static final long REPORT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+  private static final int MAX_POOLED_BUFFERS = 1024;
+  private static final long DRAIN_TIMEOUT_SECONDS = 10;
+  // accept に失敗したら（ファイルディスクリプタが尽きたときなど）この間 accept を止める
+  private static final long ACCEPT_BACKOFF_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+  private final Selector selector;
+  private final ServerSocketChannel serverSocketChannel;
+  private final SelectionKey acceptKey;
+  private final HandshakeMetrics handshakeMetrics;
+  private final ServerMetrics serverMetrics;
+  private final List<Reactor> reactors = new ArrayList<>();
+  private volatile boolean running = true;
+  // 0 なら drain せずに止める
+  private volatile long drainTimeoutNanos = 0;
+  private final CountDownLatch stopped = new CountDownLatch(1);
+  private int nextReactor = 0;
+  // 0 でなければ、この時刻まで accept を止めている
+  private long acceptResumeNanos = 0;
+
+  public TlsServer(SSLContext context, InetSocketAddress address) throws IOException {
+    this(context, address, BufferType.HEAP, null);
+  }
+
+  /**
+   * @param delegatedTaskExecutor null ならタスクを Reactor のスレッドで実行する。
+   *                              shutdown は呼び出し側で行うこと
+   */
+  public TlsServer(SSLContext context,
+                   InetSocketAddress address,
+                   BufferType bufferType,
+                   ExecutorService delegatedTaskExecutor) throws IOException {
+    this(context, address, bufferType, delegatedTaskExecutor, null);
+  }
+
+  /**
+   * @param handshakeMetrics null ならハンドシェイクを計測しない
+   */
+  public TlsServer(SSLContext context,
+                   InetSocketAddress address,
+                   BufferType bufferType,
+                   ExecutorService delegatedTaskExecutor,
+                   HandshakeMetrics handshakeMetrics) throws IOException {
+    this(TlsContextFactory.of(context), address, bufferType, delegatedTaskExecutor, handshakeMetrics, 1);
+  }
+
+  /**
+   * @param reactorCount コネクションをさばく Selector スレッドの数
+   */
+  TlsServer(TlsContextFactory contextFactory,
+            InetSocketAddress address,
+            BufferType bufferType,
+            ExecutorService delegatedTaskExecutor,
+            HandshakeMetrics handshakeMetrics,
+            int reactorCount) throws IOException {
+    this(contextFactory, address, bufferType, delegatedTaskExecutor, handshakeMetrics, null, reactorCount);
+  }
+
+  /**
+   * @param serverMetrics null ならコネクションの状態などを数えない
+   */
+  TlsServer(TlsContextFactory contextFactory,
+            InetSocketAddress address,
+            BufferType bufferType,
+            ExecutorService delegatedTaskExecutor,
+            HandshakeMetrics handshakeMetrics,
+            ServerMetrics serverMetrics,
+            int reactorCount) throws IOException {
+    this.handshakeMetrics = handshakeMetrics;
+    this.serverMetrics = serverMetrics;
+    this.selector = Selector.open();
+    this.serverSocketChannel = ServerSocketChannel.open();
+    this.serverSocketChannel.configureBlocking(false);
+    this.serverSocketChannel.bind(address, BACKLOG);
+    this.acceptKey = this.serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
+    for (int i = 0; i < reactorCount; i++) {
+      reactors.add(new Reactor(contextFactory, bufferType, MAX_POOLED_BUFFERS / reactorCount,
+          delegatedTaskExecutor, handshakeMetrics, serverMetrics));
+    }
+  }
+
+  /**
+   * Usage: TlsServer [heap|direct] [inline|forkjoin|virtual] [session cache size] [session timeout seconds]
+   *                  [trace|notrace] [reactors] [metrics port]
+   *
+   * trace なら終了時に、フェーズごとのハンドシェイクのレイテンシ分布を JSON で表示する。
+   * reactors の指定がなければコア数。
+   * ServerMetrics は常に JMX（niossltest:type=ServerMetrics）で公開する。
+   * metrics port を指定すると、127.0.0.1 のそのポートの /metrics でも公開する。
+   * SIGTERM (Ctrl-C) を受け取ると、DRAIN_TIMEOUT_SECONDS 秒かけて drain してから終わる。
+   */
+  public static void main(String[] args) throws Exception {
+    BufferType bufferType = BufferType.parse(args, 0);
+    ExecutorService delegatedTaskExecutor = DelegatedTaskExecutors.parse(args, 1);
+    InetSocketAddress address = new InetSocketAddress("127.0.0.1", 24224);
+    TlsContextFactory contextFactory = TlsContextFactory.forServer();
+    contextFactory.startReloading();
+    if (args.length > 3) {
+      // 鍵ストアを読み直しても SSLContext は変わらないので、この設定とキャッシュはそのまま残る
+      SessionResumption.configureServerSessionCache(contextFactory.context(),
+          Integer.parseInt(args[2]), Integer.parseInt(args[3]));
+    }
+    HandshakeMetrics handshakeMetrics = args.length > 4 && args[4].equals("trace") ? new HandshakeMetrics() : null;
+    if (handshakeMetrics != null) {
+      // Ctrl-C で止めたときにも表示する
+      Runtime.getRuntime().addShutdownHook(new Thread(() -> System.out.println(handshakeMetrics.toJson())));
+    }
+    int reactorCount = args.length > 5 ? Integer.parseInt(args[5]) : Runtime.getRuntime().availableProcessors();
+    ServerMetrics serverMetrics = new ServerMetrics();
+    serverMetrics.registerMBean();
+    MetricsEndpoint metricsEndpoint = args.length > 6
+        ? MetricsEndpoint.start(serverMetrics, new InetSocketAddress("127.0.0.1", Integer.parseInt(args[6])))
+        : null;
+    try (TlsServer server = new TlsServer(contextFactory, address, bufferType, delegatedTaskExecutor,
+        handshakeMetrics, serverMetrics, reactorCount)) {
+      System.out.println("Listening on " + address + " with " + bufferType + " buffers and "
+          + reactorCount + " reactors");
+      if (metricsEndpoint != null) {
+        System.out.println("Metrics on http://127.0.0.1:" + metricsEndpoint.localAddress().getPort() + "/metrics");
+      }
+      // フックが戻ると JVM が止まるので、drain を終えるまで待つ
+      Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+        server.drain(DRAIN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        server.awaitStopped(DRAIN_TIMEOUT_SECONDS + 1, TimeUnit.SECONDS);
+      }));
+      server.run();
+    } finally {
+      contextFactory.close();
+      if (metricsEndpoint != null) {
+        metricsEndpoint.close();
+      }
+      if (delegatedTaskExecutor != null) {
+        delegatedTaskExecutor.shutdown();
+      }
+    }
+  }
+
+  /**
+   * Reactor のスレッドを起こし、shutdown か drain が呼ばれるまで accept し続ける。
+   * accept に失敗しても止まらず、ACCEPT_BACKOFF_NANOS の間 accept を休んでから続ける。
+   * 戻る前に Reactor のスレッドを止める。drain なら、すべてのコネクションを閉じるまで待つ。
+   */
+  @Override
+  public void run() throws IOException {
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < reactors.size(); i++) {
+      Thread thread = new Thread(reactors.get(i), "reactor-" + i);
+      thread.start();
+      threads.add(thread);
+    }
+
+    try {
+      long nextReport = System.nanoTime() + REPORT_INTERVAL_NANOS;
+      while (running) {
+        long wakeup = acceptResumeNanos != 0 ? Math.min(nextReport, acceptResumeNanos) : nextReport;
+        selector.select(Math.max(TimeUnit.NANOSECONDS.toMillis(wakeup - System.nanoTime()), 1));
+        if (!selector.selectedKeys().isEmpty()) {
+          selector.selectedKeys().clear();
+          accept();
+        }
+
+        long now = System.nanoTime();
+        if (acceptResumeNanos != 0 && now >= acceptResumeNanos) {
+          acceptResumeNanos = 0;
+          acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+        }
+        if (now >= nextReport) {
+          report();
+          nextReport = now + REPORT_INTERVAL_NANOS;
+        }
+      }
+    } finally {
+      long drainTimeout = drainTimeoutNanos;
+      long drainStart = System.nanoTime();
+      if (drainTimeout > 0) {
+        // 新しい接続を断ってから、close_notify を時間の前半に散らして送る
+        // 登録中のチャネルは次の select で登録が外れるまで fd が閉じないので、ここで外してポートを空ける
+        serverSocketChannel.close();
+        acceptKey.cancel();
+        selector.selectNow();
+        for (Reactor reactor : reactors) {
+          reactor.drain(drainTimeout / 2, drainStart + drainTimeout);
+        }
+      } else {
+        for (Reactor reactor : reactors) {
+          reactor.shutdown();
+        }
+      }
+      for (Thread thread : threads) {
+        try {
+          thread.join();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      if (drainTimeout > 0) {
+        long forcedCloses = 0;
+        for (Reactor reactor : reactors) {
+          forcedCloses += reactor.forcedCloses();
+        }
+        System.out.println("Drained in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - drainStart)
+            + "ms: handshakes=" + completedHandshakes() + " forcedCloses=" + forcedCloses);
+      }
+      stopped.countDown();
+    }
+  }
+
+  @Override
+  public InetSocketAddress localAddress() throws IOException {
+    return (InetSocketAddress) serverSocketChannel.getLocalAddress();
+  }
+
+  @Override
+  public long completedHandshakes() {
+    long completedHandshakes = 0;
+    for (Reactor reactor : reactors) {
+      completedHandshakes += reactor.completedHandshakes();
+    }
+    return completedHandshakes;
+  }
+
+  /**
+   * すべての Reactor が受け取ったアプリケーションデータのバイト数。
+   */
+  @Override
+  public long receivedBytes() {
+    long receivedBytes = 0;
+    for (Reactor reactor : reactors) {
+      receivedBytes += reactor.receivedBytes();
+    }
+    return receivedBytes;
+  }
+
+  @Override
+  public void shutdown() {
+    running = false;
+    selector.wakeup();
+  }
+
+  /**
+   * accept をやめ、すべてのコネクションに close_notify を送って閉じてから run を終える。
+   * close_notify は timeout の前半に散らして送る。timeout を過ぎても閉じていないコネクションはそのまま閉じる。
+   * どのスレッドから呼んでもよい。終わるのを待つなら awaitStopped を使う。
+   */
+  void drain(long timeout, TimeUnit unit) {
+    drainTimeoutNanos = Math.max(unit.toNanos(timeout), 1);
+    shutdown();
+  }
+
+  /**
+   * @return run が戻ったら true
+   */
+  boolean awaitStopped(long timeout, TimeUnit unit) {
+    try {
+      return stopped.await(timeout, unit);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    for (Reactor reactor : reactors) {
+      reactor.close();
+    }
+    serverSocketChannel.close();
+    selector.close();
+  }
+
+  /**
+   * accept できるだけ accept する。
+   * 失敗したら確立済みのコネクションはそのままにして、しばらく OP_ACCEPT を外す。
+   */
+  private void accept() {
+    SocketChannel channel;
+    try {
+      while ((channel = serverSocketChannel.accept()) != null) {
+        reactors.get(nextReactor).register(channel);
+        nextReactor = (nextReactor + 1) % reactors.size();
+      }
+    } catch (IOException e) {
+      System.out.println("Pauses accepting: " + e);
+      acceptKey.interestOps(0);
+      acceptResumeNanos = System.nanoTime() + ACCEPT_BACKOFF_NANOS;
+    }
+  }
+
+  private void report() {
+    int activeConnections = 0;
+    long completedHandshakes = 0;
+    long resumedHandshakes = 0;
+    for (Reactor reactor : reactors) {
+      activeConnections += reactor.activeConnections();
+      completedHandshakes += reactor.completedHandshakes();
+      resumedHandshakes += reactor.resumedHandshakes();
+    }
+    System.out.println("connections=" + activeConnections
+        + " handshakes=" + completedHandshakes
+        + " (full=" + (completedHandshakes - resumedHandshakes)
+        + " abbreviated=" + resumedHandshakes + ")"
+        + " receivedBytes=" + receivedBytes());
+    for (int i = 0; i < reactors.size(); i++) {
+      Reactor reactor = reactors.get(i);
+      System.out.println("  reactor-" + i + " connections=" + reactor.activeConnections()
+          + " receivedBytes=" + reactor.receivedBytes());
+      System.out.println("    packet: " + reactor.packetBufferPool());
+      System.out.println("    application: " + reactor.applicationBufferPool());
+    }
+    if (handshakeMetrics != null) {
+      System.out.println("  " + handshakeMetrics);
+    }
+    if (serverMetrics != null) {
+      System.out.println("  " + serverMetrics);
+    }
+  }
+}
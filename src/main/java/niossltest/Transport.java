@@ -0,0 +1,63 @@
+package niossltest;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * TlsConnection の下に敷く、クライアントとサーバをつなぐ ByteChannel の組の作り方。
+ * どちらも non-blocking なので、同じコードで SSLEngine を動かせる。
+ */
+enum Transport {
+  /**
+   * 127.0.0.1 上の TCP コネクション。カーネルの TCP のコストを含む。
+   */
+  SOCKET {
+    @Override
+    ByteChannel[] open() throws IOException {
+      try (ServerSocketChannel serverSocketChannel = ServerSocketChannel.open()) {
+        serverSocketChannel.bind(new InetSocketAddress("127.0.0.1", 0));
+        SocketChannel clientChannel = SocketChannel.open(serverSocketChannel.getLocalAddress());
+        SocketChannel serverChannel = serverSocketChannel.accept();
+        for (SocketChannel channel : new SocketChannel[] {clientChannel, serverChannel}) {
+          channel.configureBlocking(false);
+          // ハンドシェイクの小さなレコードが Nagle アルゴリズムで遅延しないように
+          channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        }
+        return new ByteChannel[] {clientChannel, serverChannel};
+      }
+    }
+  },
+
+  /**
+   * MemoryChannel。暗号処理と SSLEngine のコストだけが残る。
+   */
+  MEMORY {
+    @Override
+    ByteChannel[] open() {
+      MemoryChannel[] channels = MemoryChannel.pair(MEMORY_CHANNEL_CAPACITY);
+      return new ByteChannel[] {channels[0], channels[1]};
+    }
+  };
+
+  // ソケットの送信バッファと同程度
+  private static final int MEMORY_CHANNEL_CAPACITY = 1024 * 1024;
+
+  /**
+   * @return {クライアント側, サーバ側}
+   */
+  abstract ByteChannel[] open() throws IOException;
+
+  /**
+   * コマンドライン引数から選ぶ。指定がなければ SOCKET。
+   */
+  static Transport parse(String[] args, int index) {
+    if (args.length <= index) {
+      return SOCKET;
+    }
+    return valueOf(args[index].toUpperCase());
+  }
+}
@@ -0,0 +1,70 @@
+package niossltest;
+
+import java.nio.ByteBuffer;
+import javax.net.ssl.SSLContext;
+
+/**
+ * 同じ TlsConnection のコードを SOCKET と MEMORY の Transport で動かし、
+ * ハンドシェイクとバルク転送のうち、どれだけが I/O のコストかを比べる。
+ *
+ * 最初の run は JIT のウォームアップを含む。
+ *
+ * Usage: TransportBenchmark [handshakes] [MiB] [heap|direct] [runs]
+ */
+public class TransportBenchmark {
+  private static final int MAX_POOLED_BUFFERS = 4;
+  private static final int CHUNK_SIZE = 1024 * 1024;
+
+  public static void main(String[] args) throws Exception {
+    int handshakes = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+    long bytes = (args.length > 1 ? Long.parseLong(args[1]) : 256) * 1024 * 1024;
+    BufferType bufferType = BufferType.parse(args, 2);
+    int runs = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+
+    SSLContext serverContext = SSLContext.getInstance("TLS");
+    serverContext.init(HandshakeLogging.createKeyManagers(), HandshakeLogging.createTrustManagers(), null);
+    SSLContext clientContext = SSLContext.getInstance("TLS");
+    clientContext.init(null, HandshakeLogging.createTrustManagers(), null);
+    BufferPool packetBufferPool = BufferPool.forPackets(bufferType,
+        serverContext.createSSLEngine().getSession(), MAX_POOLED_BUFFERS);
+    BufferPool applicationBufferPool = BufferPool.forApplicationData(bufferType,
+        serverContext.createSSLEngine().getSession(), MAX_POOLED_BUFFERS);
+
+    for (int run = 0; run < runs; run++) {
+      for (Transport transport : Transport.values()) {
+        long start = System.nanoTime();
+        for (int i = 0; i < handshakes; i++) {
+          try (LoopbackPair pair = LoopbackPair.open(transport, serverContext, clientContext,
+              packetBufferPool, applicationBufferPool)) {
+            pair.handshake();
+          }
+        }
+        long handshakeNanos = System.nanoTime() - start;
+
+        ByteBuffer payload = bufferType.allocate(CHUNK_SIZE);
+        long transferNanos;
+        try (LoopbackPair pair = LoopbackPair.open(transport, serverContext, clientContext,
+            packetBufferPool, applicationBufferPool)) {
+          pair.handshake();
+          start = System.nanoTime();
+          for (long sent = 0; sent < bytes; sent += payload.capacity()) {
+            payload.clear();
+            pair.transfer(payload);
+          }
+          transferNanos = System.nanoTime() - start;
+        }
+
+        System.out.printf("run=%d transport=%s handshakes=%d handshakesPerSecond=%.1f"
+                + " bytes=%d throughput=%.1fMB/s%n",
+            run,
+            transport,
+            handshakes,
+            handshakes / (handshakeNanos / 1e9),
+            bytes,
+            bytes / 1e6 / (transferNanos / 1e9));
+      }
+    }
+    System.out.println("Packet: " + packetBufferPool);
+    System.out.println("Application: " + applicationBufferPool);
+  }
+}